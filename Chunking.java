@@ -0,0 +1,247 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+
+/**
+ * The Dstore side of chunked files. A large file is cut into chunks of a fixed size, and each
+ * chunk is stored and replicated like a file of its own, on Dstores chosen for it alone. The
+ * Dstore a client talks to does the splitting: it sends each chunk down its replication chain as
+ * the bytes arrive, and for a LOAD_DATA it fetches several chunks at once from their Dstores and
+ * sends them in order, so a load is not held to the disk and network of a single Dstore.
+ */
+public class Chunking {
+
+    // chunks fetched at the same time for one LOAD_DATA
+    private static final int LOAD_WINDOW = 4;
+
+    /**
+     * Where the chunks of a file are
+     * @param size the size of the file
+     * @param chunkSize the size of every chunk but the last
+     * @param replicas the ports of the Dstores holding each chunk
+     */
+    public record Layout(long size, long chunkSize, List<List<Integer>> replicas) {
+
+        /**
+         * Reads a layout from the words after {@link Protocol#CHUNKS_TOKEN}
+         * @param words the size, the chunk size, the number of chunks and then for each chunk the
+         * number of its replicas and their ports
+         * @return the layout
+         */
+        public static Layout parse(List<String> words) {
+            var count = Integer.parseInt(words.get(2));
+            var replicas = new ArrayList<List<Integer>>();
+            var i = 3;
+            for (int chunk = 0; chunk < count; chunk++) {
+                var n = Integer.parseInt(words.get(i++));
+                replicas.add(words.subList(i, i + n).stream().map(Integer::parseInt).toList());
+                i += n;
+            }
+            return new Layout(Long.parseLong(words.get(0)), Long.parseLong(words.get(1)), replicas);
+        }
+
+        /**
+         * @param size the size of the file
+         * @param chunkSize the size of a chunk
+         * @return the number of chunks the file is cut into, at least one
+         */
+        public static int count(long size, long chunkSize) {
+            return (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+        }
+
+        /**
+         * @return the words that {@link #parse} reads, without {@link Protocol#CHUNKS_TOKEN}
+         */
+        public String toWords() {
+            var words = new StringBuilder(size + " " + chunkSize + " " + replicas.size());
+            for (var ports : replicas) {
+                words.append(" ").append(ports.size());
+                for (var port : ports) {
+                    words.append(" ").append(port);
+                }
+            }
+            return words.toString();
+        }
+
+        /**
+         * @param chunk the number of a chunk
+         * @return the size of the chunk
+         */
+        public long chunkLength(int chunk) {
+            return Math.min(chunkSize, size - chunk * chunkSize);
+        }
+    }
+
+    /**
+     * @param fileName the name of a chunked file
+     * @param chunk the number of a chunk
+     * @return the name the chunk is stored under
+     */
+    public static String chunkName(String fileName, int chunk) {
+        return fileName + Protocol.PART_SEPARATOR + chunk;
+    }
+
+    private final Dstore dstore;
+    private final ExecutorService fetches;
+
+    /**
+     * @param dstore the Dstore the chunks are stored in
+     */
+    public Chunking(Dstore dstore) {
+        this.dstore = dstore;
+        this.fetches = Executors.newCachedThreadPool(runnable -> {
+            var thread = new Thread(runnable, "chunk-fetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Receives a file and stores it as chunks, passing each one to its Dstores as it arrives.
+     * Every Dstore storing a chunk sends STORE_ACK for it. The last chunk is only committed once
+     * the whole file has matched its checksum, so a corrupt file never gets all its acks, and the
+     * chunks already stored are removed by the next rebalance.
+     * @param fileName the name of the file
+     * @param layout where to store the chunks
+     * @param in the stream of the file, positioned at its first byte
+     * @param expectedChecksum the CRC32C of the whole file, or {@link FileTransfer#UNKNOWN_CHECKSUM}
+     * @param accepted called once the Dstores of the first chunk are ready, before the data is read
+     * @throws IOException if the file cannot be received or a chunk cannot be stored
+     */
+    public void store(String fileName, Layout layout, InputStream in, long expectedChecksum,
+        Runnable accepted) throws IOException {
+        var buffer = new byte[FileTransfer.BUFFER_SIZE];
+        var crc = new CRC32C();
+        PartSink sink = null;
+        try {
+            for (int i = 0; i < layout.replicas().size(); i++) {
+                var length = layout.chunkLength(i);
+                sink = PartSink.open(dstore, chunkName(fileName, i), length, layout.replicas().get(i));
+                if (i == 0) {
+                    accepted.run();
+                }
+                for (var copied = 0L; copied < length; ) {
+                    var n = in.read(buffer, 0, (int) Math.min(buffer.length, length - copied));
+                    if (n < 0) {
+                        throw new EOFException("connection closed after " + (i * layout.chunkSize() + copied)
+                            + " of " + layout.size() + " bytes");
+                    }
+                    crc.update(buffer, 0, n);
+                    sink.write(buffer, 0, n);
+                    copied += n;
+                }
+                if (i == layout.replicas().size() - 1) {
+                    break;
+                }
+                sink.commit(true);
+                sink = null;
+            }
+            if (in instanceof FileTransfer.ChunkedInputStream chunked) {
+                chunked.readEnd();
+            }
+            if (expectedChecksum != FileTransfer.UNKNOWN_CHECKSUM && crc.getValue() != expectedChecksum) {
+                throw new FileTransfer.ChecksumException("received bytes do not match the sender's checksum");
+            }
+            sink.commit(true);
+        } catch (IOException | RuntimeException e) {
+            if (sink != null) {
+                sink.abort();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Sends part of a chunked file, fetching the next chunks from their Dstores while the current
+     * one is written. Each chunk is read from one of its replicas, a different one for consecutive
+     * chunks, and the next replica is tried if that fails.
+     * @param fileName the name of the file
+     * @param layout where the chunks are
+     * @param offset the position of the first byte to send
+     * @param length the number of bytes to send, within the file
+     * @param client the socket to write to
+     * @throws IOException if a chunk cannot be read from any replica or the client cannot be written
+     */
+    public void load(String fileName, Layout layout, long offset, long length, Socket client)
+        throws IOException {
+        if (length == 0) {
+            return;
+        }
+        var first = (int) (offset / layout.chunkSize());
+        var last = (int) ((offset + length - 1) / layout.chunkSize());
+        var pending = new ArrayDeque<Future<byte[]>>();
+        var next = first;
+        var out = client.getOutputStream();
+        try {
+            while (next <= last || !pending.isEmpty()) {
+                while (next <= last && pending.size() < LOAD_WINDOW) {
+                    //only the part of the chunk inside the range
+                    var chunk = next++;
+                    var chunkStart = chunk * layout.chunkSize();
+                    var from = Math.max(offset, chunkStart) - chunkStart;
+                    var to = Math.min(offset + length, chunkStart + layout.chunkLength(chunk)) - chunkStart;
+                    pending.add(fetches.submit(() -> fetch(fileName, layout, chunk, from, to - from)));
+                }
+                out.write(pending.poll().get());
+            }
+            out.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while loading " + fileName, e);
+        } catch (ExecutionException e) {
+            throw new IOException("error loading " + fileName + ": " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            pending.forEach(fetch -> fetch.cancel(true));
+        }
+    }
+
+    //reads part of a chunk from the first replica that has it
+    private byte[] fetch(String fileName, Layout layout, int chunk, long from, long length) throws IOException {
+        var name = chunkName(fileName, chunk);
+        var replicas = layout.replicas().get(chunk);
+        var bytes = new byte[(int) length];
+        for (int attempt = 0; attempt < replicas.size(); attempt++) {
+            var port = replicas.get((chunk + attempt) % replicas.size());
+            try {
+                if (port == dstore.port) {
+                    try (var file = dstore.open(name)) {
+                        var buffer = ByteBuffer.wrap(bytes);
+                        while (buffer.hasRemaining()) {
+                            if (file.read(buffer, from + buffer.position()) < 0) {
+                                throw new EOFException(name + " ended early");
+                            }
+                        }
+                    }
+                    return bytes;
+                }
+                try (var socket = new Socket(InetAddress.getLocalHost(), port)) {
+                    socket.setSoTimeout(dstore.timeout);
+                    var request = Protocol.LOAD_DATA_TOKEN + " " + name;
+                    if (from > 0 || length < layout.chunkLength(chunk)) {
+                        request += " " + from + " " + length; //a whole chunk is checked against its checksum
+                    }
+                    new PrintWriter(socket.getOutputStream(), true).println(request);
+                    if (socket.getInputStream().readNBytes(bytes, 0, bytes.length) < bytes.length) {
+                        throw new EOFException(name + " ended early");
+                    }
+                    return bytes;
+                }
+            } catch (IOException e) {
+                System.err.println("error reading " + name + " from Dstore " + port + ", trying another: " + e);
+            }
+        }
+        throw new IOException("no replica of " + name + " could be read");
+    }
+}
@@ -0,0 +1,391 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps files compressed at rest. A file is cut into blocks that are deflated on their own, so
+ * it can be written as it arrives and any range of it can be read without inflating what comes
+ * before. A block that does not get smaller is kept as it is. Every block carries the CRC32C of
+ * its stored bytes, so a compressed file can be checked, and copied to another Dstore, without
+ * being inflated.
+ *
+ * Layout: a header of MAGIC and the block size; for each block its size, its stored size, the
+ * CRC32C of its stored bytes and the stored bytes; an end marker, a block of size 0; then the
+ * position of every block, the size of the file, the number of blocks and MAGIC.
+ */
+public class Compression {
+
+    // the level of files kept as they are
+    static final int NONE = Deflater.NO_COMPRESSION;
+    private static final int MAGIC = 0x435a4231; // CZB1
+    static final int BLOCK_SIZE = 64 << 10;
+    private static final int HEADER = 4 + 4;
+    private static final int BLOCK_HEADER = 4 + 4 + 4;
+    private static final int TRAILER = 8 + 4 + 4;
+
+    /**
+     * @param mode none, fast or high
+     * @return the deflate level for the mode, {@link #NONE} for none
+     */
+    public static int levelOf(String mode) {
+        return switch (mode) {
+            case "none" -> NONE;
+            case "fast" -> Deflater.BEST_SPEED;
+            case "high" -> Deflater.BEST_COMPRESSION;
+            default -> throw new IllegalArgumentException("unknown compression option: " + mode);
+        };
+    }
+
+    /**
+     * @param out the stream the compressed file is written to, closed with the returned one
+     * @param level the deflate level
+     * @return a stream compressing what is written to it, the file is complete once it is closed
+     */
+    public static OutputStream encoder(OutputStream out, int level) {
+        return new Encoder(out, level);
+    }
+
+    /**
+     * Compresses a file held in memory
+     * @param bytes the contents of the file
+     * @param level the deflate level
+     * @return the compressed file, or null if it is not smaller than the contents
+     */
+    public static byte[] encode(byte[] bytes, int level) {
+        var encoded = new ByteArrayOutputStream(bytes.length);
+        try (var out = encoder(encoded, level)) {
+            out.write(bytes);
+        } catch (IOException e) {
+            throw new IllegalStateException("error compressing in memory", e); //never thrown
+        }
+        return encoded.size() < bytes.length ? encoded.toByteArray() : null;
+    }
+
+    /**
+     * @param out the stream a compressed file is written to, closed with the returned one
+     * @return a stream passing the file on to out while checking the CRC32C of every block, it
+     * throws {@link FileTransfer.ChecksumException} on a block that does not match, and on close if
+     * the file ended early
+     */
+    public static OutputStream verifying(OutputStream out) {
+        return new Verifier(out);
+    }
+
+    /**
+     * Reads a compressed file through a stored one
+     * @param stored the stored bytes of the compressed file
+     * @return the file as it was before it was compressed, closing it closes stored
+     * @throws IOException if the end of the file cannot be read or is not a compressed file
+     */
+    public static StoredFile decode(StoredFile stored) throws IOException {
+        var end = stored.size();
+        if (end < HEADER + BLOCK_HEADER + TRAILER) {
+            throw new FileTransfer.ChecksumException("too short for a compressed file");
+        }
+        var trailer = ByteBuffer.allocate(TRAILER);
+        readFully(stored, trailer, end - TRAILER);
+        var size = trailer.getLong(0);
+        var count = trailer.getInt(8);
+        if (trailer.getInt(12) != MAGIC || count < 0) {
+            throw new FileTransfer.ChecksumException("not a compressed file, or its end is corrupt");
+        }
+        var table = ByteBuffer.allocate(count * 8);
+        readFully(stored, table, end - TRAILER - table.capacity());
+        var positions = new long[count];
+        table.asLongBuffer().get(positions);
+        return new StoredFile(stored.channel(), stored.offset(), size, stored.release(),
+            new Blocks(stored, positions, size));
+    }
+
+    /**
+     * The blocks of a compressed file, one of them kept inflated for reads close to each other
+     */
+    static class Blocks {
+
+        private final StoredFile stored;
+        private final long[] positions;
+        private final long size;
+        private final Inflater inflater;
+        private final CRC32C crc;
+        private final byte[] compressed;
+        private final byte[] block;
+        private int current;
+        private int length;
+
+        private Blocks(StoredFile stored, long[] positions, long size) {
+            this.stored = stored;
+            this.positions = positions;
+            this.size = size;
+            this.inflater = new Inflater();
+            this.crc = new CRC32C();
+            this.compressed = new byte[BLOCK_SIZE];
+            this.block = new byte[BLOCK_SIZE];
+            this.current = -1;
+        }
+
+        /**
+         * @return the size of the file as it is stored
+         */
+        long storedSize() {
+            return stored.size();
+        }
+
+        synchronized int read(ByteBuffer buffer, long position) throws IOException {
+            if (position >= size) {
+                return -1;
+            }
+            var index = (int) (position / BLOCK_SIZE);
+            if (index != current) {
+                load(index);
+            }
+            var from = (int) (position - (long) index * BLOCK_SIZE);
+            var n = Math.min(buffer.remaining(), length - from);
+            buffer.put(block, from, n);
+            return n;
+        }
+
+        //reads a block, checks it and inflates it if it was compressed
+        private void load(int index) throws IOException {
+            current = -1;
+            var header = ByteBuffer.allocate(BLOCK_HEADER);
+            readFully(stored, header, positions[index]);
+            var rawLength = header.getInt(0);
+            var storedLength = header.getInt(4);
+            if (rawLength <= 0 || rawLength > BLOCK_SIZE || storedLength <= 0 || storedLength > rawLength) {
+                throw new FileTransfer.ChecksumException("corrupt header of block " + index);
+            }
+            var target = storedLength == rawLength ? block : compressed;
+            readFully(stored, ByteBuffer.wrap(target, 0, storedLength), positions[index] + BLOCK_HEADER);
+            crc.reset();
+            crc.update(target, 0, storedLength);
+            if ((int) crc.getValue() != header.getInt(8)) {
+                throw new FileTransfer.ChecksumException("block " + index + " does not match its checksum");
+            }
+            if (target == compressed) {
+                inflater.reset();
+                inflater.setInput(compressed, 0, storedLength);
+                try {
+                    if (inflater.inflate(block, 0, rawLength) != rawLength) {
+                        throw new FileTransfer.ChecksumException("block " + index + " inflates short");
+                    }
+                } catch (DataFormatException e) {
+                    throw new FileTransfer.ChecksumException("block " + index + " cannot be inflated: " + e);
+                }
+            }
+            current = index;
+            length = rawLength;
+        }
+
+        synchronized void close() {
+            inflater.end();
+        }
+    }
+
+    //cuts what is written into blocks and writes each compressed, the positions go at the end
+    private static class Encoder extends OutputStream {
+
+        private final DataOutputStream out;
+        private final Deflater deflater;
+        private final CRC32C crc;
+        private final byte[] block;
+        private final byte[] compressed;
+        private int length;
+        private long position;
+        private long size;
+        private long[] positions;
+        private int count;
+        private boolean closed;
+
+        Encoder(OutputStream out, int level) {
+            this.out = new DataOutputStream(out);
+            this.deflater = new Deflater(level);
+            this.crc = new CRC32C();
+            this.block = new byte[BLOCK_SIZE];
+            this.compressed = new byte[BLOCK_SIZE];
+            this.positions = new long[16];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            start();
+            while (len > 0) {
+                var n = Math.min(len, BLOCK_SIZE - length);
+                System.arraycopy(b, off, block, length, n);
+                length += n;
+                off += n;
+                len -= n;
+                if (length == BLOCK_SIZE) {
+                    writeBlock();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                start();
+                if (length > 0) {
+                    writeBlock();
+                }
+                out.writeInt(0); //the end marker
+                out.writeInt(0);
+                out.writeInt(0);
+                for (var i = 0; i < count; i++) {
+                    out.writeLong(positions[i]);
+                }
+                out.writeLong(size);
+                out.writeInt(count);
+                out.writeInt(MAGIC);
+                out.close();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private void start() throws IOException {
+            if (position == 0) {
+                out.writeInt(MAGIC);
+                out.writeInt(BLOCK_SIZE);
+                position = HEADER;
+            }
+        }
+
+        //the block is kept as it is if deflating it does not save anything
+        private void writeBlock() throws IOException {
+            deflater.reset();
+            deflater.setInput(block, 0, length);
+            deflater.finish();
+            var storedLength = deflater.deflate(compressed, 0, length - 1);
+            var stored = deflater.finished() ? compressed : block;
+            if (!deflater.finished()) {
+                storedLength = length;
+            }
+            crc.reset();
+            crc.update(stored, 0, storedLength);
+
+            if (count == positions.length) {
+                positions = Arrays.copyOf(positions, count * 2);
+            }
+            positions[count++] = position;
+            out.writeInt(length);
+            out.writeInt(storedLength);
+            out.writeInt((int) crc.getValue());
+            out.write(stored, 0, storedLength);
+            position += BLOCK_HEADER + storedLength;
+            size += length;
+            length = 0;
+        }
+    }
+
+    //checks the blocks of a compressed file as it passes through, the end is not checked
+    private static class Verifier extends FilterOutputStream {
+
+        private final byte[] header;
+        private final CRC32C crc;
+        private int have;
+        private int need;
+        private boolean started;
+        private boolean ended;
+        // bytes of the current block still to come, 0 while a header is read
+        private int remaining;
+        private int expected;
+
+        Verifier(OutputStream out) {
+            super(out);
+            this.header = new byte[BLOCK_HEADER];
+            this.crc = new CRC32C();
+            this.need = HEADER;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            while (len > 0 && !ended) {
+                if (remaining > 0) {
+                    var n = Math.min(len, remaining);
+                    crc.update(b, off, n);
+                    off += n;
+                    len -= n;
+                    remaining -= n;
+                    if (remaining == 0 && (int) crc.getValue() != expected) {
+                        throw new FileTransfer.ChecksumException("a block does not match its checksum");
+                    }
+                    continue;
+                }
+                var n = Math.min(len, need - have);
+                System.arraycopy(b, off, header, have, n);
+                have += n;
+                off += n;
+                len -= n;
+                if (have == need) {
+                    parse();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            if (!ended) {
+                throw new FileTransfer.ChecksumException("the compressed file ended early");
+            }
+        }
+
+        private void parse() throws IOException {
+            var fields = ByteBuffer.wrap(header);
+            have = 0;
+            if (!started) {
+                if (fields.getInt(0) != MAGIC) {
+                    throw new FileTransfer.ChecksumException("not a compressed file");
+                }
+                started = true;
+                need = BLOCK_HEADER;
+                return;
+            }
+            var rawLength = fields.getInt(0);
+            var storedLength = fields.getInt(4);
+            if (rawLength == 0) {
+                ended = true;
+                return;
+            }
+            if (rawLength < 0 || rawLength > BLOCK_SIZE || storedLength <= 0 || storedLength > rawLength) {
+                throw new FileTransfer.ChecksumException("corrupt block header");
+            }
+            crc.reset();
+            remaining = storedLength;
+            expected = fields.getInt(8);
+        }
+    }
+
+    private static void readFully(StoredFile file, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            var n = file.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new FileTransfer.ChecksumException("compressed file ends early");
+            }
+        }
+        buffer.flip();
+    }
+}
@@ -0,0 +1,120 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how a Dstore copes with many clients connected at once. A Dstore is started in a
+ * process of its own with the threads mode given, joined to a stand-in Controller, and N clients
+ * each connect, load a small file with LOAD_DATA and keep the connection open until all N are
+ * served. It prints the time to serve them all, the latencies, and the threads and resident
+ * memory of the Dstore read from /proc, so it needs Linux.
+ *
+ * Run it from the folder of the sources with:
+ *   javac -d out -cp client.jar *.java
+ *   java -cp out ConnectionBench [--threads=platform|virtual] [--connections=2000]
+ *     [--file-size=4k] [--cport=15000] [--port=15001]
+ * Many connections need a high limit of open files, ulimit -n.
+ */
+public class ConnectionBench {
+
+    private static final String FILE = "small";
+
+    public static void main(String[] args) throws Exception {
+        var options = new Options(args, 0);
+        var threads = options.get("threads", "virtual");
+        var connections = options.getInt("connections", 2000);
+        var fileSize = (int) options.getBytes("file-size", 4 << 10);
+        var cport = options.getInt("cport", 15000);
+        var port = options.getInt("port", 15001);
+
+        var folder = Files.createTempDirectory("connection-bench");
+        Files.write(folder.resolve(FILE), new byte[fileSize]);
+        var java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        try (var controller = new ServerSocket(cport)) {
+            var dstore = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "Dstore",
+                String.valueOf(port), String.valueOf(cport), "5000", folder.toString(), "--threads=" + threads)
+                .redirectOutput(new File("/dev/null"))
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+            //the JOIN is taken and left unanswered, the Dstore serves clients all the same
+            var join = controller.accept();
+            try {
+                Thread.sleep(500);
+                run(dstore, port, threads, connections, fileSize);
+            } finally {
+                dstore.destroyForcibly().waitFor();
+                join.close();
+            }
+        } finally {
+            try (var files = Files.walk(folder)) {
+                files.sorted(Collections.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+
+    private static void run(Process dstore, int port, String threads, int connections, int fileSize)
+        throws Exception {
+        var served = new AtomicInteger();
+        var latencies = new ConcurrentLinkedQueue<Long>();
+        var done = new CountDownLatch(connections);
+        var release = new CountDownLatch(1);
+        var start = System.nanoTime();
+        try (var clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < connections; i++) {
+                clients.submit(() -> {
+                    try (var socket = new Socket()) {
+                        socket.connect(new InetSocketAddress("localhost", port), 30_000);
+                        socket.setSoTimeout(60_000);
+                        var sent = System.nanoTime();
+                        socket.getOutputStream().write((Protocol.LOAD_DATA_TOKEN + " " + FILE + "\n")
+                            .getBytes(StandardCharsets.UTF_8));
+                        if (socket.getInputStream().readNBytes(fileSize).length == fileSize) {
+                            served.incrementAndGet();
+                            latencies.add(System.nanoTime() - sent);
+                        }
+                        //keeping the connection open until every client is served
+                        done.countDown();
+                        release.await();
+                    } catch (IOException | InterruptedException e) {
+                        done.countDown();
+                    }
+                    return null;
+                });
+            }
+            done.await(5, TimeUnit.MINUTES);
+            var seconds = (System.nanoTime() - start) / 1e9;
+            var status = Files.readAllLines(Path.of("/proc", String.valueOf(dstore.pid()), "status"));
+            var sorted = new ArrayList<>(latencies);
+            Collections.sort(sorted);
+            System.out.printf("%-8s connections=%d served=%d time=%.2fs p50=%.1fms p99=%.1fms threads=%s rss=%s%n",
+                threads, connections, served.get(), seconds, percentile(sorted, 0.5), percentile(sorted, 0.99),
+                field(status, "Threads"), field(status, "VmRSS"));
+            release.countDown();
+        }
+    }
+
+    private static double percentile(List<Long> sorted, double p) {
+        return sorted.isEmpty() ? 0 : sorted.get((int) (sorted.size() * p)) / 1e6;
+    }
+
+    private static String field(List<String> status, String name) {
+        return status.stream()
+            .filter(line -> line.startsWith(name + ":"))
+            .map(line -> line.substring(name.length() + 1).trim().replaceAll("\\s+", " "))
+            .findFirst()
+            .orElse("?");
+    }
+}
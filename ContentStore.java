@@ -0,0 +1,221 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps files with the same contents once. A file stored with deduplication on is hashed with
+ * SHA-256 as it arrives and its bytes are kept as a blob named after the hash, in a segment or a
+ * file of its own like any other stored file; the manifest maps the name of the file to the hash.
+ * Every blob has a count of the names referring to it, rebuilt from the manifest at startup, and
+ * is deleted when the last of them is removed or stored again with other contents. A blob is
+ * compressed if files are compressed at rest when it is first stored, and stays so.
+ */
+public class ContentStore {
+
+    // blobs are stored under this prefix followed by their hash
+    static final String BLOB_PREFIX = ".blob-";
+
+    private final Dstore dstore;
+    // key: SHA-256 in hex, value: the number of names referring to the blob
+    private final Map<String, Integer> references;
+    // SHA-256 in hex of the blobs kept compressed
+    private final Set<String> compressed;
+
+    /**
+     * @param dstore the Dstore keeping the blobs
+     */
+    public ContentStore(Dstore dstore) {
+        this.dstore = dstore;
+        this.references = new HashMap<>();
+        this.compressed = new HashSet<>();
+    }
+
+    /**
+     * @param content the SHA-256 of some contents in hex
+     * @return the name the blob of those contents is stored under
+     */
+    public static String blobName(String content) {
+        return BLOB_PREFIX + content;
+    }
+
+    /**
+     * @param fileName the name a file is stored under
+     * @return whether it is a blob rather than a file stored by a client
+     */
+    public static boolean isBlob(String fileName) {
+        return fileName.startsWith(BLOB_PREFIX);
+    }
+
+    /**
+     * Counts the references of every blob from the manifest
+     */
+    public synchronized void load() {
+        references.clear();
+        compressed.clear();
+        for (var entry : dstore.manifest.entries()) {
+            if (entry.content() != null) {
+                references.merge(entry.content(), 1, Integer::sum);
+                if (entry.compressed()) {
+                    compressed.add(entry.content());
+                }
+            }
+        }
+    }
+
+    /**
+     * @param content the SHA-256 of some contents in hex
+     * @return whether a blob of those contents is stored
+     */
+    public synchronized boolean contains(String content) {
+        return references.containsKey(content);
+    }
+
+    /**
+     * Receives a file and records it in the manifest as a reference to the blob of its contents.
+     * The bytes are received into memory or a temporary file while they are hashed, and dropped
+     * if a blob with the same hash is already stored.
+     * @param in the stream of the file, positioned at its first byte
+     * @param fileName the name of the file
+     * @param fileSize the size of the file
+     * @param expectedChecksum the CRC32C given by the sender, or {@link FileTransfer#UNKNOWN_CHECKSUM}
+     * @param forward the stream to copy the bytes to, or null
+     * @throws IOException if the file cannot be received or stored
+     */
+    public void receive(InputStream in, String fileName, long fileSize, long expectedChecksum,
+        OutputStream forward) throws IOException {
+        var digest = sha256();
+        if (dstore.segments.accepts(fileSize)) {
+            var bytes = new ByteArrayOutputStream((int) fileSize);
+            var checksum = FileTransfer.receive(in, fileSize, new DigestOutputStream(bytes, digest),
+                expectedChecksum, forward);
+            commit(fileName, fileSize, checksum, HexFormat.of().formatHex(digest.digest()), bytes.toByteArray(), null);
+            return;
+        }
+        var temp = Files.createTempFile(dstore.tempFolder(), "ingest", ".part");
+        try {
+            long checksum;
+            //hashing the contents as they arrive, before they are compressed
+            try (var out = new DigestOutputStream(dstore.encoding(Files.newOutputStream(temp)), digest)) {
+                checksum = FileTransfer.receive(in, fileSize, out, expectedChecksum, forward);
+            }
+            commit(fileName, fileSize, checksum, HexFormat.of().formatHex(digest.digest()), null, temp);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Records a file as a reference to a blob already stored, without receiving its bytes
+     * @param fileName the name of the file
+     * @param fileSize the size of the file
+     * @param checksum the CRC32C of the contents, or {@link FileTransfer#UNKNOWN_CHECKSUM}
+     * @param content the SHA-256 of the contents in hex
+     * @return whether the blob is stored, nothing is recorded if not
+     * @throws IOException if the manifest cannot be written
+     */
+    public synchronized boolean link(String fileName, long fileSize, long checksum, String content)
+        throws IOException {
+        if (!references.containsKey(content)) {
+            return false;
+        }
+        commit(fileName, fileSize, checksum, content, null, null);
+        return true;
+    }
+
+    /**
+     * Drops a reference to a blob, deleting the blob if it was the last one
+     * @param content the SHA-256 of the contents in hex
+     * @throws IOException if the blob cannot be deleted
+     */
+    public synchronized void release(String content) throws IOException {
+        var left = references.merge(content, -1, Integer::sum);
+        if (left > 0) {
+            return;
+        }
+        references.remove(content);
+        compressed.remove(content);
+        delete(blobName(content));
+    }
+
+    /**
+     * Takes a blob that does not match its checksum out of service, with every name referring
+     * to it, and keeps its bytes in the corrupt folder under the name of the file it was found by
+     * @param entry the entry of the corrupt file, already removed from the manifest
+     * @param corrupt the corrupt folder
+     * @throws IOException if the manifest cannot be written or the blob cannot be copied
+     */
+    public synchronized void quarantine(Manifest.Entry entry, Path corrupt) throws IOException {
+        var content = entry.content();
+        var names = 1;
+        for (var other : dstore.manifest.entries()) {
+            if (content.equals(other.content()) && dstore.manifest.remove(other.name()) != null) {
+                dstore.cache.invalidate(other.name());
+                names++;
+            }
+        }
+        var blob = blobName(content);
+        try (var file = dstore.openStored(blob); var out = Files.newOutputStream(corrupt.resolve(entry.name()))) {
+            FileTransfer.copy(file.channel(), file.offset(), file.size(), out);
+        }
+        references.remove(content);
+        compressed.remove(content);
+        delete(blob);
+        System.err.println("quarantined the blob " + content + " shared by " + names + " files");
+    }
+
+    //stores the blob unless it is there already, then points the name to it, a temporary file
+    //is compressed if files are compressed at rest
+    private synchronized void commit(String fileName, long fileSize, long checksum, String content,
+        byte[] bytes, Path temp) throws IOException {
+        if (references.containsKey(content)) {
+            System.out.println(fileName + " has the same contents as a stored file, keeping them once");
+        } else if (bytes != null) {
+            var encoded = dstore.encode(bytes);
+            dstore.segments.put(blobName(content), encoded != null ? encoded : bytes);
+            if (encoded != null) {
+                compressed.add(content);
+            }
+        } else {
+            Files.move(temp, dstore.path(blobName(content)), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+            if (dstore.compression != Compression.NONE) {
+                compressed.add(content);
+            }
+        }
+        references.merge(content, 1, Integer::sum);
+
+        //the reference is taken first, so storing a file again with the same contents keeps its blob
+        var previous = dstore.manifest.get(fileName);
+        dstore.manifest.put(fileName, fileSize, checksum, content, compressed.contains(content));
+        if (previous != null) {
+            dstore.delete(previous);
+        }
+        dstore.cache.invalidate(fileName);
+    }
+
+    private void delete(String blob) throws IOException {
+        if (!dstore.segments.remove(blob)) {
+            Files.deleteIfExists(dstore.path(blob));
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
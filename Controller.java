@@ -10,17 +10,21 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Comparator;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class Controller {
@@ -37,28 +41,88 @@ public class Controller {
     // time interval for rebalancing
     private static int rebalance_period;
     
-    // number of Dstores connected
-    private static int num_Dstores;
+    // how plain STOREs are replicated: FANOUT_TOKEN, the client sends to every Dstore,
+    // CHAIN_TOKEN, the client sends to the first Dstore and each one forwards to the next, or
+    // ERASURE_TOKEN, the first Dstore splits the file into shards instead of r replicas
+    private static String storeMode;
+    
+    // shards of an erasure-coded file, k data and m parity, each on its own Dstore
+    private static int erasureData;
+    private static int erasureParity;
+    
+    // files larger than the threshold are cut into chunks placed on their own, 0 for none
+    private static long chunkThreshold;
+    private static long chunkSize;
     
     // key: Dstore port, value: list of files
     private static Index index;
-    private static Map<Integer, Socket> dstoreSockets;
-    private static HashMap<String, CountDownLatch> latches; //latch, token expected, ports expected
-    private static List<ServiceThread> threads;
+    private static Placement placement;
+    private static RebalancePlanner planner;
+    private static FileLocks locks;
+    // key: file a rebalance is moving, value: the Dstores it leaves
+    private static Map<String, Set<Integer>> leaving;
+    // key: port, value: the control connection of the Dstore, with its replies read by one reader,
+    // one for each Dstore connected
+    private static Map<Integer, DstoreLink> dstores;
+    
+    // the threads serving the connections and waiting on the Dstores
+    private static ThreadFactory threads;
+    // held for a whole rebalance, a lock rather than a monitor, as a virtual thread blocked in a
+    // monitor keeps its carrier thread from running any other
+    private static ReentrantLock rebalancing;
     
     private static Timer rebalanceTimer;
     private static TimerTask rebalanceTask;
     
     public Controller(int cport, int r, int timeout, int rebalance_period) {
+        this(cport, r, timeout, rebalance_period, Options.defaults());
+    }
+    
+    public Controller(int cport, int r, int timeout, int rebalance_period, Options options) {
         Controller.cport = cport;
         Controller.r = r;
         Controller.timeout = timeout;
         Controller.rebalance_period = rebalance_period;
         
-        Controller.num_Dstores = 0;
         Controller.index = new Index();
-        Controller.dstoreSockets = new HashMap<>();
-        Controller.latches = new HashMap<>();
+        var placementMode = options.get("placement", "load");
+        Controller.placement = switch (placementMode) {
+            case "load" -> new Placement(false);
+            case "rendezvous" -> new Placement(true);
+            default -> throw new IllegalArgumentException("unknown placement option: " + placementMode);
+        };
+        Controller.planner = new RebalancePlanner(r, placement.rendezvous(), Controller::bytesOf);
+        Controller.locks = new FileLocks();
+        Controller.leaving = new ConcurrentHashMap<>();
+        Controller.dstores = new ConcurrentHashMap<>();
+        
+        var mode = options.get("store-mode", "fanout");
+        Controller.storeMode = switch (mode) {
+            case "fanout" -> Protocol.FANOUT_TOKEN;
+            case "chain" -> Protocol.CHAIN_TOKEN;
+            case "erasure" -> Protocol.ERASURE_TOKEN;
+            default -> throw new IllegalArgumentException("unknown store-mode option: " + mode);
+        };
+        Controller.erasureData = options.getInt("erasure-data", 4);
+        Controller.erasureParity = options.getInt("erasure-parity", 2);
+        if (!isValidCode(erasureData, erasureParity)) {
+            throw new IllegalArgumentException("invalid erasure code: " + erasureData + "+" + erasureParity);
+        }
+        
+        //virtual threads park on the sockets instead of holding a platform thread each, so a
+        //connection, or a Dstore waited on for a request, costs no thread creation
+        var threadsMode = options.get("threads", "virtual");
+        Controller.threads = switch (threadsMode) {
+            case "virtual" -> Thread.ofVirtual().name("controller-", 0).factory();
+            case "platform" -> Thread.ofPlatform().name("controller-", 0).factory();
+            default -> throw new IllegalArgumentException("unknown threads option: " + threadsMode);
+        };
+        Controller.rebalancing = new ReentrantLock();
+        Controller.chunkThreshold = options.getBytes("chunk-threshold", 0);
+        Controller.chunkSize = options.getBytes("chunk-size", 8 << 20);
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("invalid chunk size: " + chunkSize);
+        }
     }
     
     public void start() {
@@ -75,13 +139,10 @@ public class Controller {
         // Start the controller
         try {
             ServerSocket ss = new ServerSocket(cport);
-            threads = new ArrayList<>();
             for (; ; ) {
                 try {
                     Socket client = ss.accept();
-                    var thread = new ServiceThread(client);
-                    threads.add(thread);
-                    thread.start();
+                    threads.newThread(new ServiceThread(client)).start();
                     
                 } catch (Exception e) {
                     System.err.println("error in the listening loop:\n" + e);
@@ -92,39 +153,77 @@ public class Controller {
         }
     }
     
-    //any request should be sent over here
+    //any request should be sent over here, a STORE or REMOVE holds the lock of its file
+    //exclusively, waiting for the requests and the rebalance on the file before it, and a file
+    //still locked after the timeout is refused with the error the client knows for the request
     public static void handleRequest(String request, Socket client) {
         var requestWords = request.split(" ");
+        var store = requestWords[0].equals(Protocol.STORE_TOKEN);
+        var exclusive = requestWords.length > 1 && (store || requestWords[0].equals(Protocol.REMOVE_TOKEN));
+        if (!exclusive) {
+            serve(request, client);
+            return;
+        }
+        if (!locks.tryLock(requestWords[1], FileLocks.Mode.EXCLUSIVE, timeout, TimeUnit.MILLISECONDS)) {
+            try {
+                var out = new PrintWriter(client.getOutputStream(), true);
+                var reply = store
+                    ? Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN : Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN;
+                out.println(reply);
+                System.out.println("Refusing request as the file is still locked: " + reply);
+            } catch (IOException e) {
+                System.err.println("error in refusing the request for a locked file: " + e);
+            }
+            return;
+        }
+        try {
+            serve(request, client);
+        } finally {
+            locks.unlock(requestWords[1], FileLocks.Mode.EXCLUSIVE);
+        }
+    }
+    
+    private static void serve(String request, Socket client) {
+        var requestWords = request.split(" ");
         
         if (requestWords[0].equals(Protocol.JOIN_TOKEN)) {
             System.out.println("JOIN request received");
             
             int port = Integer.parseInt(requestWords[1]);
-            index.port2files.put(port, new ArrayList<>());
-            num_Dstores += 1;
+            
+            //telling the Dstore first, so it knows the mode before it can be chosen for a STORE
+            DstoreLink link;
+            try {
+                link = new DstoreLink(port, client);
+                link.send(Protocol.STORE_MODE_TOKEN + " " + storeMode
+                    + (chunkThreshold > 0 ? " " + Protocol.CHUNKS_TOKEN + " " + chunkThreshold : ""));
+            } catch (IOException e) {
+                System.err.println("error in sending STORE_MODE to Dstore " + port + ": " + e);
+                return;
+            }
+            index.addPort(port);
+            placement.add(port);
             
             try {
                 client.setKeepAlive(true);
             } catch (SocketException e) {
                 System.err.println("error in setting keep alive for Dstore " + port + ": " + e);
             }
-            dstoreSockets.put(port, client);
+            dstores.put(port, link);
             
+            //rebalancing on a thread of its own, the thread serving the JOIN goes on to read the
+            //replies of the Dstore, and with a Dstore lost noticed at once, one joining back up to
+            //r may bring the files the index lost with it
             System.out.println("Dstore " + port + " joined");
-            if (num_Dstores > r) {
+            if (dstores.size() >= r) {
                 System.out.println("Rebalancing...");
-                rebalanceTimer.cancel();
-                rebalanceTimer.purge();
-                rebalanceTask.run();
-                rebalanceTimer.scheduleAtFixedRate(rebalanceTask, 0, rebalance_period);
+                threads.newThread(rebalanceTask).start();
             }
         }
         else if (requestWords[0].equals(Protocol.STORE_TOKEN)) {
             System.out.println("STORE request received");
-            var thread = (ServiceThread) Thread.currentThread();
-            thread.ongoingCriticalOperation = true;
             
-            if (num_Dstores < r) { // not enough Dstores to store the file
+            if (dstores.size() < r) { // not enough Dstores to store the file
                 try {
                     var out = new PrintWriter(client.getOutputStream(), true);
                     out.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
@@ -138,105 +237,170 @@ public class Controller {
             
             //parsing the request
             var fileName = requestWords[1];
-            var fileSize = Integer.parseInt(requestWords[2]);
+            var fileSize = Long.parseLong(requestWords[2]);
+            var extras = List.of(requestWords).subList(3, requestWords.length);
             
-            synchronized (index) {
-                if (index.fileStatus.containsKey(fileName)) { // file already exists
-                    try {
-                        var out = new PrintWriter(client.getOutputStream(), true);
-                        out.println(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
-                        System.out.println("Refusing request as the file already exists");
-                    } catch (Exception e) {
-                        System.err.println(
-                            "error in sending ERROR_FILE_ALREADY_EXISTS request to Client: " + e);
-                    }
-                    return;
+            //the names with the part separator are kept for shards and chunks, so a Dstore never
+            //takes a client file for a part of another
+            if (fileName.contains(Protocol.PART_SEPARATOR)) {
+                try {
+                    var out = new PrintWriter(client.getOutputStream(), true);
+                    out.println(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+                    System.out.println("Refusing request as the file name is kept for parts: " + fileName);
+                } catch (Exception e) {
+                    System.err.println(
+                        "error in sending ERROR_FILE_ALREADY_EXISTS request to Client: " + e);
                 }
-                
-                //updating the index
-                index.file2ports.put(fileName, new ArrayList<>());
-                index.fileStatus.put(fileName, Status.STORING);
-                index.fileSizes.put(fileName, fileSize);
+                return;
             }
             
-            //selecting r Dstores to store the file
-            var portsToStore = index.port2files.entrySet().stream()
-                .sorted(Comparator.comparing(e -> e.getValue().size()))
-                .limit(r)
-                .map(Map.Entry::getKey)
-                .toList();
+            //an erasure-coded file needs a Dstore for each of its k + m shards instead of r
+            var clientChain = extras.contains(Protocol.CHAIN_TOKEN);
+            var erasure = extras.contains(Protocol.ERASURE_TOKEN)
+                || !clientChain && storeMode.equals(Protocol.ERASURE_TOKEN);
+            var data = erasureData;
+            var parity = erasureParity;
+            var code = extras.indexOf(Protocol.ERASURE_TOKEN);
+            if (code >= 0 && code + 2 < extras.size()) {
+                data = Integer.parseInt(extras.get(code + 1));
+                parity = Integer.parseInt(extras.get(code + 2));
+                if (!isValidCode(data, parity)) {
+                    System.out.println("invalid erasure code " + data + "+" + parity + ", using the default");
+                    data = erasureData;
+                    parity = erasureParity;
+                }
+            }
+            var width = erasure ? data + parity : r;
+            if (dstores.size() < width) {
+                try {
+                    var out = new PrintWriter(client.getOutputStream(), true);
+                    out.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+                    System.out.println("Refusing request as there are not enough DStores for the shards");
+                } catch (Exception e) {
+                    System.err.println(
+                        "error in sending ERROR_NOT_ENOUGH_DSTORES request to Client: " + e);
+                }
+                return;
+            }
+            
+            //updating the index, unless the file already exists
+            if (!index.addFile(fileName, fileSize)) {
+                try {
+                    var out = new PrintWriter(client.getOutputStream(), true);
+                    out.println(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+                    System.out.println("Refusing request as the file already exists");
+                } catch (Exception e) {
+                    System.err.println(
+                        "error in sending ERROR_FILE_ALREADY_EXISTS request to Client: " + e);
+                }
+                return;
+            }
+            
+            //selecting the r Dstores holding the fewest bytes to store the file, or one for each
+            //shard, and reserving the bytes on them until the store completes or fails
+            var chunked = !erasure && !clientChain && chunkThreshold > 0 && fileSize > chunkThreshold;
+            var reservations = new ArrayList<Placement.Reservation>();
+            var portsToStore = List.<Integer>of();
+            if (!chunked) {
+                var bytes = erasure
+                    ? new ErasureCoding.Layout(fileSize, data, parity, List.of()).shardSize()
+                    : fileSize;
+                reservations.add(placement.reserve(fileName, width, bytes));
+                portsToStore = reservations.get(0).ports();
+            }
+            
+            //the names each Dstore acknowledges, the file itself, one of its shards or its chunks
+            var storedNames = new LinkedHashMap<Integer, List<String>>();
+            Chunking.Layout chunkLayout = null;
+            if (chunked) {
+                chunkLayout = placeChunks(fileName, fileSize, reservations);
+                for (int i = 0; i < chunkLayout.replicas().size(); i++) {
+                    for (var port : chunkLayout.replicas().get(i)) {
+                        storedNames.computeIfAbsent(port, p -> new ArrayList<>()).add(Chunking.chunkName(fileName, i));
+                    }
+                }
+                portsToStore = List.copyOf(storedNames.keySet());
+            } else {
+                for (int i = 0; i < portsToStore.size(); i++) {
+                    storedNames.put(portsToStore.get(i), List.of(erasure ? ErasureCoding.shardName(fileName, i) : fileName));
+                }
+            }
             
             //creating the string to send to Client
             var portsString = portsToStore.stream()
                 .map(String::valueOf)
                 .collect(Collectors.joining(" "));
             
+            //waiting for a STORE_ACK of every name from the Dstore storing it, from before the
+            //Dstores can be sent the file, so no ack comes in before it is waited for
+            var acks = new DstoreLink.Acks(storedNames.values().stream().mapToInt(List::size).sum(), false);
+            storedNames.forEach((port, names) -> {
+                var link = dstores.get(port);
+                if (link == null) {
+                    System.out.println("Dstore " + port + " left, not waiting for its STORE_ACK");
+                    acks.fail();
+                    return;
+                }
+                names.forEach(name -> link.expect(Protocol.STORE_ACK_TOKEN + " " + name, acks));
+            });
+            
+            //in chain mode a plain client only gets the head of the chain and the head gets the
+            //rest from here, a client asking for CHAIN gets every port and passes them on itself,
+            //and an erasure-coded or chunked file goes to the Dstore of the first part, which gets
+            //the layout
+            String plan = null;
+            if (erasure) {
+                var layout = new ErasureCoding.Layout(fileSize, data, parity, portsToStore);
+                index.erasure.put(fileName, layout);
+                plan = layout.toWords();
+            } else if (chunked) {
+                index.chunks.put(fileName, chunkLayout);
+                plan = Protocol.CHUNKS_TOKEN + " " + chunkLayout.toWords();
+            } else if (!clientChain && storeMode.equals(Protocol.CHAIN_TOKEN)) {
+                plan = Protocol.CHAIN_TOKEN + portsToStore.subList(1, portsToStore.size()).stream()
+                    .map(port -> " " + port)
+                    .collect(Collectors.joining());
+            }
+            if (plan != null) {
+                var head = portsToStore.get(0);
+                try {
+                    dstores.get(head).send(Protocol.STORE_PLAN_TOKEN + " " + fileName + " " + plan);
+                } catch (Exception e) {
+                    System.err.println("error in sending STORE_PLAN to Dstore " + head + ": " + e);
+                }
+                portsString = String.valueOf(head);
+            }
+            
             //sending the request to the Client
             try {
                 System.out.println("sending STORE_TO request to the Client");
                 var out = new PrintWriter(client.getOutputStream(), true);
                 out.println(Protocol.STORE_TO_TOKEN + " " + portsString);
+                if (out.checkError()) {
+                    throw new IOException("the connection to the Client is closed");
+                }
             } catch (Exception e) {
                 System.err.println("error in sending STORE_TO request to Client: " + e);
+                storedNames.forEach((port, names) -> forget(port, Protocol.STORE_ACK_TOKEN, names));
                 index.removeFileStoreFailed(fileName);
+                reservations.forEach(placement::release);
+                return;
             }
             
-            //receiving the STORE_ACK from the DStores
-            System.out.println("setting up the countdown latch");
-            var countdown = new CountDownLatch(r); //countdown latch
-            
-            //creating latch for the STORE_ACK
-            latches.put(Protocol.STORE_ACK_TOKEN + " " + fileName, countdown);
-            var storeThread = Thread.currentThread();
-            portsToStore.forEach(port -> {
-                try {
-                    var socket = dstoreSockets.get(port);
-                    socket.setSoTimeout(timeout);
-                    
-                    //creating a thread to listen for the STORE_ACK
-                    new Thread(() -> {
-                        try {
-                            var in = new BufferedReader(
-                                new InputStreamReader(socket.getInputStream()));
-                            var line = in.readLine();
-                            System.out.println(line + " received in Thread " + port);
-                            
-                            if (line == null) {
-                                System.out.println("Connection to Dstore " + port + " lost, "
-                                    + "not waiting for STORE_ACK");
-                                removeDstore(port);
-                            }
-                            
-                            var latch = latches.get(line);
-                            if (latch == null)
-                                throw new IOException("error in finding the latch for: " + line);
-                            else
-                                latch.countDown();
-                        } catch (SocketTimeoutException e) {
-                            System.err.println("timeout in the STORE_ACK Thread for: " + port);
-                            storeThread.interrupt();
-                        } catch (IOException e) {
-                            System.err.println("error in the STORE_ACK Thread for: " + port + e);
-                            storeThread.interrupt();
-                        }
-                    }).start();
-                    
-                } catch (SocketException e) {
-                    System.err.println(
-                        "error in setting the timeout for Dstore " + port + ": " + e);
-                    index.removeFileStoreFailed(fileName);
-                }
-            });
-            
             System.out.println("Waiting for DStores to respond");
             try {
-                countdown.await();
+                var acked = acks.await(timeout);
+                storedNames.forEach((port, names) -> forget(port, Protocol.STORE_ACK_TOKEN, names));
+                if (!acked) {
+                    System.err.println("not every Dstore acknowledged the STORE of " + fileName + " in time");
+                    index.removeFileStoreFailed(fileName);
+                    reservations.forEach(placement::release);
+                    return;
+                }
                 
                 //updating the index after the file has been stored successfully
-                index.fileStatus.replace(fileName, Status.STORED);
-                portsToStore.forEach(port -> index.file2ports.get(fileName).add(port));
-                portsToStore.forEach(port -> index.port2files.get(port).add(fileName));
-                latches.remove(Protocol.STORE_ACK_TOKEN + " " + fileName);
+                index.storeComplete(fileName, storedNames);
+                reservations.forEach(placement::commit);
                 
                 System.out.println(
                     "all DStores have responded, sending STORE_COMPLETE request to Client");
@@ -244,8 +408,9 @@ public class Controller {
                 out.println(Protocol.STORE_COMPLETE_TOKEN);
                 
             } catch (InterruptedException e) {
-                System.err.println("error in waiting for the countdown latch: " + e);
+                System.err.println("error in waiting for the STORE_ACKs: " + e);
                 index.removeFileStoreFailed(fileName);
+                reservations.forEach(placement::release);
             } catch (IOException e) {
                 System.err.println("error in sending STORE_COMPLETE request to Client: " + e);
                 index.removeFileStoreFailed(fileName);
@@ -255,7 +420,7 @@ public class Controller {
         else if (requestWords[0].equals(Protocol.LOAD_TOKEN)) {
             System.out.println("LOAD request received");
             
-            if (num_Dstores < r) { // not enough Dstores to load the file
+            if (dstores.size() < r) { // not enough Dstores to load the file
                 try {
                     var out = new PrintWriter(client.getOutputStream(), true);
                     out.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
@@ -270,7 +435,41 @@ public class Controller {
             //parsing the request
             var fileName = requestWords[1];
             
-            if (index.fileStatus.get(fileName) != Status.STORED) { // file does not exist
+            //looking the file up under a shared lock, so a STORE or REMOVE of it is not half seen,
+            //a file not stored yet or being removed does not exist without waiting for its lock,
+            //and one still stored but locked after the timeout cannot be loaded
+            List<Integer> ports = null;
+            Long fileSize = null;
+            Set<Integer> leavingPorts = null;
+            ErasureCoding.Layout layout = null;
+            Chunking.Layout chunkLayout = null;
+            var found = index.statusOf(fileName) == Status.STORED;
+            if (found && !locks.tryLock(fileName, FileLocks.Mode.SHARED, timeout, TimeUnit.MILLISECONDS)) {
+                found = false;
+                if (index.statusOf(fileName) == Status.STORED) {
+                    try {
+                        var out = new PrintWriter(client.getOutputStream(), true);
+                        out.println(Protocol.ERROR_LOAD_TOKEN);
+                        System.out.println("Refusing request as the file is still locked");
+                    } catch (Exception e) {
+                        System.err.println(
+                            "error in sending ERROR_LOAD request to Client: " + e);
+                    }
+                    return;
+                }
+            } else if (found) {
+                try {
+                    found = index.statusOf(fileName) == Status.STORED;
+                    ports = index.portsOf(fileName);
+                    fileSize = index.sizeOf(fileName);
+                    leavingPorts = leaving.get(fileName);
+                    layout = index.erasure.get(fileName);
+                    chunkLayout = index.chunks.get(fileName);
+                } finally {
+                    locks.unlock(fileName, FileLocks.Mode.SHARED);
+                }
+            }
+            if (!found || ports == null || fileSize == null) { // file does not exist
                 try {
                     var out = new PrintWriter(client.getOutputStream(), true);
                     out.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
@@ -282,17 +481,72 @@ public class Controller {
                 return;
             }
             
-            //selecting r Dstores to load the file
-            var ports = index.file2ports.get(fileName);
-            var portsToLoad = new ArrayList<>(ports); //copy of the list
-            var fileSize = index.fileSizes.get(fileName);
+            //selecting r Dstores to load the file, any Dstore holding a shard can rebuild an
+            //erasure-coded one, the data shards first as they are read without decoding
+            var portsToLoad = new ArrayList<>(ports); //copy of the set
+            if (leavingPorts != null) {
+                //a file a rebalance is moving is read from the Dstores it stays on first
+                var last = portsToLoad.stream().filter(leavingPorts::contains).toList();
+                portsToLoad.removeAll(last);
+                portsToLoad.addAll(last);
+            }
+            if (layout != null) {
+                portsToLoad = new ArrayList<>(layout.ports());
+                portsToLoad.removeIf(port -> port == 0);
+            }
+            
+            //a chunked file is loaded through any Dstore holding a chunk, which fetches the others
+            //in parallel, and a client asking for CHUNKS gets the layout to fetch them itself
+            String plan = null;
+            if (layout != null) {
+                plan = layout.toWords();
+            } else if (chunkLayout != null) {
+                plan = Protocol.CHUNKS_TOKEN + " " + chunkLayout.toWords();
+                if (requestWords.length == 3 && requestWords[2].equals(Protocol.CHUNKS_TOKEN)) {
+                    try {
+                        var out = new PrintWriter(client.getOutputStream(), true);
+                        out.println(Protocol.LOAD_CHUNKS_TOKEN + " " + chunkLayout.toWords());
+                    } catch (IOException e) {
+                        System.err.println("error in sending LOAD_CHUNKS request to Client: " + e);
+                    }
+                    return;
+                }
+            }
+            
+            //the range to load, the whole file unless the client asked for part of it
+            var ranged = requestWords.length > 3;
+            var rangeStart = ranged ? Long.parseLong(requestWords[2]) : 0;
+            var rangeEnd = ranged ? Math.min(fileSize, rangeStart + Long.parseLong(requestWords[3])) : fileSize;
+            if (rangeStart < 0 || rangeStart > fileSize || rangeEnd < rangeStart) {
+                try {
+                    var out = new PrintWriter(client.getOutputStream(), true);
+                    out.println(Protocol.ERROR_LOAD_TOKEN);
+                    System.out.println("Refusing request as the range is not in the file");
+                } catch (Exception e) {
+                    System.err.println("error in sending ERROR_LOAD request to Client: " + e);
+                }
+                return;
+            }
+            var offset = rangeStart; //first byte the client has not received yet
             
             while (!portsToLoad.isEmpty()) {
                 var port = portsToLoad.remove(0);
                 
+                //telling the Dstore where the parts are before the client asks it for the file
+                if (plan != null) {
+                    try {
+                        dstores.get(port).send(Protocol.LOAD_PLAN_TOKEN + " " + fileName + " " + plan);
+                    } catch (Exception e) {
+                        System.err.println("error in sending LOAD_PLAN to Dstore " + port + ": " + e);
+                    }
+                }
+                
                 try {
                     var out = new PrintWriter(client.getOutputStream(), true);
                     var message = Protocol.LOAD_FROM_TOKEN + " " + port + " " + fileSize;
+                    if (ranged || offset > 0) {
+                        message += " " + offset + " " + (rangeEnd - offset);
+                    }
                     out.println(message);
                     System.out.println("sending LOAD_FROM to the Client: " + message);
                 } catch (IOException e) {
@@ -316,7 +570,12 @@ public class Controller {
                         System.out.println("Connection to Client closed");
                         return; //exit handleRequest as request has been served
                     }
-                    else if (line.equals(Protocol.RELOAD_TOKEN + " " + fileName)) {
+                    else if (isReload(line, fileName)) {
+                        //resuming after what the client already has instead of starting again
+                        var words = line.split(" ");
+                        if (words.length > 2) {
+                            offset = Math.min(rangeEnd, rangeStart + Long.parseLong(words[2]));
+                        }
                         if (portsToLoad.isEmpty()) {
                             System.out.println("RELOAD request received. "
                                 + "No more DStores Available, sending ERROR_LOAD");
@@ -344,10 +603,8 @@ public class Controller {
         }
         else if (requestWords[0].equals(Protocol.REMOVE_TOKEN)) {
             System.out.println("REMOVE request received");
-            var thread = (ServiceThread) Thread.currentThread();
-            thread.ongoingCriticalOperation = true;
             
-            if (num_Dstores < r) { // not enough Dstores to remove the file
+            if (dstores.size() < r) { // not enough Dstores to remove the file
                 try {
                     var out = new PrintWriter(client.getOutputStream(), true);
                     out.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
@@ -362,110 +619,93 @@ public class Controller {
             //parsing the request
             var fileName = requestWords[1];
             
-            synchronized (index) {
-                if (index.fileStatus.get(fileName) != Status.STORED) { // file does not exist
-                    try {
-                        var out = new PrintWriter(client.getOutputStream(), true);
-                        out.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
-                        System.out.println("Refusing request as the file does not exist");
-                    } catch (Exception e) {
-                        System.err.println(
-                            "error in sending ERROR_FILE_DOES_NOT_EXIST request to Client: " + e);
+            //updating the index, unless the file does not exist
+            if (!index.startRemove(fileName)) {
+                try {
+                    var out = new PrintWriter(client.getOutputStream(), true);
+                    out.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+                    System.out.println("Refusing request as the file does not exist");
+                } catch (Exception e) {
+                    System.err.println(
+                        "error in sending ERROR_FILE_DOES_NOT_EXIST request to Client: " + e);
+                }
+                return;
+            }
+            
+            //getting the r DStores to remove the file from, with the names each one holds, the
+            //file itself, one of its shards or its chunks
+            var portsToRemove = index.portsOf(fileName);
+            var removedNames = new HashMap<Integer, List<String>>();
+            var layout = index.erasure.get(fileName);
+            var chunkLayout = index.chunks.get(fileName);
+            if (layout != null) {
+                for (int i = 0; i < layout.ports().size(); i++) {
+                    if (layout.ports().get(i) != 0) {
+                        removedNames.computeIfAbsent(layout.ports().get(i), p -> new ArrayList<>())
+                            .add(ErasureCoding.shardName(fileName, i));
                     }
-                    return;
                 }
-                
-                //updating the index
-                index.fileStatus.replace(fileName, Status.REMOVING);
+            } else if (chunkLayout != null) {
+                for (int i = 0; i < chunkLayout.replicas().size(); i++) {
+                    for (var port : chunkLayout.replicas().get(i)) {
+                        removedNames.computeIfAbsent(port, p -> new ArrayList<>())
+                            .add(Chunking.chunkName(fileName, i));
+                    }
+                }
+            } else {
+                portsToRemove.forEach(port -> removedNames.put(port, List.of(fileName)));
             }
             
-            //getting the r DStores to remove the file from
-            var portsToRemove = index.file2ports.get(fileName);
+            //the bytes each Dstore gets back, counted while the file is still in the index
+            var freed = new HashMap<Integer, Long>();
+            removedNames.forEach((port, names) -> names.forEach(
+                name -> freed.merge(port, bytesOf(name), Long::sum)));
             
-            //setting up the latch for the REMOVE_ACK
-            System.out.println("setting up the countdown latch for REMOVE_ACK");
-            var countdown = new CountDownLatch(r); //countdown latch
-            latches.put(Protocol.REMOVE_ACK_TOKEN + " " + fileName, countdown);
+            //waiting for a REMOVE_ACK of every name from the Dstore holding it, a Dstore lost
+            //meanwhile counts as done, it holds nothing any more
+            var acks = new DstoreLink.Acks(removedNames.values().stream().mapToInt(List::size).sum(), true);
             
-            //removing from DStores
-            var removeThread = Thread.currentThread();
-            portsToRemove.forEach(port -> { //make a thread for each Dstore
-                System.out.println("setting up the Thread for Dstore " + port);
+            //removing from DStores, the REMOVEs are sent down the control connection of each one
+            //and its reader hands the acks back
+            removedNames.forEach((port, names) -> {
+                var link = dstores.get(port);
+                if (link == null) {
+                    System.out.println("Dstore " + port + " left, not waiting for its REMOVE_ACK");
+                    names.forEach(name -> acks.ack());
+                    return;
+                }
+                names.forEach(name -> link.expect(Protocol.REMOVE_ACK_TOKEN + " " + name, acks));
                 try {
-                    var socket = dstoreSockets.get(port);
-                    socket.setSoTimeout(timeout);
-                    
-                    new Thread(() -> {
-                        //sending the REMOVE request
-                        try {
-                            var out = new PrintWriter(socket.getOutputStream(), true);
-                            out.println(request);
-                            System.out.println("sending REMOVE to Dstore " + port);
-                        } catch (IOException e) {
-                            System.err.println(
-                                "error in sending REMOVE request to Dstore " + port + ": " + e);
-                            removeThread.interrupt();
-                        }
-                        
-                        //listening for the REMOVE_ACK
-                        try {
-                            System.out.println("listening for REMOVE_ACK from Dstore " + port);
-                            var in = new BufferedReader(
-                                new InputStreamReader(socket.getInputStream()));
-                            var line = in.readLine();
-                            System.out.println(line + " received in Thread " + port);
-                            
-                            var latch = latches.get(line);
-                            if (latch != null) { //if the latch is found
-                                latch.countDown();
-                            } else if (line == null) {
-                                System.out.println("Connection to Dstore " + port + " lost, "
-                                    + "not waiting for REMOVE_ACK");
-                                removeDstore(port);
-                                portsToRemove.remove(port);
-                                latch = latches.get(Protocol.REMOVE_ACK_TOKEN + " " + fileName);
-                                if (latch != null)
-                                    latch.countDown();
-                            } else if (line.equals(
-                                Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + " " + fileName)) {
-                                System.out.println(fileName + " does not exist in Dstore " + port);
-                                latch = latches.get(Protocol.REMOVE_ACK_TOKEN + " " + fileName);
-                                if (latch != null)
-                                    latch.countDown();
-                            } else {
-                                System.err.println("error in finding the latch for: " + line);
-                            }
-                        } catch (SocketTimeoutException e) {
-                            System.err.println("timeout in the REMOVE_ACK Thread for: " + port);
-                            removeThread.interrupt();
-                        } catch (IOException e) {
-                            System.err.println("error in the REMOVE_ACK Thread for: " + port + e);
-                            removeThread.interrupt();
-                        }
-                    }).start();
+                    for (var removedName : names) {
+                        link.send(Protocol.REMOVE_TOKEN + " " + removedName);
+                    }
+                    System.out.println("sending REMOVE to Dstore " + port);
                 } catch (IOException e) {
-                    System.err.println(
-                        "error in sending REMOVE request to Dstore " + port + ": " + e);
+                    System.err.println("error in sending REMOVE request to Dstore " + port + ": " + e);
                 }
             });
             
             //waiting for all the REMOVE_ACK
             System.out.println("Waiting for DStores to respond");
             try {
-                countdown.await();
+                var acked = acks.await(timeout);
+                removedNames.forEach((port, names) -> forget(port, Protocol.REMOVE_ACK_TOKEN, names));
+                if (!acked) {
+                    System.err.println("not every Dstore acknowledged the REMOVE of " + fileName + " in time");
+                    return;
+                }
                 System.out.println("all DStores have responded");
                 
                 //updating the index after the file has been removed successfully
                 System.out.println(
                     "updating the index after the file has been removed successfully");
                 index.removeFileRemoveComplete(fileName);
-                portsToRemove.forEach(port -> index.port2files.get(port).remove(fileName));
+                placement.free(freed);
                 
                 //sending REMOVE_COMPLETE request to the Client
                 System.out.println("sending REMOVE_COMPLETE request to Client");
                 var out = new PrintWriter(client.getOutputStream(), true);
                 out.println(Protocol.REMOVE_COMPLETE_TOKEN);
-                latches.remove(Protocol.REMOVE_ACK_TOKEN + " " + fileName);
                 
             } catch (InterruptedException e) {
                 System.err.println("All DStores did not respond in time: " + e);
@@ -477,7 +717,7 @@ public class Controller {
         else if (requestWords[0].equals(Protocol.LIST_TOKEN)) {
             System.out.println("LIST request received");
             
-            if (num_Dstores < r) { // not enough Dstores to remove the file
+            if (dstores.size() < r) { // not enough Dstores to remove the file
                 try {
                     var out = new PrintWriter(client.getOutputStream(), true);
                     out.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
@@ -490,10 +730,7 @@ public class Controller {
             }
             
             //creating the string to send to Client
-            var filesString = index.fileStatus.entrySet().stream()
-                .filter(e -> e.getValue() == Status.STORED)
-                .map(Map.Entry::getKey)
-                .collect(Collectors.joining(" "));
+            var filesString = String.join(" ", index.files(Status.STORED));
             
             try {
                 var out = new PrintWriter(client.getOutputStream(), true);
@@ -517,299 +754,218 @@ public class Controller {
     }
     
     public void rebalance() {
-        
-        if (num_Dstores < r) {
-            System.out.println("Not enough Dstores to Rebalance");
-            return;
-        }
-        
-        // wait for all ongoing store/remove operations to finish
-        for (var thread : threads) {
-            thread.ongoingRebalance = true;
-            while (thread.ongoingCriticalOperation) {
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    System.err.println("interrupted rebalance: " + e);
-                }
+        rebalancing.lock();
+        try {
+            if (dstores.size() < r) {
+                System.out.println("Not enough Dstores to Rebalance");
+                return;
+            }
+            
+            //requests are served meanwhile, the files they store or remove from now on are not
+            //moved, and the Dstores are sent LIST and REBALANCE on connections of their own, so
+            //the replies do not mix with the acks of the requests
+            var links = new ConcurrentHashMap<Integer, Socket>();
+            var moved = new ArrayList<String>();
+            locks.track();
+            try {
+                rebalance(links, moved);
+            } finally {
+                leaving.clear();
+                moved.forEach(file -> locks.unlock(file, FileLocks.Mode.SHARED));
+                locks.untrack();
+                System.out.println("file locks: " + locks);
+                links.forEach((port, link) -> {
+                    try {
+                        link.close();
+                    } catch (IOException e) {
+                        System.err.println("error in closing the rebalance connection to Dstore: " + port + e);
+                    }
+                });
             }
+        } finally {
+            rebalancing.unlock();
         }
+    }
+    
+    private void rebalance(Map<Integer, Socket> links, List<String> moved) {
         
         // set up for LIST
-        var rebalanceThread = Thread.currentThread();
-        var countdown = new CountDownLatch(num_Dstores); //countdown latch
-        latches.put(Protocol.LIST_TOKEN, countdown);
+        var listed = List.copyOf(dstores.keySet());
         var fileList = new ArrayList<String>();
         var dstoreFiles = new HashMap<Integer, List<String>>();
         
-        //list sent to all Dstores
-        for (var port : dstoreSockets.keySet()) {
-            new Thread(() -> {
-                try {
-                    var socket = dstoreSockets.get(port);
-                    socket.setSoTimeout(timeout);
-                    if (socket.isClosed()) {
-                        System.out.println("Connection to Dstore " + port + " lost, "
-                            + "not sending LIST request");
-                        removeDstore(port);
-                        latches.get(Protocol.LIST_TOKEN).countDown();
-                    }
-                    
-                    System.out.println("sending LIST request to Dstore: " + port);
+        //list sent to all Dstores, each on a thread of its own, and all of them joined on closing
+        try (var scope = Executors.newThreadPerTaskExecutor(threads)) {
+            for (var port : listed) {
+                scope.execute(() -> {
                     try {
-                        var out = new PrintWriter(socket.getOutputStream(), true);
-                        out.println(Protocol.LIST_TOKEN);
-                    } catch (IOException e) {
-                        System.err.println("error in sending LIST request to Dstore: " + port + e);
-                    }
-                    
-                    System.out.println("waiting for LIST response from Dstore: " + port);
-                    try {
-                        var in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                        var line = in.readLine();
-                        System.out.println(line + " received from Dstore: " + port);
-                        
-                        if (line == null) {
+                        var link = dstores.get(port);
+                        if (link == null || link.socket().isClosed()) {
                             System.out.println("Connection to Dstore " + port + " lost, "
-                                + "not waiting for LIST response");
-                            removeDstore(port);
-                            latches.get(Protocol.LIST_TOKEN).countDown();
+                                + "not sending LIST request");
+                            if (link != null) {
+                                removeDstore(port);
+                            }
+                            return;
                         }
+                        var socket = new Socket(link.socket().getInetAddress(), port);
+                        links.put(port, socket);
+                        socket.setSoTimeout(timeout);
                         
-                        var filesString = line.split(" ");
-                        assert filesString[0].equals(Protocol.LIST_TOKEN);
-                        var files = List.of(filesString).subList(1, filesString.length);
-                        fileList.addAll(files);
-                        dstoreFiles.put(port, new ArrayList<>(files));
-                        latches.get(Protocol.LIST_TOKEN).countDown();
+                        System.out.println("sending LIST request to Dstore: " + port);
+                        try {
+                            var out = new PrintWriter(socket.getOutputStream(), true);
+                            out.println(Protocol.LIST_TOKEN);
+                        } catch (IOException e) {
+                            System.err.println("error in sending LIST request to Dstore: " + port + e);
+                        }
+                        
+                        System.out.println("waiting for LIST response from Dstore: " + port);
+                        try {
+                            var in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                            var line = in.readLine();
+                            System.out.println(line + " received from Dstore: " + port);
+                            
+                            if (line == null) {
+                                System.out.println("Connection to Dstore " + port + " lost, "
+                                    + "not waiting for LIST response");
+                                removeDstore(port);
+                                return;
+                            }
+                            
+                            var filesString = line.split(" ");
+                            assert filesString[0].equals(Protocol.LIST_TOKEN);
+                            var files = List.of(filesString).subList(1, filesString.length);
+                            synchronized (dstoreFiles) {
+                                fileList.addAll(files);
+                                dstoreFiles.put(port, new ArrayList<>(files));
+                            }
+                            
+                        } catch (SocketTimeoutException e) {
+                            System.err.println("timeout in the LIST response from Dstore: " + port);
+                        } catch (AssertionError e) {
+                            System.err.println("DStore " + port + " sent an invalid LIST response: " + e);
+                        } catch (IOException e) {
+                            System.err.println("error in receiving LIST response from Dstore: " + port + e);
+                        }
                         
-                    } catch (SocketTimeoutException e) {
-                        System.err.println("timeout in the LIST response from Dstore: " + port);
-                        latches.get(Protocol.LIST_TOKEN).countDown();
-                    } catch (AssertionError e) {
-                        System.err.println("DStore " + port + " sent an invalid LIST response: " + e);
-                        latches.get(Protocol.LIST_TOKEN).countDown();
                     } catch (IOException e) {
-                        System.err.println("error in receiving LIST response from Dstore: " + port + e);
-                        latches.get(Protocol.LIST_TOKEN).countDown();
+                        System.err.println("error in connecting to Dstore: " + port + e);
                     }
-                    
-                } catch (SocketException e) {
-                    System.err.println("error in setting the timeout for Dstore: " + port + e);
-                    latches.get(Protocol.LIST_TOKEN).countDown();
-                }
-            }).start();
-        }
-        
-        //wait for all Dstores to respond
-        try {
-            countdown.await();
-            System.out.println("all Dstores have responded to the LIST request");
-        } catch (InterruptedException e) {
-            System.err.println("error in waiting for the LIST countdown latch: " + e);
+                });
+            }
         }
+        System.out.println("all Dstores have responded to the LIST request");
         
         //checking if more than r Dstores responded
         if (dstoreFiles.size() < r) {
             System.out.println("Not enough Dstores successfully responded to the LIST request");
-            // Rebalance aborted - threads are now free to handle requests
-            for (var thread : threads) {
-                thread.ongoingRebalance = false;
-            }
             return;
         }
         
-        //revise file allocation
-        var fileAmounts = new HashMap<String, Integer>(); //count how many times each file is stored
-        for (var file : fileList) {
-            fileAmounts.put(file, fileAmounts.getOrDefault(file, 0) + 1);
-        }
-        
-        var distinctFileList = (ArrayList<String>) fileList.stream().distinct()
-            .toList(); //remove duplicates
+        //shards of erasure-coded files are kept apart, they are rebuilt rather than copied
+        var dstoreShards = new HashMap<Integer, List<String>>();
+        var load = new HashMap<Integer, Integer>();
+        dstoreFiles.forEach((port, files) -> {
+            var shards = files.stream().filter(file -> index.shardOf(file) != null).toList();
+            files.removeAll(new HashSet<>(shards));
+            dstoreShards.put(port, new ArrayList<>(shards));
+            load.put(port, files.size() + shards.size());
+        });
+        fileList.removeIf(file -> index.shardOf(file) != null);
+        var shardsToRemove = planShards(dstoreShards, load);
         
-        var fileToRemove = new ArrayList<String>(); //file to completely remove from the system
+        //revise file allocation
+        var listedNames = new HashSet<>(fileList); //every name listed, once
+        var fileToRemove = new HashSet<String>(); //file to completely remove from the system
         
-        //checking for files that are not in the index
-        for (var file : distinctFileList) {
-            if (!index.fileStatus.containsKey(file)) {
-                distinctFileList.remove(file);
-                fileAmounts.remove(file);
+        //checking for files that are not in the index, a chunk counts as its file
+        for (var file : listedNames) {
+            if (index.statusOf(index.ownerOf(file)) == null) {
                 fileToRemove.add(file);
             }
         }
         
         //checking for files that are in removing status (failed remove operation)
-        var indexFilesInRemoving = index.fileStatus.entrySet().stream()
-            .filter(e -> e.getValue() == Status.REMOVING)
-            .map(Map.Entry::getKey)
-            .toList();
-        indexFilesInRemoving.forEach((file) -> {
-            distinctFileList.remove(file);
-            fileAmounts.remove(file);
-            fileToRemove.add(file);
-        });
-        
-        //checking for files in index but not in any Dstores
-        for (var file : index.fileStatus.keySet()) {
-            if (!distinctFileList.contains(file)) {
-                index.removeFileRemoveComplete(file); //remove from index
+        fileToRemove.addAll(index.files(Status.REMOVING));
+        for (var file : listedNames) {
+            if (index.chunkOf(file) != null && index.statusOf(index.ownerOf(file)) == Status.REMOVING) {
+                fileToRemove.add(file);
             }
         }
         
-        //reviewing what files must we reduced/increased to reach the desired r
-        var fileToReduce = new HashMap<String, Integer>();
-        var fileToStore = new HashMap<String, Integer>();
-        for (var filePair : fileAmounts.entrySet()) {
-            if (filePair.getValue() > r) {
-                fileToReduce.put(filePair.getKey(), filePair.getValue() - r);
-            }
-            else if (filePair.getValue() < r) {
-                fileToStore.put(filePair.getKey(), r - filePair.getValue());
+        //checking for chunked files with a chunk not in any Dstores, the rest of them is useless
+        for (var entry : List.copyOf(index.chunks.entrySet())) {
+            var file = entry.getKey();
+            var count = entry.getValue().replicas().size();
+            if (index.statusOf(file) != Status.STORED) {
+                continue;
             }
-        }
-        
-        var f = fileAmounts.size();
-        var d = dstoreFiles.size();
-        // r
-        var maxNum = (int) Math.ceil((double) f * r / d);
-        var minNum = (int) Math.floor((double) f * r / d);
-        
-        //creating the DStore Pairs (files to send, files to remove)
-        // dstoreNum -> (files to send, files to remove)
-        // files to send = List<Pair<String,List<Integer>>> = list of pairs of file to send, list of ports to send to
-        // files to remove = List<String> = list of files to remove
-        var dstorePairs = new HashMap<Integer, Pair< ArrayList<Pair<String,ArrayList<Integer>>>, ArrayList<String> >>();
-        
-        //remove definitely
-        var dstoreToRemove = new HashMap<Integer, ArrayList<String>>();
-        for (var port : dstoreFiles.keySet()) {
-            var files = dstoreFiles.get(port);
-            var toRemove = new ArrayList<String>();
-            
-            for (var file : fileToRemove) {
-                if (files.contains(file)) {
-                    dstoreFiles.get(port).remove(file);
-                    toRemove.add(file);
+            var missing = 0;
+            for (int i = 0; i < count; i++) {
+                if (!listedNames.contains(Chunking.chunkName(file, i))) {
+                    missing++;
                 }
             }
-            dstoreToRemove.put(port, toRemove);
-        }
-        
-        //TODO remove this maybe as the below code should handle this
-        // "situation where file is still stored too many times"
-        //remove if dstore stores too many & file is stored too many times
-        for (var port : dstoreFiles.keySet()) {
-            //for each dstore, check if the files is stores more than the maxNum
-            for (var file : dstoreFiles.get(port)) {
-                if (fileToReduce.containsKey(file) &&
-                    fileToReduce.get(file) > 0  &&
-                    dstoreFiles.size() > maxNum) {
-                    
-                    fileToReduce.put(file, fileToReduce.get(file) - 1);
-                    dstoreFiles.get(port).remove(file);
-                    dstoreToRemove.get(port).add(file);
-                }
+            if (missing == 0) {
+                continue;
             }
-        }
-        
-        // situation where file is still stored too many times
-        var toReduce = fileToReduce.entrySet().stream()
-            .filter(e -> e.getValue() > 0)
-            .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
-        fileToReduce = (HashMap<String, Integer>) toReduce;
-        if (!fileToReduce.isEmpty()) {
-            for (var entry : fileToReduce.entrySet()) {
-                var file = entry.getKey();
-                var amount = entry.getValue();
-                
-                while (amount > 0) {
-                    var portsAscending = dstoreFiles.entrySet().stream()
-                        .filter(e -> e.getValue().contains(file))
-                        .sorted(Comparator.comparing(e -> e.getValue().size()))
-                        .map(Map.Entry::getKey)
-                        .toList();
-                    var ports = portsAscending.reversed();
-                    var port = ports.get(0);
-                    
-                    dstoreFiles.get(port).remove(file);
-                    dstoreToRemove.get(port).add(file);
-                    amount -= 1;
+            System.err.println(missing + " chunks of " + file + " are lost, removing it");
+            for (int i = 0; i < count; i++) {
+                var chunk = Chunking.chunkName(file, i);
+                if (listedNames.contains(chunk)) {
+                    fileToRemove.add(chunk);
                 }
-                
             }
+            index.removeFileRemoveComplete(file);
         }
         
-        // situation where dstore still stores too many files
-        for (var dstorePair : dstoreFiles.entrySet()) {
-            var port = dstorePair.getKey();
-            var files = dstorePair.getValue();
-            
-            if (files.size() > maxNum) {
-                var toRemove = files.size() - maxNum;
-                for (int i = 0; i < toRemove; i++) {
-                    var filesAscending = files.stream()
-                        .sorted(Comparator.comparing(fileAmounts::get))
-                        .toList();
-                    var filesDescending = filesAscending.reversed();
-                    var file = filesDescending.get(0); //get the file which is stored the most
-                    
-                    //TODO maybe check if file only stored once
-                    
-                    fileToStore.merge(file, 1, Integer::sum);
-                    dstoreFiles.get(port).remove(file);
-                    dstoreToRemove.get(port).add(file);
-                }
+        //checking for files in index but not in any Dstores, a file a request is working on is
+        //not on them yet, or no longer
+        var touched = locks.touched();
+        for (var file : index.files(null)) {
+            if ((!listedNames.contains(file) || fileToRemove.contains(file)) && !touched.contains(file)
+                && !index.erasure.containsKey(file) && !index.chunks.containsKey(file)) {
+                index.removeFileRemoveComplete(file); //remove from index
             }
         }
         
+        //the planner only places again the files listed differently since its last plan
+        var plan = planner.plan(dstoreFiles, fileToRemove);
+        var dstoreToStore = plan.toSend();
+        var dstoreToRemove = plan.toRemove();
+        shardsToRemove.forEach((port, shards) -> dstoreToRemove.get(port).addAll(shards));
+        dstoreFiles.putAll(plan.holdings());
         
-        //technique
-        // sort the file that need to replicated MOST first
-        // then sort the dstores with the least files first
-        // algorithm to find from where the files should be sent from
-        
-        var dstoreToStore = new HashMap<Integer, ArrayList<Pair<String,ArrayList<Integer>>>>();
-        //fileToStore
-        //dstoreFiles -> length
-        for (var entry : fileToStore.entrySet()) {
-            var file = entry.getKey();
-            var amount = entry.getValue();
-            
-            for (int i = 0; i < amount; i++) {
-                var dstoreToRecieve = dstoreFiles.entrySet().stream()
-                    .filter(e -> !e.getValue().contains(file))
-                    .sorted(Comparator.comparing(e -> e.getValue().size()))
-                    .map(Map.Entry::getKey)
-                    .toList()
-                    .getFirst();
-                
-                var dstoreToSend = dstoreFiles.entrySet().stream()
-                    .filter(e -> e.getValue().contains(file))
-                    .map(Map.Entry::getKey)
-                    .toList()
-                    .getFirst();
-                
-                if (dstoreToStore.get(dstoreToSend) == null) {
-                    var listToSendPorts = new ArrayList<>(List.of(dstoreToRecieve));
-                    var pair = new Pair<>(file, listToSendPorts);
-                    var list = new ArrayList<>(List.of(pair));
-                    dstoreToStore.put(dstoreToSend, list);
-                } else {
-                    var list = dstoreToStore.get(dstoreToSend);
-                    var pair = list.stream().filter(p -> p.getFirst().equals(file)).toList().getFirst();
-                    if (pair == null) {
-                        var listToSendPorts = new ArrayList<>(List.of(dstoreToRecieve));
-                        var newPair = new Pair<>(file, listToSendPorts);
-                        list.add(newPair);
-                    } else {
-                        pair.getSecond().add(dstoreToRecieve);
-                    }
-                }
-                dstoreFiles.get(dstoreToRecieve).add(file);
+        //sharing the locks of the files moved, a file stored or removed since the LIST is left as
+        //it is for the next rebalance, the plan for it may be out of date
+        var owners = new HashMap<String, String>();
+        var leavers = new HashMap<String, Set<Integer>>();
+        dstoreToStore.values().forEach(pairs -> pairs.forEach(pair -> leavers.computeIfAbsent(
+            owners.computeIfAbsent(pair.getFirst(), index::ownerOf), file -> new HashSet<>())));
+        dstoreToRemove.forEach((port, names) -> names.forEach(name -> leavers.computeIfAbsent(
+            owners.computeIfAbsent(name, index::ownerOf), file -> new HashSet<>()).add(port)));
+        var unlocked = new HashSet<String>();
+        leavers.forEach((file, ports) -> {
+            if (touched.contains(file) || !locks.tryLock(file, FileLocks.Mode.SHARED, 0, TimeUnit.MILLISECONDS)) {
+                unlocked.add(file);
+            } else {
+                moved.add(file);
+                leaving.put(file, ports);
             }
+        });
+        if (!unlocked.isEmpty()) {
+            System.out.println(unlocked.size() + " files changed during the rebalance, not moving them");
+            dstoreToStore.values().forEach(pairs -> pairs.removeIf(
+                pair -> unlocked.contains(owners.get(pair.getFirst()))));
+            dstoreToRemove.values().forEach(names -> names.removeIf(name -> unlocked.contains(owners.get(name))));
         }
         
+        //creating the DStore Pairs (files to send, files to remove)
+        // dstoreNum -> (files to send, files to remove)
+        // files to send = List<Pair<String,List<Integer>>> = list of pairs of file to send, list of ports to send to
+        // files to remove = List<String> = list of files to remove
+        var dstorePairs = new HashMap<Integer, Pair< ArrayList<Pair<String,ArrayList<Integer>>>, ArrayList<String> >>();
         
         //Join two maps to create the pairs
         //dstorePairs = dstoreToStore + dstoreToRemove
@@ -825,123 +981,273 @@ public class Controller {
             dstorePairs.put(entry, pair);
         }
         
-        //set up the countdown latch for the REBALANCE_COMPLETE
-        System.out.println("setting up the countdown latch for REBALANCE_COMPLETE");
-        countdown = new CountDownLatch(dstorePairs.size()); //countdown latch
-        
-        //creating latch for the STORE_ACK
-        latches.put(Protocol.REMOVE_COMPLETE_TOKEN, countdown);
-        
-        //sending the rebalance request to the Dstores
-        for (var entry : dstorePairs.entrySet()) {
-            var dstore = entry.getKey();
-            var pair = entry.getValue();
-            
-            //extracting the data
-            var toStore = pair.getFirst();
-            var amountToStore = toStore.size();
-            var toRemove = pair.getSecond();
-            var amountToRemove = toRemove.size();
-            
-            //creating the string to send to Dstore
-            var messageBuilder = new StringBuilder(
-                Protocol.REBALANCE_TOKEN + " " + amountToStore);
-            for (var filePair : toStore) { //adding the files to send to other dstores
-                var file = filePair.getFirst();
-                var ports = filePair.getSecond();
-                messageBuilder.append(" ").append(file).append(" ").append(ports.size());
-                for (var port : ports) {
-                    messageBuilder.append(" ").append(port);
-                }
-            }
-            messageBuilder.append(" ").append(amountToRemove);
-            for (var file : toRemove) { //adding the files to remove from dstore
-                messageBuilder.append(" ").append(file);
-            }
-            var message = messageBuilder.toString();
-            
-            //sending the request to the Dstore
-            new Thread(() -> {
-                try {
-                    var socket = dstoreSockets.get(dstore);
-                    socket.setSoTimeout(timeout);
-                    
-                    System.out.println("Sending (" + message + ") to Dstore: " + dstore);
-                    try {
-                        var out = new PrintWriter(socket.getOutputStream(), true);
-                        out.println(message);
-                    } catch (IOException e) {
-                        System.err.println("error in sending REBALANCE request to Dstore: " + dstore + e);
+        //sending the rebalance request to the Dstores, each on a thread of its own telling whether
+        //its Dstore completed, all of them joined on closing
+        var completed = new ArrayList<Future<Boolean>>();
+        try (var scope = Executors.newThreadPerTaskExecutor(threads)) {
+            for (var entry : dstorePairs.entrySet()) {
+                var dstore = entry.getKey();
+                var pair = entry.getValue();
+                
+                //extracting the data
+                var toStore = pair.getFirst();
+                var amountToStore = toStore.size();
+                var toRemove = pair.getSecond();
+                var amountToRemove = toRemove.size();
+                
+                //creating the string to send to Dstore
+                var messageBuilder = new StringBuilder(
+                    Protocol.REBALANCE_TOKEN + " " + amountToStore);
+                for (var filePair : toStore) { //adding the files to send to other dstores
+                    var file = filePair.getFirst();
+                    var ports = filePair.getSecond();
+                    messageBuilder.append(" ").append(file).append(" ").append(ports.size());
+                    for (var port : ports) {
+                        messageBuilder.append(" ").append(port);
                     }
-                    
-                    System.out.println("waiting for REBALANCE_COMPLETE response from Dstore: " + dstore);
+                }
+                messageBuilder.append(" ").append(amountToRemove);
+                for (var file : toRemove) { //adding the files to remove from dstore
+                    messageBuilder.append(" ").append(file);
+                }
+                var message = messageBuilder.toString();
+                
+                //sending the request to the Dstore
+                completed.add(scope.submit(() -> {
                     try {
-                        var in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                        var line = in.readLine();
-                        System.out.println(line + " received from Dstore: " + dstore);
+                        var socket = links.get(dstore);
+                        socket.setSoTimeout(timeout);
                         
-                        if (line == null) {
-                            System.out.println("Connection to Dstore " + dstore + " lost, "
-                                + "not waiting for REBALANCE_COMPLETE response");
-                            removeDstore(dstore);
-                            rebalanceThread.interrupt();
-                        } else if (!line.equals(Protocol.REBALANCE_COMPLETE_TOKEN)) {
-                            System.err.println("DStore " + dstore + " sent an invalid REBALANCE_COMPLETE response: " + line);
-                            rebalanceThread.interrupt();
-                        } else {
-                            latches.get(Protocol.REBALANCE_COMPLETE_TOKEN).countDown();
+                        System.out.println("Sending (" + message + ") to Dstore: " + dstore);
+                        try {
+                            var out = new PrintWriter(socket.getOutputStream(), true);
+                            out.println(message);
+                        } catch (IOException e) {
+                            System.err.println("error in sending REBALANCE request to Dstore: " + dstore + e);
                         }
                         
-                    } catch (SocketTimeoutException e) {
-                        System.err.println("timeout in the REBALANCE_COMPLETE response from Dstore: " + dstore);
-                        rebalanceThread.interrupt();
-                    }  catch (IOException e) {
-                        System.err.println(
-                            "error in receiving REBALANCE_COMPLETE response from Dstore: " + dstore + e);
-                        rebalanceThread.interrupt();
+                        System.out.println("waiting for REBALANCE_COMPLETE response from Dstore: " + dstore);
+                        try {
+                            var in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                            var line = in.readLine();
+                            System.out.println(line + " received from Dstore: " + dstore);
+                            
+                            if (line == null) {
+                                System.out.println("Connection to Dstore " + dstore + " lost, "
+                                    + "not waiting for REBALANCE_COMPLETE response");
+                                removeDstore(dstore);
+                                return false;
+                            } else if (line.equals(Protocol.REBALANCE_FAILED_TOKEN)) {
+                                System.err.println("DStore " + dstore + " could not send every file of the REBALANCE");
+                                return false;
+                            } else if (!line.equals(Protocol.REBALANCE_COMPLETE_TOKEN)) {
+                                System.err.println("DStore " + dstore + " sent an invalid REBALANCE_COMPLETE response: " + line);
+                                return false;
+                            }
+                            return true;
+                            
+                        } catch (SocketTimeoutException e) {
+                            System.err.println("timeout in the REBALANCE_COMPLETE response from Dstore: " + dstore);
+                        }  catch (IOException e) {
+                            System.err.println(
+                                "error in receiving REBALANCE_COMPLETE response from Dstore: " + dstore + e);
+                        }
+                        
+                    } catch (SocketException e) {
+                        System.err.println("error in setting the timeout for Dstore: " + dstore + e);
                     }
-                    
-                } catch (SocketException e) {
-                    System.err.println("error in setting the timeout for Dstore: " + dstore + e);
-                    rebalanceThread.interrupt();
+                    return false;
+                }));
+                
+            }
+        }
+        
+        //updating the index once every Dstore completed, a request that failed with an exception
+        //did not complete either
+        for (var future : completed) {
+            if (future.state() == Future.State.FAILED) {
+                System.err.println("error in the REBALANCE request to a Dstore: " + future.exceptionNow());
+            }
+        }
+        if (!completed.stream().allMatch(future -> future.state() == Future.State.SUCCESS && future.resultNow())) {
+            System.err.println("not every Dstore completed the REBALANCE request, not updating the Index");
+            return;
+        }
+        System.out.println("all Dstores have responded to the REBALANCE request, updating Index");
+        dstoreShards.forEach((port, shards) -> dstoreFiles.get(port).addAll(shards));
+        index.update(dstoreFiles, locks.touched());
+        var held = new HashMap<Integer, Long>();
+        dstoreFiles.forEach((port, files) -> held.put(port,
+            files.stream().mapToLong(Controller::bytesOf).sum()));
+        placement.reset(held);
+    }
+    
+    /**
+     * Checks the shards of every erasure-coded file against its layout. A missing shard is rebuilt
+     * by the least loaded Dstore holding no other shard of the file, which is sent REPAIR_SHARD
+     * and not waited for, the shard shows up in a later LIST. The shards of removed files, of
+     * files with fewer than k shards left, and extra copies of a shard are removed.
+     * @param dstoreShards the shards each Dstore listed, the ones to remove are taken out
+     * @param load the number of files and shards each Dstore holds
+     * @return the shards each Dstore has to remove
+     */
+    private static Map<Integer, List<String>> planShards(Map<Integer, List<String>> dstoreShards,
+        Map<Integer, Integer> load) {
+        var toRemove = new HashMap<Integer, List<String>>();
+        dstoreShards.keySet().forEach(port -> toRemove.put(port, new ArrayList<>()));
+        
+        //the Dstores holding each shard of each file
+        var holders = new HashMap<String, Map<Integer, List<Integer>>>();
+        dstoreShards.forEach((port, shards) -> shards.forEach(name -> {
+            var shard = index.shardOf(name);
+            holders.computeIfAbsent(shard.getFirst(), f -> new HashMap<>())
+                .computeIfAbsent(shard.getSecond(), i -> new ArrayList<>())
+                .add(port);
+        }));
+        
+        for (var file : List.copyOf(index.erasure.keySet())) {
+            var layout = index.erasure.get(file);
+            var listed = holders.getOrDefault(file, Map.of());
+            var status = index.statusOf(file);
+            if (status == Status.STORING) {
+                continue;
+            }
+            
+            //a removed file, or one that can no longer be decoded, goes entirely
+            if (status != Status.STORED || listed.size() < layout.data()) {
+                if (status == Status.STORED) {
+                    System.err.println("only " + listed.size() + " shards of " + file + " are left, "
+                        + layout.data() + " are needed to rebuild it");
+                }
+                listed.forEach((i, ports) -> ports.forEach(port -> {
+                    dstoreShards.get(port).remove(ErasureCoding.shardName(file, i));
+                    toRemove.get(port).add(ErasureCoding.shardName(file, i));
+                }));
+                index.removeFileRemoveComplete(file);
+                continue;
+            }
+            
+            //keeping one copy of each shard
+            var ports = new ArrayList<>(Collections.nCopies(layout.ports().size(), 0));
+            var used = new HashSet<Integer>();
+            listed.forEach((i, copies) -> {
+                ports.set(i, copies.get(0));
+                used.add(copies.get(0));
+                for (var port : copies.subList(1, copies.size())) {
+                    dstoreShards.get(port).remove(ErasureCoding.shardName(file, i));
+                    toRemove.get(port).add(ErasureCoding.shardName(file, i));
                 }
             });
             
+            //rebuilding the missing ones from the shards that are left
+            var current = new ErasureCoding.Layout(layout.size(), layout.data(), layout.parity(), ports);
+            for (int i = 0; i < ports.size(); i++) {
+                if (ports.get(i) != 0) {
+                    continue;
+                }
+                var target = load.entrySet().stream()
+                    .filter(e -> !used.contains(e.getKey()))
+                    .min(Map.Entry.comparingByValue())
+                    .map(Map.Entry::getKey)
+                    .orElse(null);
+                if (target == null) {
+                    System.err.println("no Dstore left to rebuild shard " + i + " of " + file);
+                    break;
+                }
+                used.add(target);
+                load.merge(target, 1, Integer::sum);
+                try {
+                    dstores.get(target).send(Protocol.REPAIR_SHARD_TOKEN + " " + file + " " + i + " " + current.toWords());
+                    System.out.println("asking Dstore " + target + " to rebuild shard " + i + " of " + file);
+                } catch (IOException e) {
+                    System.err.println("error in sending REPAIR_SHARD to Dstore " + target + ": " + e);
+                }
+            }
         }
-        
-        //waiting for responses from the Dstores
-        try {
-            countdown.await();
-            System.out.println("all Dstores have responded to the REBALANCE request, updating Index");
-            index.update(dstoreFiles);
-        } catch (InterruptedException e) {
-            System.err.println("Rebalance Thread Interrupted, not updating the Index: " + e);
+        return toRemove;
+    }
+    
+    /**
+     * Chooses r Dstores for every chunk of a file, the ones holding the fewest bytes counting the
+     * chunks placed before it, so the chunks spread over every Dstore, or the ones ranking highest
+     * for the chunk with rendezvous placement
+     * @param fileName the name of the file
+     * @param fileSize the size of the file
+     * @param reservations where the reservation of each chunk is added
+     * @return the layout of the chunks
+     */
+    private static Chunking.Layout placeChunks(String fileName, long fileSize,
+        List<Placement.Reservation> reservations) {
+        var replicas = new ArrayList<List<Integer>>();
+        for (int i = 0; i < Chunking.Layout.count(fileSize, chunkSize); i++) {
+            var reservation = placement.reserve(Chunking.chunkName(fileName, i), r,
+                Math.min(chunkSize, fileSize - i * chunkSize));
+            reservations.add(reservation);
+            replicas.add(reservation.ports());
         }
-        
-        // Rebalance complete - threads are now free to handle requests
-        for (var thread : threads) {
-            thread.ongoingRebalance = false;
+        return new Chunking.Layout(fileSize, chunkSize, replicas);
+    }
+    
+    //the bytes a name listed by a Dstore holds, a shard or chunk of a file or the file itself
+    private static long bytesOf(String name) {
+        var shard = index.shardOf(name);
+        if (shard != null) {
+            var layout = index.erasure.get(shard.getFirst());
+            return layout == null ? 0 : layout.shardSize();
         }
+        var chunk = index.chunkOf(name);
+        if (chunk != null) {
+            var layout = index.chunks.get(chunk.getFirst());
+            return layout == null ? 0 : layout.chunkLength(chunk.getSecond());
+        }
+        var size = index.sizeOf(name);
+        return size == null ? 0 : size;
+    }
+    
+    //stops waiting for the replies of a Dstore about the names, the ones not in yet
+    private static void forget(int port, String token, List<String> names) {
+        var link = dstores.get(port);
+        if (link != null) {
+            names.forEach(name -> link.forget(token + " " + name));
+        }
+    }
+    
+    private static boolean isValidCode(int data, int parity) {
+        return data >= 1 && parity >= 0 && data + parity <= ReedSolomon.MAX_SHARDS;
+    }
+    
+    //RELOAD for the file, with or without the number of bytes received
+    private static boolean isReload(String line, String fileName) {
+        var words = line.split(" ");
+        return words.length >= 2 && words[0].equals(Protocol.RELOAD_TOKEN) && words[1].equals(fileName);
     }
     
     private static void removeDstore(int port) {
-        new Thread(() -> index.removePort(port)).start();
-        num_Dstores -= 1;
-        dstoreSockets.remove(port);
+        var link = dstores.get(port);
+        if (link != null) {
+            removeDstore(link);
+        }
+    }
+    
+    //a Dstore already removed, or that joined again on the same port, is left alone
+    private static void removeDstore(DstoreLink link) {
+        var port = link.port();
+        if (!dstores.remove(port, link)) {
+            return;
+        }
+        threads.newThread(() -> index.removePort(port)).start();
+        placement.remove(port);
     }
     
-    static class ServiceThread extends Thread {
+    static class ServiceThread implements Runnable {
         
         Socket client;
-        boolean ongoingRebalance = false;
-        boolean ongoingCriticalOperation = false;
-        
-        Queue<String> requests = new LinkedList<>();
         
         ServiceThread(Socket c) {
             client = c;
         }
         
+        @Override
         public void run() {
             try {
                 BufferedReader in = new BufferedReader(
@@ -949,34 +1255,26 @@ public class Controller {
                 String line;
                 boolean isDstore = false;
                 
-                while ((line = in.readLine()) != null || (!requests.isEmpty() && !this.ongoingRebalance)) {
-                    
-                    if (!requests.isEmpty() && !this.ongoingRebalance) {
-                        System.out.println("Queue not empty, handling requests");
-                        for (var request : requests) {
-                            handleRequest(request, client);
-                        }
-                        requests.clear();
-                        if (line == null) {
-                            continue;
-                        }
-                    }
-                    
+                //requests are served during a rebalance too, only the files it moves are held
+                while ((line = in.readLine()) != null) {
                     System.out.println(line + " received");
-                    if (this.ongoingRebalance) {
-                        System.out.println("Rebalance ongoing, adding request to queue");
-                        requests.add(line);
-                        continue;
-                    }
                     
                     if (line.split(" ")[0].equals(Protocol.JOIN_TOKEN)) {
                         handleRequest(line, client);
                         isDstore = true;
+                        
+                        //reading the replies of the Dstore from here on, with the same reader so
+                        //nothing it buffered is lost
+                        var link = dstores.get(Integer.parseInt(line.split(" ")[1]));
+                        if (link != null && link.socket() == client) {
+                            link.read(in);
+                            System.out.println("Connection to Dstore " + link.port() + " lost");
+                            removeDstore(link);
+                        }
                         break; //stop listening for more requests from DStore
                     }
                     
                     handleRequest(line, client);
-                    ongoingCriticalOperation = false;
                 }
                 
                 if (!isDstore) { //if the client is not a Dstore then close connection
@@ -990,7 +1288,9 @@ public class Controller {
         }
     }
     
-    // command prompt: java Controller cport R timeout rebalance_period
+    // command prompt: java Controller cport R timeout rebalance_period [--name=value ...]
+    // options: --store-mode=fanout|chain|erasure --erasure-data=4 --erasure-parity=2
+    //          --chunk-threshold=0 --chunk-size=8m --placement=load|rendezvous --threads=virtual|platform
     // test command prompt: java Controller 4321 1 2000 10000
     // client command prompt: java -cp client.jar:. ClientMain 4321 1000
     // client compile: javac -cp client.jar ClientMain.java
@@ -1000,8 +1300,9 @@ public class Controller {
         int r = Integer.parseInt(args[1]);
         int timeout = Integer.parseInt(args[2]);
         int rebalance_period = Integer.parseInt(args[3]);
+        Options options = new Options(args, 4);
         
-        Controller controller = new Controller(cport, r, timeout, rebalance_period);
+        Controller controller = new Controller(cport, r, timeout, rebalance_period, options);
         controller.start();
     }
 }
\ No newline at end of file
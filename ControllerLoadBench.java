@@ -0,0 +1,224 @@
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Puts a Controller under load from many clients at once. A Controller and its Dstores are
+ * started in processes of their own on loopback, and each client loops over its requests on one
+ * connection until the time is up. In mix mode a client stores a small file, loads it, lists the
+ * files and removes it again. In read mode twenty files are stored first and the clients load
+ * them, each LOAD on a new connection, and list the files. It prints the latencies of each
+ * request, the requests served per second and the requests that failed. A client gives up on a
+ * reply after 10 s, so a Controller that stalls shows up as errors rather than as a hang.
+ *
+ * Run it from the folder of the sources with:
+ *   javac -d out -cp client.jar *.java
+ *   java -cp out ControllerLoadBench [--mode=mix|read] [--clients=8] [--seconds=20]
+ *     [--threads=virtual|platform] [--dstores=3] [--r=2] [--cport=14500]
+ * The Dstores listen on the ports after the Controller's.
+ */
+public class ControllerLoadBench {
+
+    private static final int FILE_SIZE = 100;
+    private static final int READ_FILES = 20;
+    private static final String[] REQUESTS = {
+        Protocol.STORE_TOKEN, Protocol.LOAD_TOKEN, Protocol.LIST_TOKEN, Protocol.REMOVE_TOKEN};
+
+    private static int cport;
+
+    public static void main(String[] args) throws Exception {
+        var options = new Options(args, 0);
+        var read = options.get("mode", "mix").equals("read");
+        var clients = options.getInt("clients", 8);
+        var seconds = options.getInt("seconds", 20);
+        var threads = options.get("threads", "virtual");
+        var dstores = options.getInt("dstores", 3);
+        var r = options.getInt("r", 2);
+        cport = options.getInt("cport", 14500);
+
+        var folder = Files.createTempDirectory("controller-load-bench");
+        var processes = new ArrayList<Process>();
+        try {
+            processes.add(start(folder.resolve("controller.log"), "Controller", String.valueOf(cport),
+                String.valueOf(r), "5000", "100000", "--threads=" + threads));
+            Thread.sleep(700);
+            for (int i = 1; i <= dstores; i++) {
+                var files = Files.createDirectories(folder.resolve("dstore" + i));
+                processes.add(start(folder.resolve("dstore" + i + ".log"), "Dstore", String.valueOf(cport + i),
+                    String.valueOf(cport), "5000", files.toString()));
+                Thread.sleep(300);
+            }
+            Thread.sleep(2000);
+
+            if (read) {
+                storeReadFiles();
+            }
+            run(read, clients, seconds);
+        } finally {
+            for (var process : processes) {
+                process.destroyForcibly().waitFor();
+            }
+            try (var files = Files.walk(folder)) {
+                files.sorted(Collections.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+
+    private static Process start(Path log, String... command) throws IOException {
+        var java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        var line = new ArrayList<>(List.of(java, "-cp", System.getProperty("java.class.path")));
+        line.addAll(List.of(command));
+        return new ProcessBuilder(line)
+            .redirectErrorStream(true)
+            .redirectOutput(new File(log.toString()))
+            .start();
+    }
+
+    private static void run(boolean read, int clients, int seconds) throws InterruptedException {
+        // per request: which one, by its index in REQUESTS, and its latency in nanoseconds
+        var latencies = new ConcurrentLinkedQueue<long[]>();
+        var errors = new AtomicLong();
+        var stop = new AtomicBoolean();
+        var workers = new ArrayList<Thread>();
+        for (int c = 0; c < clients; c++) {
+            var client = c;
+            workers.add(Thread.ofPlatform().start(() -> {
+                try (var socket = connect(cport)) {
+                    var in = reader(socket);
+                    var out = writer(socket);
+                    for (int i = 0; !stop.get(); i++) {
+                        var name = read ? "r" + i % READ_FILES : "c" + client + "_" + i;
+                        var start = System.nanoTime();
+                        if (!read) {
+                            if (!store(in, out, name)) {
+                                errors.incrementAndGet();
+                                continue;
+                            }
+                            start = record(latencies, 0, start);
+                        }
+                        if (!load(name)) {
+                            errors.incrementAndGet();
+                        }
+                        start = record(latencies, 1, start);
+                        out.println(Protocol.LIST_TOKEN);
+                        line(in);
+                        start = record(latencies, 2, start);
+                        if (!read) {
+                            out.println(Protocol.REMOVE_TOKEN + " " + name);
+                            if (!line(in).equals(Protocol.REMOVE_COMPLETE_TOKEN)) {
+                                errors.incrementAndGet();
+                            }
+                            record(latencies, 3, start);
+                        }
+                    }
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                    System.err.println("client " + client + " stopped: " + e);
+                }
+            }));
+        }
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        for (var worker : workers) {
+            worker.join(30_000);
+        }
+
+        var all = new ArrayList<Long>();
+        for (int request = 0; request < REQUESTS.length; request++) {
+            var which = request;
+            var sorted = latencies.stream().filter(l -> l[0] == which).map(l -> l[1]).sorted().toList();
+            all.addAll(sorted);
+            if (!sorted.isEmpty()) {
+                System.out.printf("  %-6s n=%6d p50=%7.2f ms p99=%7.2f ms%n", REQUESTS[request], sorted.size(),
+                    percentile(sorted, 0.5), percentile(sorted, 0.99));
+            }
+        }
+        Collections.sort(all);
+        System.out.printf("  %d clients: %.0f requests/s p99=%.2f ms errors=%d%n", clients,
+            all.size() / (double) seconds, percentile(all, 0.99), errors.get());
+    }
+
+    //stores the files read mode loads, one after another
+    private static void storeReadFiles() throws IOException {
+        try (var socket = connect(cport)) {
+            var in = reader(socket);
+            var out = writer(socket);
+            for (int i = 0; i < READ_FILES; i++) {
+                if (!store(in, out, "r" + i)) {
+                    throw new IOException("could not store the file r" + i);
+                }
+            }
+        }
+    }
+
+    //stores a file the way a client does, sending it to every Dstore the Controller gives
+    private static boolean store(BufferedReader in, PrintWriter out, String name) throws IOException {
+        out.println(Protocol.STORE_TOKEN + " " + name + " " + FILE_SIZE);
+        var reply = line(in).split(" ");
+        if (!reply[0].equals(Protocol.STORE_TO_TOKEN)) {
+            return false;
+        }
+        for (int i = 1; i < reply.length; i++) {
+            try (var dstore = connect(Integer.parseInt(reply[i]))) {
+                writer(dstore).println(Protocol.STORE_TOKEN + " " + name + " " + FILE_SIZE);
+                line(reader(dstore));
+                dstore.getOutputStream().write(new byte[FILE_SIZE]);
+                dstore.getOutputStream().flush();
+            }
+        }
+        return line(in).equals(Protocol.STORE_COMPLETE_TOKEN);
+    }
+
+    //asks for a file on a connection of its own, like the client does for every LOAD
+    private static boolean load(String name) throws IOException {
+        try (var socket = connect(cport)) {
+            writer(socket).println(Protocol.LOAD_TOKEN + " " + name);
+            return line(reader(socket)).startsWith(Protocol.LOAD_FROM_TOKEN);
+        }
+    }
+
+    private static long record(ConcurrentLinkedQueue<long[]> latencies, int request, long start) {
+        var now = System.nanoTime();
+        latencies.add(new long[] {request, now - start});
+        return now;
+    }
+
+    private static Socket connect(int port) throws IOException {
+        var socket = new Socket("localhost", port);
+        socket.setSoTimeout(10_000);
+        return socket;
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private static PrintWriter writer(Socket socket) throws IOException {
+        return new PrintWriter(socket.getOutputStream(), true);
+    }
+
+    private static String line(BufferedReader in) throws IOException {
+        var line = in.readLine();
+        if (line == null) {
+            throw new EOFException("connection closed");
+        }
+        return line;
+    }
+
+    private static double percentile(List<Long> sorted, double p) {
+        return sorted.isEmpty() ? 0 : sorted.get((int) (sorted.size() * p)) / 1e6;
+    }
+}
@@ -1,35 +1,163 @@
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.HashMap;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public class Dstore {
+    static final String TEMP_FOLDER = ".incoming";
+    static final String MANIFEST_FOLDER = ".manifest";
+    static final String CORRUPT_FOLDER = ".corrupt";
+    static final int CHECKPOINT_INTERVAL = 60;
+    static final int REBALANCE_WORKERS = 4;
+    static final int BACKLOG = 1024;
+    static final long CACHE_MAX_OBJECT = 1 << 20;
+    static final long SCRUB_RATE = 8 << 20;
+    static final int SCRUB_AGE = 3600;
+    static final long SMALL_FILE_SIZE = 16 << 10;
+    static final long SEGMENT_SIZE = 64 << 20;
+    static final int COMPACT_INTERVAL = 60;
+    
     int port;
     int cport;
     int timeout;
     String file_folder;
-    Map<String,Integer> fileSizes;
+    FolderLayout layout;
+    Manifest manifest;
+    int checkpointInterval;
     Socket controllerSocket;
+    TransferEngine transferEngine;
+    ThreadFactory clientThreads;
+    ObjectCache cache;
+    int backlog;
+    boolean verifyReads;
+    long scrubRate;
+    int scrubAge;
+    Scrubber scrubber;
+    SegmentStore segments;
+    long smallFileSize;
+    long segmentSize;
+    int compactInterval;
+    boolean dedup;
+    ContentStore contents;
+    // deflate level of the files kept compressed, Compression.NONE if files are kept as they are
+    int compression;
+    
+    // how the Controller stores plain STOREs, FANOUT_TOKEN, CHAIN_TOKEN or ERASURE_TOKEN, see planOf
+    volatile String storeMode = Protocol.FANOUT_TOKEN;
+    // files larger than this are chunked by the Controller, 0 if none are
+    volatile long chunkThreshold;
+    // key: request and file name, value: the optional words the Controller sent for it
+    Map<String, CompletableFuture<List<String>>> plans;
+    ErasureCoding erasure;
+    Chunking chunking;
     
     public Dstore(int port, int cport, int timeout, String file_folder) {
+        this(port, cport, timeout, file_folder, Options.defaults());
+    }
+    
+    public Dstore(int port, int cport, int timeout, String file_folder, Options options) {
         this.port = port;
         this.cport = cport;
         this.timeout = timeout;
         this.file_folder = file_folder;
-        this.fileSizes = new HashMap<>();
+        this.transferEngine = new TransferEngine(
+            options.getInt("rebalance-workers", REBALANCE_WORKERS), timeout);
+        
+        //virtual threads park on blocking socket and file I/O instead of holding a platform
+        //thread, so thousands of connections share a small pool of carrier threads
+        var threads = options.get("threads", "platform");
+        this.clientThreads = switch (threads) {
+            case "virtual" -> Thread.ofVirtual().name("client-", 0).factory();
+            case "platform" -> Thread.ofPlatform().name("client-", 0).factory();
+            default -> throw new IllegalArgumentException("unknown threads option: " + threads);
+        };
+        this.backlog = options.getInt("backlog", BACKLOG);
+        this.checkpointInterval = options.getInt("checkpoint-interval", CHECKPOINT_INTERVAL);
+        this.cache = new ObjectCache(options.getBytes("cache-bytes", 0),
+            options.getBytes("cache-max-object", CACHE_MAX_OBJECT));
+        this.verifyReads = options.getBoolean("verify-reads", true);
+        this.scrubRate = options.getBytes("scrub-rate", SCRUB_RATE);
+        this.scrubAge = options.getInt("scrub-age", SCRUB_AGE);
+        this.smallFileSize = options.getBytes("small-file-size", SMALL_FILE_SIZE);
+        this.segmentSize = options.getBytes("segment-size", SEGMENT_SIZE);
+        this.compactInterval = options.getInt("compact-interval", COMPACT_INTERVAL);
+        this.dedup = options.getBoolean("dedup", false);
+        this.compression = Compression.levelOf(options.get("compression", "none"));
+        this.plans = new ConcurrentHashMap<>();
     }
     
     public void start() {
         // Start the Dstore
         try {
+            //clearing uploads left behind by a previous run
+            Files.createDirectories(tempFolder());
+            try (var leftovers = Files.list(tempFolder())) {
+                for (var leftover : leftovers.toList()) {
+                    Files.deleteIfExists(leftover);
+                }
+            }
+            
+            //loading what is stored from the manifest instead of the folder
+            layout = new FolderLayout(Path.of(file_folder));
+            manifest = Manifest.open(Path.of(file_folder, MANIFEST_FOLDER), layout);
+            manifest.scheduleCheckpoints(checkpointInterval);
+            System.out.println(manifest.names().size() + " files in the manifest");
+            
+            //the parts working on the Dstore itself are only made once it is fully built
+            contents = new ContentStore(this);
+            contents.load();
+            erasure = new ErasureCoding(this);
+            chunking = new Chunking(this);
+            
+            //files stored directly in the folder by an older Dstore are moved into subfolders
+            layout.migrate();
+            
+            //small files are appended to segments, one left out of the manifest by a crash is
+            //adopted like a file found on disk, and a blob no file refers to any more is dropped
+            segments = SegmentStore.open(Path.of(file_folder, SegmentStore.SEGMENT_FOLDER), smallFileSize,
+                segmentSize);
+            for (var name : List.copyOf(segments.names())) {
+                if (ContentStore.isBlob(name)) {
+                    if (!contents.contains(name.substring(ContentStore.BLOB_PREFIX.length()))) {
+                        segments.remove(name);
+                    }
+                } else if (!manifest.contains(name)) {
+                    adopt(name);
+                }
+            }
+            segments.scheduleCompaction(compactInterval);
+            System.out.println(segments.names().size() + " small files in segments");
+            
+            //re-reading cold files in the background, a rate of 0 turns the scrubber off
+            scrubber = new Scrubber(manifest, this::open, this::quarantine, Math.max(scrubRate, 1),
+                scrubAge * 1000L);
+            if (scrubRate > 0) {
+                scrubber.start();
+            }
+            
+            //listening before joining, a rebalance connects as soon as the Controller knows of it
+            //accepting through a channel so LOAD_DATA can use sendfile on the client socket
+            ServerSocketChannel socket = ServerSocketChannel.open();
+            socket.bind(new InetSocketAddress(port), backlog);
+            
             controllerSocket = new Socket(InetAddress.getLocalHost(), cport);
             PrintWriter out = new PrintWriter(controllerSocket.getOutputStream(), true);
             
@@ -37,7 +165,7 @@ public class Dstore {
             
             new Thread(this::listenToController).start();
             
-            listen();
+            listen(socket);
             
         } catch (Exception e) {
             System.out.println("error trying to connect to Controller: " + e);
@@ -48,12 +176,11 @@ public class Dstore {
         // listen for incoming requests from the controller
         for (;;) {
             try {
-                BufferedReader in = new BufferedReader(
-                    new InputStreamReader(controllerSocket.getInputStream()));
+                RequestReader in = new RequestReader(controllerSocket.getInputStream());
                 String line;
                 while ((line = in.readLine()) != null) {
                     System.out.println(line + " received from Controller");
-                    handleRequest(line, controllerSocket);
+                    handleRequest(line, controllerSocket, in);
                 }
             } catch (Exception e) {
                 System.err.println("error in the listening loop for Controller:\n" + e);
@@ -61,33 +188,79 @@ public class Dstore {
         }
     }
     
-    public void listen() {
+    public void listen(ServerSocketChannel socket) {
         // listen for incoming connections from clients
-        try {
-            ServerSocket socket = new ServerSocket(port);
-            for (;;) {
-                try {
-                    Socket client = socket.accept();
-                    
-                    new Thread(new ClientThread(client)).start();
-                    
-                } catch (Exception e) {
-                    System.err.println("error in the listening loop:\n" + e);
-                }
+        for (;;) {
+            try {
+                Socket client = socket.accept().socket();
+                
+                clientThreads.newThread(new ClientThread(client)).start();
+                
+            } catch (Exception e) {
+                System.err.println("error in the listening loop:\n" + e);
             }
-        } catch (Exception e) {
-            System.err.println("error in listening on port: " + port + "\n" + e);
         }
     }
     
-    public void handleRequest(String request, Socket client) {
+    //in reads from the client socket, positioned just after the request line
+    public void handleRequest(String request, Socket client, InputStream in) {
         var requestWords = request.split(" ");
         
         if (requestWords[0].equals(Protocol.STORE_TOKEN)) {
             System.out.println("STORE request received");
             
             var fileName = requestWords[1];
-            var fileSize = Integer.parseInt(requestWords[2]);
+            var fileSize = Long.parseLong(requestWords[2]);
+            var extras = planOf(Protocol.STORE_TOKEN, fileName, fileSize, List.of(requestWords).subList(3, requestWords.length));
+            var chunked = extras.contains(Protocol.CHUNKED_TOKEN);
+            var expectedChecksum = checksumOf(extras);
+            
+            //an erasure-coded or chunked file is split here instead of being stored whole
+            var shards = extras.indexOf(Protocol.SHARDS_TOKEN);
+            var chunks = extras.indexOf(Protocol.CHUNKS_TOKEN);
+            if (shards >= 0 || chunks >= 0) {
+                Runnable accepted = () -> {
+                    try {
+                        System.out.println("sending ACK to client");
+                        new PrintWriter(client.getOutputStream(), true).println(Protocol.ACK_TOKEN);
+                    } catch (IOException e) {
+                        System.out.println("error sending ACK: " + e);
+                    }
+                };
+                try {
+                    var data = chunked ? new FileTransfer.ChunkedInputStream(in) : in;
+                    if (shards >= 0) {
+                        var layout = ErasureCoding.Layout.parse(extras.subList(shards + 1, extras.size()));
+                        System.out.println("receiving the file from the client as " + layout.data() + "+"
+                            + layout.parity() + " shards");
+                        erasure.store(fileName, layout, data, expectedChecksum, accepted);
+                    } else {
+                        var layout = Chunking.Layout.parse(extras.subList(chunks + 1, extras.size()));
+                        System.out.println("receiving the file from the client as "
+                            + layout.replicas().size() + " chunks");
+                        chunking.store(fileName, layout, data, expectedChecksum, accepted);
+                    }
+                } catch (Exception e) {
+                    System.out.println("error storing the parts of " + fileName + ": " + e);
+                    try {
+                        client.close(); //the client must not wait for an ACK that is not coming
+                    } catch (IOException closeError) {
+                        System.err.println("error closing the client socket: " + closeError);
+                    }
+                }
+                return;
+            }
+            
+            //setting up the rest of the replication chain before any data arrives
+            var chain = chainOf(extras);
+            TransferEngine.PeerConnection next = null;
+            if (!chain.isEmpty()) {
+                next = transferEngine.openChain(fileName, fileSize, expectedChecksum, chain);
+                if (next == null) {
+                    System.err.println("Dstore " + chain.get(0) + " did not accept " + fileName
+                        + ", storing it locally only");
+                }
+            }
             
             //sending ACK
             try {
@@ -98,61 +271,120 @@ public class Dstore {
                 System.out.println("error sending ACK: " + e);
             }
             
-            //receiving the file
-            var buffer = new byte[fileSize];
+            //receiving the file straight into a temporary file, committed once complete,
+            //and passing each chunk down the chain as it arrives
             try {
                 System.out.println("receiving the file from the client");
-                var in = client.getInputStream(); //using the same socket
-                buffer = in.readNBytes(fileSize);
+                var data = chunked ? new FileTransfer.ChunkedInputStream(in) : in; //using the same socket
+                receive(data, fileName, fileSize, expectedChecksum, next == null ? null : next.chunks);
             } catch (Exception e) {
-                System.out.println("error receiving the file: " + e);
+                System.out.println("error receiving the file, not sending STORE_ACK: " + e);
+                if (next != null) {
+                    next.abort();
+                }
+                return;
             }
-            
-            //saving the file
-            try {
-                System.out.println("saving the file");
-                fileSizes.put(fileName, fileSize);
-                var out = new FileOutputStream(file_folder + "/" + fileName);
-                out.write(buffer);
-                
-                out.close(); //close the file stream
-            } catch (Exception e) {
-                System.out.println("error saving the file: " + e);
+            if (next != null) {
+                try {
+                    transferEngine.finish(next);
+                } catch (IOException e) {
+                    System.err.println("error forwarding " + fileName + " to Dstore: " + next.port + " " + e);
+                }
             }
             
-            //sending STORE_ACK
-            try {
-                System.out.println("sending STORE_ACK to the Controller: " + fileName);
-                PrintWriter out = new PrintWriter(controllerSocket.getOutputStream(), true);
-                out.println(Protocol.STORE_ACK_TOKEN + " " + fileName);
-            } catch (Exception e) {
-                System.out.println("error sending STORE_ACK: " + e);
-            }
+            storeAck(fileName);
         }
         else if (requestWords[0].equals(Protocol.LOAD_DATA_TOKEN)) {
             System.out.println("LOAD_DATA request received");
             
             var fileName = requestWords[1];
+            var ranged = requestWords.length > 3;
             
             //sending the file
             try {
                 System.out.println("sending the file " + fileName + " to the client");
-                var out = client.getOutputStream(); //using the same socket
-                var in = new File(file_folder + "/" + fileName);
+                var entry = manifest.get(fileName);
                 
-                if (!in.exists()) {
-                    System.out.println("file does not exist: " + fileName);
-                    client.close();
+                if (entry == null) {
+                    //a Dstore holding a shard or a chunk can be asked for the whole file, the plan
+                    //says where the other parts are
+                    var plan = holdsPart(fileName)
+                        ? planOf(Protocol.LOAD_DATA_TOKEN, fileName, 0, List.of()) : List.<String>of();
+                    var shards = plan.indexOf(Protocol.SHARDS_TOKEN);
+                    var chunks = plan.indexOf(Protocol.CHUNKS_TOKEN);
+                    if (shards < 0 && chunks < 0) {
+                        System.out.println("file does not exist: " + fileName);
+                        client.close();
+                        return;
+                    }
+                    var erasureLayout = shards < 0 ? null
+                        : ErasureCoding.Layout.parse(plan.subList(shards + 1, plan.size()));
+                    var chunkLayout = chunks < 0 ? null
+                        : Chunking.Layout.parse(plan.subList(chunks + 1, plan.size()));
+                    var size = erasureLayout != null ? erasureLayout.size() : chunkLayout.size();
+                    var offset = ranged ? Long.parseLong(requestWords[2]) : 0;
+                    var length = ranged ? Long.parseLong(requestWords[3]) : size;
+                    if (offset < 0 || length < 0 || offset > size) {
+                        System.out.println("invalid range " + offset + "+" + length + " of " + fileName);
+                        client.close();
+                        return;
+                    }
+                    length = Math.min(length, size - offset);
+                    if (erasureLayout != null) {
+                        erasure.load(fileName, erasureLayout, offset, length, client);
+                    } else {
+                        chunking.load(fileName, chunkLayout, offset, length, client);
+                    }
+                    return;
+                }
+                
+                //a range is sent on its own, nothing outside it is read
+                if (ranged) {
+                    var offset = Long.parseLong(requestWords[2]);
+                    var length = Long.parseLong(requestWords[3]);
+                    if (offset < 0 || length < 0 || offset > entry.size()) {
+                        System.out.println("invalid range " + offset + "+" + length + " of " + fileName);
+                        client.close();
+                        return;
+                    }
+                    sendRange(fileName, offset, Math.min(length, entry.size() - offset), client);
                     return;
                 }
                 
-                var fileSize = fileSizes.get(fileName);
+                //hot files are served from the cache, filled on a miss if the file is small enough
+                if (cache.isEnabled()) {
+                    var cached = cache.get(fileName);
+                    if (cached == null) {
+                        var generation = cache.generation();
+                        if (cache.admits(entry.size())) {
+                            try (var file = open(fileName)) {
+                                cached = cache.load(fileName, file, entry.checksum(), generation);
+                            }
+                        }
+                    }
+                    if (cached != null) {
+                        FileTransfer.send(cached, client);
+                        return;
+                    }
+                }
                 
-                var buffer = new byte[fileSize];
-                var fis = new FileInputStream(in);
-                fis.read(buffer);
-                fis.close();
-                out.write(buffer);
+                //checking the checksum on the way out, a mismatch cuts the transfer short
+                try (var file = open(fileName)) {
+                    if (verifyReads && entry.checksum() != FileTransfer.UNKNOWN_CHECKSUM) {
+                        FileTransfer.sendVerified(file, entry.checksum(), client);
+                        scrubber.markVerified(fileName);
+                    } else {
+                        FileTransfer.sendFile(file, client);
+                    }
+                }
+            } catch (FileTransfer.ChecksumException e) {
+                System.err.println("corrupt replica of " + fileName + ", not serving it: " + e);
+                quarantine(fileName);
+                try {
+                    client.close(); //the client sees a short read and asks another Dstore
+                } catch (IOException closeError) {
+                    System.err.println("error closing the client socket: " + closeError);
+                }
             } catch (Exception e) {
                 System.out.println("error sending the file: " + e);
             }
@@ -165,14 +397,13 @@ public class Dstore {
             //removing the file
             try {
                 var out = new PrintWriter(controllerSocket.getOutputStream(), true);
-                var in = new File(file_folder + "/" + fileName);
-                
-                if (!in.exists()) {
+                var entry = manifest.remove(fileName);
+                if (entry == null) {
                     System.out.println("file does not exist: " + fileName);
                     out.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + " " + fileName);
                 } else {
                     System.out.println("file exists: " + fileName + ", removing it");
-                    in.delete();
+                    delete(entry);
                     out.println(Protocol.REMOVE_ACK_TOKEN + " " + fileName);
                 }
                 
@@ -185,59 +416,30 @@ public class Dstore {
             System.out.println("REBALANCE request received");
             var counter = 1;
             
-            //sending the files
+            //reading which files to send to which Dstores
             var filesToSendAmount = Integer.parseInt(requestWords[counter]);
             counter++;
+            var filesToSend = new ArrayList<Pair<String, List<Integer>>>();
             for (int i = 0; i < filesToSendAmount; i++) {
                 var fileName = requestWords[counter];
                 counter++;
                 
-                var file = new File(file_folder + "/" + fileName);
-                
-                if (!file.exists()) {
-                    System.err.println("file does not exist: " + fileName);
-                    continue;
-                }
-                
-                var fileSize = fileSizes.get(fileName);
-                
                 var dstoresToSendAmount = Integer.parseInt(requestWords[counter]);
                 counter++;
                 
+                var dstorePorts = new ArrayList<Integer>();
                 for (int j = 0; j < dstoresToSendAmount; j++) {
-                    var dstorePort = Integer.parseInt(requestWords[counter]);
+                    dstorePorts.add(Integer.parseInt(requestWords[counter]));
                     counter++;
-                    try {
-                        var socket = new Socket(InetAddress.getLocalHost(), dstorePort);
-                        socket.setSoTimeout(timeout);
-                        var printer = new PrintWriter(socket.getOutputStream(), true);
-                        var reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                        var out = socket.getOutputStream();
-                        
-                        //sending Rebalance_Store message
-                        System.out.println("sending REBALANCE_STORE to Dstore: " + dstorePort);
-                        printer.println(Protocol.REBALANCE_STORE_TOKEN + " " + fileName + " " + fileSize);
-                        
-                        //receiving ack
-                        var line = reader.readLine();
-                        System.out.println("received: " + line + " from Dstore: " + dstorePort);
-                        if (!line.equals(Protocol.ACK_TOKEN)) {
-                            System.err.println("Did not receive ACK from Dstore: " + dstorePort);
-                            continue;
-                        }
-                        
-                        //sending the file
-                        System.out.println("sending the file " + fileName + " to the Dstore: " + dstorePort);
-                        var buffer = new byte[fileSize];
-                        var fis = new FileInputStream(file);
-                        fis.read(buffer);
-                        fis.close();
-                        out.write(buffer);
-                    
-                    } catch (Exception e) {
-                        System.out.println("error connecting to Dstore: " + dstorePort + "\n" + e);
-                    }
                 }
+                filesToSend.add(new Pair<>(fileName, dstorePorts));
+            }
+            
+            //sending the files, all of them are done before anything is removed, and a file not
+            //sent to every Dstore is kept, as this may be its only copy
+            var failed = transferEngine.sendAll(filesToSend, manifest, this::open, this::quarantine);
+            if (!failed.isEmpty()) {
+                System.err.println("files not sent during the rebalance, keeping them: " + failed);
             }
             
             //removing the files
@@ -246,21 +448,28 @@ public class Dstore {
             for (int i = 0; i < filesToRemoveAmount; i++) {
                 var fileName = requestWords[counter];
                 counter++;
-                
-                var file = new File(file_folder + "/" + fileName);
-                
-                if (!file.exists()) {
-                    System.err.println("file does not exist: " + fileName);
+                if (failed.contains(fileName)) {
                     continue;
                 }
                 
-                file.delete();
+                try {
+                    var entry = manifest.remove(fileName);
+                    if (entry == null) {
+                        System.err.println("file does not exist: " + fileName);
+                        continue;
+                    }
+                    
+                    delete(entry);
+                } catch (IOException e) {
+                    System.err.println("error removing the file " + fileName + ": " + e);
+                }
             }
             
-            //sending REBALANCE_COMPLETE
+            //sending REBALANCE_COMPLETE, on the connection the REBALANCE came on, or
+            //REBALANCE_FAILED if a file was not sent, so the Controller does not take the plan
             try {
-                var out = new PrintWriter(controllerSocket.getOutputStream(), true);
-                out.println(Protocol.REBALANCE_COMPLETE_TOKEN);
+                var out = new PrintWriter(client.getOutputStream(), true);
+                out.println(failed.isEmpty() ? Protocol.REBALANCE_COMPLETE_TOKEN : Protocol.REBALANCE_FAILED_TOKEN);
             } catch (Exception e) {
                 System.out.println("error sending REBALANCE_COMPLETE: " + e);
             }
@@ -270,59 +479,90 @@ public class Dstore {
             System.out.println("REBALANCE_STORE request received");
             
             var fileName = requestWords[1];
-            var fileSize = Integer.parseInt(requestWords[2]);
+            var fileSize = Long.parseLong(requestWords[2]);
+            var extras = List.of(requestWords).subList(3, requestWords.length);
+            var chunked = extras.contains(Protocol.CHUNKED_TOKEN);
+            var expectedChecksum = checksumOf(extras);
+            var content = contentOf(extras);
             
-            //sending ACK
+            //a file offered compressed is taken as it is if files are compressed here, unless it
+            //has to be hashed for deduplication
+            var storedSize = compressedSizeOf(extras);
+            var takesCompressed = storedSize >= 0 && compression != Compression.NONE && !dedup;
+            
+            //sending ACK, or HAS_CONTENT if a file with the same contents is stored here already
             try {
-                System.out.println("sending ACK to Dstore");
                 PrintWriter out = new PrintWriter(client.getOutputStream(), true);
-                out.println(Protocol.ACK_TOKEN);
+                if (content != null && contents.link(fileName, fileSize, expectedChecksum, content)) {
+                    System.out.println("contents of " + fileName + " already stored, sending HAS_CONTENT to Dstore");
+                    out.println(Protocol.HAS_CONTENT_TOKEN);
+                    return;
+                }
+                System.out.println("sending ACK to Dstore");
+                out.println(takesCompressed ? Protocol.ACK_TOKEN + " " + Protocol.COMPRESSED_TOKEN : Protocol.ACK_TOKEN);
             } catch (Exception e) {
                 System.out.println("error sending ACK: " + e);
                 return;
             }
             
-            //receiving the file
-            var buffer = new byte[fileSize];
+            //receiving the file straight into a temporary file, committed once complete
             try {
                 client.setSoTimeout(timeout);
                 System.out.println("receiving the file from the dstore");
-                var in = client.getInputStream();
-                buffer = in.readNBytes(fileSize);
+                var data = chunked ? new FileTransfer.ChunkedInputStream(in) : in;
+                if (takesCompressed) {
+                    receiveCompressed(data, fileName, fileSize, expectedChecksum, storedSize);
+                } else {
+                    receive(data, fileName, fileSize, expectedChecksum, null);
+                }
+                client.setSoTimeout(0); //the sending Dstore keeps the connection for later transfers
             } catch (Exception e) {
                 System.out.println("error receiving the file: " + e);
                 return;
             }
             
-            //saving the file
-            try {
-                System.out.println("saving the file");
-                fileSizes.put(fileName, fileSize);
-                var out = new FileOutputStream(file_folder + "/" + fileName);
-                out.write(buffer);
-                
-                out.close(); //close the file stream
-            } catch (Exception e) {
-                System.out.println("error saving the file: " + e);
-            }
-            
+        }
+        else if (requestWords[0].equals(Protocol.STORE_MODE_TOKEN)) {
+            storeMode = requestWords[1];
+            var chunks = List.of(requestWords).indexOf(Protocol.CHUNKS_TOKEN);
+            chunkThreshold = chunks < 0 ? 0 : Long.parseLong(requestWords[chunks + 1]);
+            System.out.println("store mode: " + requestWords[1] + ", chunk threshold: " + chunkThreshold);
+        }
+        else if (requestWords[0].equals(Protocol.STORE_PLAN_TOKEN)
+            || requestWords[0].equals(Protocol.LOAD_PLAN_TOKEN)) {
+            //the words for a request the client is about to send, or has already sent, replacing
+            //a plan no request came for
+            var key = (requestWords[0].equals(Protocol.STORE_PLAN_TOKEN)
+                ? Protocol.STORE_TOKEN : Protocol.LOAD_DATA_TOKEN) + " " + requestWords[1];
+            var plan = plans.compute(key, (k, old) -> old == null || old.isDone() ? new CompletableFuture<>() : old);
+            plan.complete(List.of(requestWords).subList(2, requestWords.length));
+        }
+        else if (requestWords[0].equals(Protocol.REPAIR_SHARD_TOKEN)) {
+            //rebuilt in the background, the Controller sees the shard in the next LIST
+            var words = List.of(requestWords);
+            var layout = ErasureCoding.Layout.parse(words.subList(words.indexOf(Protocol.SHARDS_TOKEN) + 1, words.size()));
+            erasure.repairLater(requestWords[1], layout, Integer.parseInt(requestWords[2]));
         }
         else if (requestWords[0].equals(Protocol.LIST_TOKEN)) {
             System.out.println("LIST request received");
+            if (cache.isEnabled()) {
+                System.out.println("cache: " + cache);
+            }
             
-            var files = new File(file_folder).list();
+            //listing from the manifest, the folder is never scanned, and the names are written
+            //out as they are walked instead of building the whole message first, on the
+            //connection the LIST came on, the Controller's own or one a rebalance opened
+            var files = manifest.names();
             try {
-                assert files != null;
-                var out = new PrintWriter(controllerSocket.getOutputStream(), true);
-                //creating the list of files message
-                var messageBuilder = new StringBuilder();
-                messageBuilder.append(Protocol.LIST_TOKEN);
+                var out = new PrintWriter(new BufferedWriter(
+                    new OutputStreamWriter(client.getOutputStream()), FileTransfer.BUFFER_SIZE));
+                out.print(Protocol.LIST_TOKEN);
                 for (var file : files) {
-                    messageBuilder.append(" ");
-                    messageBuilder.append(file);
+                    out.print(" ");
+                    out.print(file);
                 }
-                var message = messageBuilder.toString();
-                out.println(message);
+                out.println();
+                out.flush();
                 
             } catch (Exception e) {
                 System.out.println("error sending the file list to Controller: " + e);
@@ -333,6 +573,295 @@ public class Dstore {
         }
     }
     
+    /**
+     * Sends part of a stored file, from the cache if it is there and otherwise straight from the
+     * page cache with sendfile. The checksum covers the whole file so a range is not verified,
+     * the scrubber keeps such files checked instead.
+     * @param fileName the name of the file
+     * @param offset the position of the first byte to send
+     * @param length the number of bytes to send, within the file
+     * @param client the socket to write to
+     * @throws IOException if the file cannot be read or the socket cannot be written
+     */
+    void sendRange(String fileName, long offset, long length, Socket client)
+        throws IOException {
+        if (cache.isEnabled()) {
+            var cached = cache.get(fileName);
+            if (cached != null) {
+                cached.position((int) offset).limit((int) (offset + length));
+                FileTransfer.send(cached, client);
+                return;
+            }
+        }
+        try (var file = open(fileName)) {
+            FileTransfer.send(file, offset, length, client);
+        }
+    }
+    
+    /**
+     * Takes a replica that does not match its checksum out of service. It is dropped from the
+     * manifest, so the next LIST leaves it out and the Controller's rebalance copies the file
+     * back from a good replica, and the bytes are kept in the corrupt folder for inspection.
+     * Files sharing its blob are dropped with it.
+     * @param fileName the name of the corrupt file
+     */
+    public void quarantine(String fileName) {
+        try {
+            var entry = manifest.remove(fileName);
+            cache.invalidate(fileName);
+            var corrupt = Path.of(file_folder, CORRUPT_FOLDER);
+            Files.createDirectories(corrupt);
+            if (entry != null && entry.content() != null) {
+                contents.quarantine(entry, corrupt);
+            } else if (segments.contains(fileName)) {
+                try (var file = openStored(fileName); var out = Files.newOutputStream(corrupt.resolve(fileName))) {
+                    FileTransfer.copy(file.channel(), file.offset(), file.size(), out);
+                }
+                segments.remove(fileName);
+            } else {
+                Files.move(path(fileName), corrupt.resolve(fileName), StandardCopyOption.REPLACE_EXISTING);
+            }
+            System.err.println("quarantined the corrupt replica of " + fileName);
+        } catch (IOException e) {
+            System.err.println("error quarantining " + fileName + ": " + e);
+        }
+    }
+    
+    /**
+     * Adds the words the Controller planned for a request. A STORE from a peer or a chain-aware
+     * client already lists its chain after CHAIN_TOKEN. A plain STORE outside fanout mode, one
+     * above the chunk threshold, or one asking for ERASURE_TOKEN, comes from a client that only
+     * knows about this Dstore, and the Controller sends the chain, the shard layout or the chunk
+     * layout separately, so it is waited for. So is the layout of a LOAD_DATA for a file split
+     * across Dstores.
+     * @param request the request token
+     * @param fileName the name of the file
+     * @param fileSize the size of the file for a STORE
+     * @param extras the optional words of the request
+     * @return the optional words followed by the planned ones, if any
+     */
+    List<String> planOf(String request, String fileName, long fileSize, List<String> extras) {
+        var planned = extras.contains(Protocol.CHAIN_TOKEN) || extras.contains(Protocol.SHARDS_TOKEN)
+            || extras.contains(Protocol.CHUNKS_TOKEN);
+        var waits = request.equals(Protocol.LOAD_DATA_TOKEN) || extras.contains(Protocol.ERASURE_TOKEN)
+            || !planned && (!storeMode.equals(Protocol.FANOUT_TOKEN)
+                || chunkThreshold > 0 && fileSize > chunkThreshold);
+        if (!waits) {
+            return extras;
+        }
+        var key = request + " " + fileName;
+        var plan = plans.computeIfAbsent(key, k -> new CompletableFuture<>());
+        try {
+            var words = new ArrayList<>(extras);
+            words.addAll(plan.get(timeout, TimeUnit.MILLISECONDS));
+            return words;
+        } catch (Exception e) {
+            System.err.println("no plan received for " + key + ", going on without one");
+            return extras;
+        } finally {
+            plans.remove(key, plan);
+        }
+    }
+    
+    //ports after CHAIN_TOKEN in the optional words of a STORE, empty if this is the last or only replica
+    static List<Integer> chainOf(List<String> extras) {
+        var i = extras.indexOf(Protocol.CHAIN_TOKEN);
+        if (i < 0) {
+            return List.of();
+        }
+        return extras.subList(i + 1, extras.size()).stream().map(Integer::parseInt).toList();
+    }
+    
+    //SHA-256 given after CONTENT_TOKEN in the optional words of a REBALANCE_STORE, if any
+    static String contentOf(List<String> extras) {
+        var i = extras.indexOf(Protocol.CONTENT_TOKEN);
+        return i < 0 || i + 1 >= extras.size() ? null : extras.get(i + 1);
+    }
+    
+    //stored size given after COMPRESSED_TOKEN in the optional words of a REBALANCE_STORE, -1 if none
+    static long compressedSizeOf(List<String> extras) {
+        var i = extras.indexOf(Protocol.COMPRESSED_TOKEN);
+        return i < 0 || i + 1 >= extras.size() ? -1 : Long.parseLong(extras.get(i + 1));
+    }
+    
+    //whether a plan for loading the file is coming, or a shard or chunk of it is stored here
+    boolean holdsPart(String fileName) {
+        if (plans.containsKey(Protocol.LOAD_DATA_TOKEN + " " + fileName)) {
+            return true;
+        }
+        return manifest.holdsPart(fileName);
+    }
+    
+    //CRC32C given after CHECKSUM_TOKEN in the optional words of a STORE, if any
+    static long checksumOf(List<String> extras) {
+        var i = extras.indexOf(Protocol.CHECKSUM_TOKEN);
+        if (i < 0 || i + 1 >= extras.size()) {
+            return FileTransfer.UNKNOWN_CHECKSUM;
+        }
+        return Long.parseLong(extras.get(i + 1), 16);
+    }
+    
+    /**
+     * Tells the Controller a file, or a shard, is stored
+     * @param fileName the name it is stored under
+     */
+    public void storeAck(String fileName) {
+        try {
+            System.out.println("sending STORE_ACK to the Controller: " + fileName);
+            PrintWriter out = new PrintWriter(controllerSocket.getOutputStream(), true);
+            out.println(Protocol.STORE_ACK_TOKEN + " " + fileName);
+        } catch (Exception e) {
+            System.out.println("error sending STORE_ACK: " + e);
+        }
+    }
+    
+    /**
+     * Opens a stored file, its blob if its contents are shared, reading through its blocks if it
+     * is compressed
+     * @param fileName the name of the file
+     * @return the open file
+     * @throws IOException if the file is not stored or cannot be opened
+     */
+    public StoredFile open(String fileName) throws IOException {
+        var entry = manifest.get(fileName);
+        var stored = openStored(entry != null && entry.content() != null ? ContentStore.blobName(entry.content()) : fileName);
+        if (entry == null || !entry.compressed()) {
+            return stored;
+        }
+        try {
+            return Compression.decode(stored);
+        } catch (IOException e) {
+            stored.close();
+            throw e;
+        }
+    }
+    
+    //opens the bytes kept under a name, a file's or a blob's, in its segment if it is small
+    StoredFile openStored(String name) throws IOException {
+        var small = segments.open(name);
+        return small != null ? small : StoredFile.of(FileChannel.open(path(name)));
+    }
+    
+    /**
+     * Receives a file and records it in the manifest. A small file is received into memory and
+     * appended to a segment, a larger one into a file of its own, compressed as it arrives if
+     * files are compressed at rest. With deduplication on, the contents are kept by the
+     * {@link ContentStore} instead.
+     * @param in the stream of the file, positioned at its first byte
+     * @param fileName the name of the file
+     * @param fileSize the size of the file
+     * @param expectedChecksum the CRC32C given by the sender, or {@link FileTransfer#UNKNOWN_CHECKSUM}
+     * @param forward the stream to copy the bytes to, or null
+     * @throws IOException if the file cannot be received or stored
+     */
+    void receive(InputStream in, String fileName, long fileSize, long expectedChecksum,
+        OutputStream forward) throws IOException {
+        if (dedup) {
+            contents.receive(in, fileName, fileSize, expectedChecksum, forward);
+            return;
+        }
+        long checksum;
+        boolean compressed;
+        if (segments.accepts(fileSize)) {
+            var bytes = new ByteArrayOutputStream((int) fileSize);
+            checksum = FileTransfer.receive(in, fileSize, bytes, expectedChecksum, forward);
+            var encoded = encode(bytes.toByteArray());
+            compressed = encoded != null;
+            putSmall(fileName, compressed ? encoded : bytes.toByteArray());
+        } else {
+            checksum = FileTransfer.receiveFile(in, fileSize, path(fileName), tempFolder(),
+                expectedChecksum, forward, this::encoding);
+            compressed = compression != Compression.NONE;
+            segments.remove(fileName); //a small file stored before under the same name
+        }
+        stored(fileName, fileSize, checksum, compressed);
+    }
+    
+    /**
+     * Receives a file another Dstore sends compressed, as it stores it, and keeps it as it is.
+     * The blocks are checked as they arrive, the checksum of the contents is taken from the sender.
+     * @param in the stream of the compressed file, positioned at its first byte
+     * @param fileName the name of the file
+     * @param fileSize the size of the file before compression
+     * @param checksum the CRC32C of the file before compression, or {@link FileTransfer#UNKNOWN_CHECKSUM}
+     * @param storedSize the size of the compressed file
+     * @throws IOException if the file cannot be received or stored, or a block is corrupt
+     */
+    void receiveCompressed(InputStream in, String fileName, long fileSize, long checksum, long storedSize)
+        throws IOException {
+        if (segments.accepts(storedSize)) {
+            var bytes = new ByteArrayOutputStream((int) storedSize);
+            try (var out = Compression.verifying(bytes)) {
+                FileTransfer.receive(in, storedSize, out, FileTransfer.UNKNOWN_CHECKSUM, null);
+            }
+            putSmall(fileName, bytes.toByteArray());
+        } else {
+            FileTransfer.receiveFile(in, storedSize, path(fileName), tempFolder(),
+                FileTransfer.UNKNOWN_CHECKSUM, null, Compression::verifying);
+            segments.remove(fileName);
+        }
+        stored(fileName, fileSize, checksum, true);
+    }
+    
+    //wraps the stream a large file is written to on disk, compressing it if files are compressed at rest
+    OutputStream encoding(OutputStream out) {
+        return compression == Compression.NONE ? out : Compression.encoder(out, compression);
+    }
+    
+    //compresses a small file if files are compressed at rest, null if it is kept as it is
+    byte[] encode(byte[] bytes) {
+        return compression == Compression.NONE ? null : Compression.encode(bytes, compression);
+    }
+    
+    //records a file kept in a segment but missing from the manifest after a crash, the way it is
+    //stored is told by whether it reads as a compressed file
+    void adopt(String fileName) throws IOException {
+        try (var file = segments.open(fileName)) {
+            try (var decoded = Compression.decode(file)) {
+                manifest.put(fileName, decoded.size(), FileTransfer.UNKNOWN_CHECKSUM, null, true);
+            } catch (FileTransfer.ChecksumException e) {
+                manifest.put(fileName, file.size(), FileTransfer.UNKNOWN_CHECKSUM);
+            }
+        }
+    }
+    
+    //records a file stored under its own name, dropping the blob it referred to before, if any
+    void stored(String fileName, long fileSize, long checksum, boolean compressed) throws IOException {
+        var previous = manifest.get(fileName);
+        manifest.put(fileName, fileSize, checksum, null, compressed);
+        if (previous != null && previous.content() != null) {
+            contents.release(previous.content());
+        }
+        cache.invalidate(fileName);
+    }
+    
+    //appends a small file to a segment, deleting a larger one stored before under the same name
+    void putSmall(String fileName, byte[] bytes) throws IOException {
+        if (!segments.put(fileName, bytes) && manifest.contains(fileName)) {
+            Files.deleteIfExists(path(fileName));
+        }
+    }
+    
+    //deletes the bytes of a file already removed from the manifest, or its reference to a blob
+    void delete(Manifest.Entry entry) throws IOException {
+        if (entry.content() != null) {
+            contents.release(entry.content());
+        } else if (!segments.remove(entry.name())) {
+            Files.deleteIfExists(path(entry.name()));
+        }
+        cache.invalidate(entry.name());
+    }
+    
+    //location of a stored file in the file folder, in its hashed subfolder
+    public Path path(String fileName) {
+        return layout.path(fileName);
+    }
+    
+    //folder for files still being received, renamed into the file folder once complete
+    public Path tempFolder() {
+        return Path.of(file_folder, TEMP_FOLDER);
+    }
+    
      class ClientThread implements Runnable {
         Socket client;
         
@@ -343,22 +872,31 @@ public class Dstore {
         @Override
         public void run() {
             try {
-                BufferedReader in = new BufferedReader(
-                    new InputStreamReader(client.getInputStream()));
+                RequestReader in = new RequestReader(client.getInputStream());
                 String line;
                 while ((line = in.readLine()) != null) {
                     System.out.println(line + " received");
-                    handleRequest(line, client);
+                    handleRequest(line, client, in);
                 }
-                client.close();
             } catch (Exception e) {
                 System.err.println("error in the listening loop for client:"
                     + client.getPort() + "\n" + e);
+            } finally {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    System.err.println("error closing the client socket: " + e);
+                }
             }
         }
     }
     
-    // command promptL java Dstore port cport timeout file_folder
+    // command promptL java Dstore port cport timeout file_folder [--name=value ...]
+    // options: --rebalance-workers=4 --threads=platform|virtual --backlog=1024
+    //          --cache-bytes=0 --cache-max-object=1m --checkpoint-interval=60
+    //          --verify-reads=true --scrub-rate=8m --scrub-age=3600
+    //          --small-file-size=16k --segment-size=64m --compact-interval=60 --dedup=false
+    //          --compression=none|fast|high
     // test command prompt: java Dstore 4322 4321 1000 tmp/dstore1
     public static void main(String[] args) {
         //TODO validate arguments
@@ -366,8 +904,9 @@ public class Dstore {
         int cport = Integer.parseInt(args[1]);
         int timeout = Integer.parseInt(args[2]);
         String file_folder = args[3];
+        Options options = new Options(args, 4);
         
-        Dstore dstore = new Dstore(port, cport, timeout, file_folder);
+        Dstore dstore = new Dstore(port, cport, timeout, file_folder, options);
         dstore.start();
     }
 
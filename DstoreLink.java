@@ -0,0 +1,171 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The control connection of the Controller to a Dstore. Everything the Dstore sends on it is read
+ * by a single reader, which hands each reply to the operation waiting for it, found by the reply
+ * token and the name it is about, as in STORE_ACK f. Only one STORE or REMOVE works on a file at a
+ * time, under its lock, so that key finds a single operation, and any number of them can wait on
+ * the connection at once. Requests are written a whole line at a time, so the lines of requests
+ * sent together do not mix.
+ */
+public class DstoreLink {
+
+    /**
+     * The replies an operation waits for, from one Dstore or several
+     */
+    public static class Acks {
+
+        private final CountDownLatch left;
+        // whether a Dstore lost counts as having replied, as it holds nothing any more
+        private final boolean lostReplies;
+        private volatile boolean failed;
+
+        /**
+         * @param count the number of replies
+         * @param lostReplies whether a Dstore lost counts as having replied, rather than failing
+         */
+        public Acks(int count, boolean lostReplies) {
+            this.left = new CountDownLatch(count);
+            this.lostReplies = lostReplies;
+        }
+
+        /**
+         * Counts a reply
+         */
+        public void ack() {
+            left.countDown();
+        }
+
+        /**
+         * Fails the operation, it stops waiting at once
+         */
+        public void fail() {
+            failed = true;
+            while (left.getCount() > 0) {
+                left.countDown();
+            }
+        }
+
+        /**
+         * @param timeout the longest to wait, in milliseconds
+         * @return whether every reply came in time
+         * @throws InterruptedException if interrupted while waiting
+         */
+        public boolean await(long timeout) throws InterruptedException {
+            return left.await(timeout, TimeUnit.MILLISECONDS) && !failed;
+        }
+
+        private void lost() {
+            if (lostReplies) {
+                ack();
+            } else {
+                fail();
+            }
+        }
+    }
+
+    private final int port;
+    private final Socket socket;
+    private final PrintWriter out;
+    // key: the reply expected, value: the operation waiting for it
+    private final Map<String, Acks> waiting;
+    private volatile boolean lost;
+
+    /**
+     * @param port the port of the Dstore
+     * @param socket the connection the Dstore joined on
+     * @throws IOException if the connection is closed
+     */
+    public DstoreLink(int port, Socket socket) throws IOException {
+        this.port = port;
+        this.socket = socket;
+        this.out = new PrintWriter(socket.getOutputStream(), true);
+        this.waiting = new ConcurrentHashMap<>();
+    }
+
+    public int port() {
+        return port;
+    }
+
+    public Socket socket() {
+        return socket;
+    }
+
+    /**
+     * Sends a request to the Dstore
+     * @param line the request
+     * @throws IOException if the connection is broken
+     */
+    public void send(String line) throws IOException {
+        synchronized (out) {
+            out.println(line);
+            if (out.checkError()) {
+                throw new IOException("connection to Dstore " + port + " is broken");
+            }
+        }
+    }
+
+    /**
+     * Waits for a reply, to be set up before the request that brings it is sent
+     * @param reply the reply, the token and the name it is about
+     * @param acks the operation counting it
+     */
+    public void expect(String reply, Acks acks) {
+        waiting.put(reply, acks);
+        if (lost && waiting.remove(reply, acks)) {
+            acks.lost();
+        }
+    }
+
+    /**
+     * Stops waiting for a reply, once the operation is done with it
+     * @param reply the reply
+     */
+    public void forget(String reply) {
+        waiting.remove(reply);
+    }
+
+    /**
+     * Reads the replies of the Dstore until the connection closes, then counts the ones still
+     * waited for as lost
+     * @param in the reader of the connection, past the JOIN
+     */
+    public void read(BufferedReader in) {
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                System.out.println(line + " received from Dstore " + port);
+                var acks = waiting.remove(keyOf(line));
+                if (acks == null) {
+                    System.err.println("no operation waiting for " + line + " from Dstore " + port);
+                } else {
+                    acks.ack();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("error in reading from Dstore " + port + ": " + e);
+        }
+        lost = true;
+        waiting.keySet().forEach(reply -> {
+            var acks = waiting.remove(reply);
+            if (acks != null) {
+                acks.lost();
+            }
+        });
+    }
+
+    //the reply an operation waits for, a REMOVE of a file the Dstore does not hold is done too
+    private static String keyOf(String line) {
+        if (line.startsWith(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + " ")) {
+            return Protocol.REMOVE_ACK_TOKEN + line.substring(line.indexOf(' '));
+        }
+        return line;
+    }
+}
@@ -0,0 +1,411 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32C;
+
+/**
+ * The Dstore side of erasure-coded files. A file is cut into stripes of k blocks, m parity
+ * blocks are computed for each stripe, and shard i, stored on its own Dstore, is block i of
+ * every stripe one after the other. The Dstore a client talks to does the coding: it splits and
+ * encodes a STORE as the bytes arrive and sends each shard to its Dstore, and it fetches k
+ * shards and decodes them for a LOAD_DATA, so clients only ever see whole files.
+ */
+public class ErasureCoding {
+
+    // largest block of a shard in a stripe, smaller files use smaller blocks
+    private static final int MAX_BLOCK = 64 * 1024;
+
+    /**
+     * Where the shards of a file are
+     * @param size the size of the file
+     * @param data k, the number of data shards
+     * @param parity m, the number of parity shards
+     * @param ports the port of the Dstore holding each shard, 0 if the shard is missing
+     */
+    public record Layout(long size, int data, int parity, List<Integer> ports) {
+
+        /**
+         * Reads a layout from the words after {@link Protocol#SHARDS_TOKEN}
+         * @param words the size, k, m and then the port of each shard
+         * @return the layout
+         */
+        public static Layout parse(List<String> words) {
+            var data = Integer.parseInt(words.get(1));
+            var parity = Integer.parseInt(words.get(2));
+            var ports = words.subList(3, 3 + data + parity).stream().map(Integer::parseInt).toList();
+            return new Layout(Long.parseLong(words.get(0)), data, parity, ports);
+        }
+
+        /**
+         * @return the words that {@link #parse} reads, starting with {@link Protocol#SHARDS_TOKEN}
+         */
+        public String toWords() {
+            var words = new StringBuilder(Protocol.SHARDS_TOKEN + " " + size + " " + data + " " + parity);
+            for (var port : ports) {
+                words.append(" ").append(port);
+            }
+            return words.toString();
+        }
+
+        /**
+         * @return the bytes each shard holds of one stripe, a multiple of the code's alignment
+         */
+        public int blockSize() {
+            var perShard = (size + data - 1) / data;
+            var aligned = (perShard + ReedSolomon.ALIGNMENT - 1) / ReedSolomon.ALIGNMENT * ReedSolomon.ALIGNMENT;
+            return (int) Math.max(ReedSolomon.ALIGNMENT, Math.min(MAX_BLOCK, aligned));
+        }
+
+        /**
+         * @return the number of stripes
+         */
+        public long stripes() {
+            var stripe = (long) blockSize() * data;
+            return (size + stripe - 1) / stripe;
+        }
+
+        /**
+         * @return the size of every shard
+         */
+        public long shardSize() {
+            return stripes() * blockSize();
+        }
+    }
+
+    /**
+     * @param fileName the name of an erasure-coded file
+     * @param shard the number of a shard
+     * @return the name the shard is stored under
+     */
+    public static String shardName(String fileName, int shard) {
+        return fileName + Protocol.PART_SEPARATOR + shard;
+    }
+
+    private final Dstore dstore;
+    private final ExecutorService repairs;
+
+    /**
+     * @param dstore the Dstore the shards are stored in
+     */
+    public ErasureCoding(Dstore dstore) {
+        this.dstore = dstore;
+        this.repairs = Executors.newSingleThreadExecutor(runnable -> {
+            var thread = new Thread(runnable, "shard-repair");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Receives a file and stores it as shards, coding each stripe as soon as it has arrived. Every
+     * Dstore holding a shard, this one included, sends STORE_ACK for it. If anything fails the
+     * shards not yet committed are abandoned, and the Controller sees the missing acks.
+     * @param fileName the name of the file
+     * @param layout where to store the shards
+     * @param in the stream of the file, positioned at its first byte
+     * @param expectedChecksum the CRC32C of the whole file, or {@link FileTransfer#UNKNOWN_CHECKSUM}
+     * @param accepted called once every shard's Dstore is ready, before the data is read
+     * @throws IOException if the file cannot be received or a shard cannot be stored
+     */
+    public void store(String fileName, Layout layout, InputStream in, long expectedChecksum,
+        Runnable accepted) throws IOException {
+        var code = new ReedSolomon(layout.data(), layout.parity());
+        var block = layout.blockSize();
+        var shards = layout.data() + layout.parity();
+        var sinks = new ArrayList<PartSink>();
+        try {
+            for (int i = 0; i < shards; i++) {
+                sinks.add(PartSink.open(dstore, shardName(fileName, i), layout.shardSize(), List.of(layout.ports().get(i))));
+            }
+            accepted.run();
+
+            //reading a stripe at a time, data blocks go out as they are and parity is computed
+            var stripe = new byte[block * layout.data()];
+            var blocks = new long[shards][block / Long.BYTES];
+            var parity = new byte[block];
+            var crc = new CRC32C();
+            var remaining = layout.size();
+            for (long s = 0; s < layout.stripes(); s++) {
+                var n = (int) Math.min(stripe.length, remaining);
+                if (in.readNBytes(stripe, 0, n) < n) {
+                    throw new EOFException("connection closed after " + (layout.size() - remaining)
+                        + " of " + layout.size() + " bytes");
+                }
+                crc.update(stripe, 0, n);
+                remaining -= n;
+                Arrays.fill(stripe, n, stripe.length, (byte) 0);
+
+                for (int j = 0; j < layout.data(); j++) {
+                    ReedSolomon.toLongs(stripe, j * block, block, blocks[j]);
+                    sinks.get(j).write(stripe, j * block, block);
+                }
+                code.encode(blocks, block / Long.BYTES);
+                for (int i = layout.data(); i < shards; i++) {
+                    ReedSolomon.toBytes(blocks[i], parity, 0, block);
+                    sinks.get(i).write(parity, 0, block);
+                }
+            }
+            if (in instanceof FileTransfer.ChunkedInputStream chunked) {
+                chunked.readEnd();
+            }
+            if (expectedChecksum != FileTransfer.UNKNOWN_CHECKSUM && crc.getValue() != expectedChecksum) {
+                throw new FileTransfer.ChecksumException("received bytes do not match the sender's checksum");
+            }
+
+            for (var sink : sinks) {
+                sink.commit(true);
+            }
+        } catch (IOException | RuntimeException e) {
+            sinks.forEach(PartSink::abort);
+            throw e;
+        }
+    }
+
+    /**
+     * Sends part of an erasure-coded file, fetching k shards at once and rebuilding missing data
+     * blocks from parity. Data shards are preferred, so a healthy file is only copied, and a
+     * shard that fails part way is replaced by another from the same stripe on.
+     * @param fileName the name of the file
+     * @param layout where the shards are
+     * @param offset the position of the first byte to send
+     * @param length the number of bytes to send, within the file
+     * @param client the socket to write to
+     * @throws IOException if fewer than k shards can be read or the client cannot be written
+     */
+    public void load(String fileName, Layout layout, long offset, long length, Socket client)
+        throws IOException {
+        if (length == 0) {
+            return;
+        }
+        var block = layout.blockSize();
+        var stripeSize = (long) block * layout.data();
+        var first = offset / stripeSize;
+        var last = (offset + length + stripeSize - 1) / stripeSize;
+        var sources = new Sources(fileName, layout, first, last);
+        try {
+            var code = new ReedSolomon(layout.data(), layout.parity());
+            var shards = layout.data() + layout.parity();
+            var stripe = new byte[(int) stripeSize];
+            var blocks = new long[shards][];
+            var out = client.getOutputStream();
+            for (var s = first; s < last; s++) {
+                var present = sources.readStripe(s, stripe, blocks);
+                if (!sources.allData()) {
+                    //rebuilding the missing data blocks only, from whichever k shards were read
+                    for (int j = 0; j < layout.data(); j++) {
+                        if (!present[j]) {
+                            blocks[j] = new long[block / Long.BYTES];
+                        }
+                    }
+                    code.reconstruct(blocks, present, block / Long.BYTES);
+                    for (int j = 0; j < layout.data(); j++) {
+                        if (!present[j]) {
+                            ReedSolomon.toBytes(blocks[j], stripe, j * block, block);
+                        }
+                    }
+                }
+
+                //only the part of the stripe inside the range
+                var stripeStart = s * stripeSize;
+                var from = Math.max(offset, stripeStart) - stripeStart;
+                var to = Math.min(offset + length, stripeStart + stripeSize) - stripeStart;
+                out.write(stripe, (int) from, (int) (to - from));
+            }
+            out.flush();
+        } finally {
+            sources.close();
+        }
+    }
+
+    /**
+     * Rebuilds a lost shard from k others and stores it here, in the background. The Controller
+     * finds it in the next LIST.
+     * @param fileName the name of the file
+     * @param layout where the other shards are
+     * @param shard the number of the shard to rebuild
+     */
+    public void repairLater(String fileName, Layout layout, int shard) {
+        repairs.execute(() -> {
+            try {
+                repair(fileName, layout, shard);
+                System.out.println("rebuilt shard " + shard + " of " + fileName);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("error rebuilding shard " + shard + " of " + fileName + ": " + e);
+            }
+        });
+    }
+
+    private void repair(String fileName, Layout layout, int shard) throws IOException {
+        //reading from every other shard, the one being rebuilt is not there
+        var ports = new ArrayList<>(layout.ports());
+        ports.set(shard, 0);
+        var others = new Layout(layout.size(), layout.data(), layout.parity(), ports);
+        var block = layout.blockSize();
+        var sources = new Sources(fileName, others, 0, layout.stripes());
+        var sink = PartSink.open(dstore, shardName(fileName, shard), layout.shardSize(), List.of(dstore.port));
+        try {
+            var code = new ReedSolomon(layout.data(), layout.parity());
+            var shards = layout.data() + layout.parity();
+            var stripe = new byte[block * layout.data()];
+            var bytes = new byte[block];
+            for (long s = 0; s < layout.stripes(); s++) {
+                var blocks = new long[shards][];
+                var present = sources.readStripe(s, stripe, blocks);
+                for (int j = 0; j < layout.data(); j++) {
+                    if (blocks[j] == null) {
+                        blocks[j] = new long[block / Long.BYTES];
+                    }
+                }
+                blocks[shard] = new long[block / Long.BYTES];
+                present[shard] = false;
+                code.reconstruct(blocks, present, block / Long.BYTES);
+                ReedSolomon.toBytes(blocks[shard], bytes, 0, block);
+                sink.write(bytes, 0, block);
+            }
+            sink.commit(false);
+        } catch (IOException | RuntimeException e) {
+            sink.abort();
+            throw e;
+        } finally {
+            sources.close();
+        }
+    }
+
+    /**
+     * The k shards a stripe is read from, data shards first
+     */
+    private class Sources {
+
+        final String fileName;
+        final Layout layout;
+        final long firstStripe;
+        final long lastStripe;
+        // open streams by shard number, null if not read from
+        final InputStream[] streams;
+        final Socket[] sockets;
+        // shards that failed or are missing, never tried again
+        final boolean[] failed;
+
+        Sources(String fileName, Layout layout, long firstStripe, long lastStripe) {
+            this.fileName = fileName;
+            this.layout = layout;
+            this.firstStripe = firstStripe;
+            this.lastStripe = lastStripe;
+            var shards = layout.data() + layout.parity();
+            this.streams = new InputStream[shards];
+            this.sockets = new Socket[shards];
+            this.failed = new boolean[shards];
+            for (int i = 0; i < shards; i++) {
+                failed[i] = layout.ports().get(i) == 0;
+            }
+        }
+
+        //whether every data shard is being read
+        boolean allData() {
+            for (int j = 0; j < layout.data(); j++) {
+                if (streams[j] == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Reads one stripe from k shards. Data blocks go into the stripe bytes, and every block
+         * read is also put in blocks if a data shard is missing.
+         * @return which shards were read
+         */
+        boolean[] readStripe(long s, byte[] stripe, long[][] blocks) throws IOException {
+            var block = layout.blockSize();
+            var shards = streams.length;
+            var present = new boolean[shards];
+            var bytes = new byte[block];
+            var read = 0;
+            for (int i = 0; i < shards && read < layout.data(); i++) {
+                if (failed[i]) {
+                    continue;
+                }
+                var target = i < layout.data() ? stripe : bytes;
+                var offset = i < layout.data() ? i * block : 0;
+                try {
+                    if (streams[i] == null) {
+                        open(i, s);
+                    }
+                    if (streams[i].readNBytes(target, offset, block) < block) {
+                        throw new EOFException("shard ended early");
+                    }
+                } catch (IOException e) {
+                    System.err.println("error reading shard " + i + " of " + fileName + ", trying another: " + e);
+                    failed[i] = true;
+                    closeShard(i);
+                    continue;
+                }
+                present[i] = true;
+                read++;
+                blocks[i] = new long[block / Long.BYTES];
+                ReedSolomon.toLongs(target, offset, block, blocks[i]);
+            }
+            if (read < layout.data()) {
+                throw new IOException("only " + read + " shards of " + fileName + " could be read");
+            }
+
+            //shards not needed for this stripe are not read from again until they are
+            for (int i = 0; i < shards; i++) {
+                if (!present[i] && streams[i] != null) {
+                    closeShard(i);
+                }
+            }
+            return present;
+        }
+
+        //starts reading a shard from the stripe s
+        void open(int shard, long s) throws IOException {
+            var name = shardName(fileName, shard);
+            var block = layout.blockSize();
+            var from = s * block;
+            var length = (lastStripe - s) * block;
+            var port = layout.ports().get(shard);
+            if (port == dstore.port) {
+                streams[shard] = dstore.open(name).newInputStream(from);
+                return;
+            }
+            var socket = new Socket(InetAddress.getLocalHost(), port);
+            socket.setSoTimeout(dstore.timeout);
+            sockets[shard] = socket;
+            var request = Protocol.LOAD_DATA_TOKEN + " " + name;
+            if (from > 0 || length < layout.shardSize()) {
+                request += " " + from + " " + length; //the whole shard is checked against its checksum
+            }
+            new PrintWriter(socket.getOutputStream(), true).println(request);
+            streams[shard] = socket.getInputStream();
+        }
+
+        void closeShard(int shard) {
+            try {
+                if (sockets[shard] != null) {
+                    sockets[shard].close();
+                } else if (streams[shard] != null) {
+                    streams[shard].close();
+                }
+            } catch (IOException e) {
+                System.err.println("error closing shard " + shard + " of " + fileName + ": " + e);
+            }
+            streams[shard] = null;
+            sockets[shard] = null;
+        }
+
+        void close() {
+            for (int i = 0; i < streams.length; i++) {
+                closeShard(i);
+            }
+        }
+    }
+}
@@ -0,0 +1,275 @@
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Locks on files by name, shared or exclusive. A LOAD shares the lock of its file, a STORE or
+ * REMOVE holds it exclusively, and a rebalance shares the locks of the files it moves, so it is
+ * kept off the files being stored or removed but not off the ones being loaded. The locks are
+ * granted in the order they are asked for, a shared lock is not granted past an exclusive one
+ * waiting, and a lock can be waited for with a timeout.
+ *
+ * The files are spread over stripes by the hash of their name, each with its own lock and table
+ * of the files locked or waited for, so requests on different files rarely meet. A file is only in
+ * the table while it is locked or waited for.
+ */
+public class FileLocks {
+
+    public enum Mode { SHARED, EXCLUSIVE }
+
+    private static final int STRIPES = 64;
+
+    //a request for a lock, queued until it is granted or given up
+    private static class Waiter {
+
+        final Mode mode;
+        final Condition granted;
+        boolean done;
+
+        Waiter(Mode mode, Condition granted) {
+            this.mode = mode;
+            this.granted = granted;
+        }
+    }
+
+    //the holders of the lock on a file and the requests waiting for it, in order
+    private static class Entry {
+
+        int shared;
+        boolean exclusive;
+        final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+
+        boolean allows(Mode mode) {
+            return mode == Mode.SHARED ? !exclusive : !exclusive && shared == 0;
+        }
+
+        void hold(Mode mode) {
+            if (mode == Mode.SHARED) {
+                shared++;
+            } else {
+                exclusive = true;
+            }
+        }
+
+        boolean idle() {
+            return shared == 0 && !exclusive && queue.isEmpty();
+        }
+    }
+
+    private static class Stripe {
+
+        final ReentrantLock lock = new ReentrantLock();
+        // key: file, value: its lock, while it is held or waited for
+        final Map<String, Entry> entries = new HashMap<>();
+    }
+
+    private final Stripe[] stripes;
+    // the files locked exclusively since a rebalance listed the Dstores, null outside of one
+    private volatile Set<String> touched;
+
+    private final AtomicLong acquired;
+    private final AtomicLong contended;
+    private final AtomicLong timedOut;
+    private final AtomicLong waitNanos;
+    private final AtomicLong maxWaitNanos;
+
+    public FileLocks() {
+        this.stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.acquired = new AtomicLong();
+        this.contended = new AtomicLong();
+        this.timedOut = new AtomicLong();
+        this.waitNanos = new AtomicLong();
+        this.maxWaitNanos = new AtomicLong();
+    }
+
+    /**
+     * Locks a file, waiting as long as it takes
+     * @param file the name of the file
+     * @param mode shared or exclusive
+     */
+    public void lock(String file, Mode mode) {
+        tryLock(file, mode, -1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Locks a file, unless it is not granted in time. An interrupt does not stop the wait, it is
+     * kept for the caller
+     * @param file the name of the file
+     * @param mode shared or exclusive
+     * @param time the longest to wait, 0 to only take a lock that is free, negative for no limit
+     * @param unit the unit of time
+     * @return whether the lock is held
+     */
+    public boolean tryLock(String file, Mode mode, long time, TimeUnit unit) {
+        var stripe = stripeOf(file);
+        stripe.lock.lock();
+        try {
+            var entry = stripe.entries.computeIfAbsent(file, f -> new Entry());
+            if (entry.queue.isEmpty() && entry.allows(mode)) {
+                entry.hold(mode);
+                granted(file, mode);
+                return true;
+            }
+            if (time == 0) {
+                drop(stripe, file, entry);
+                return false;
+            }
+            contended.incrementAndGet();
+            var waiter = new Waiter(mode, stripe.lock.newCondition());
+            entry.queue.add(waiter);
+            var start = System.nanoTime();
+            var left = unit.toNanos(time);
+            var interrupted = false;
+            while (!waiter.done && (time < 0 || left > 0)) {
+                try {
+                    if (time < 0) {
+                        waiter.granted.await();
+                    } else {
+                        left = waiter.granted.awaitNanos(left);
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            waited(System.nanoTime() - start);
+            if (!waiter.done) {
+                //giving up, which may let the requests queued behind it go
+                timedOut.incrementAndGet();
+                entry.queue.remove(waiter);
+                grant(entry);
+                drop(stripe, file, entry);
+                return false;
+            }
+            granted(file, mode);
+            return true;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * @param file the name of a file locked in the mode
+     * @param mode shared or exclusive
+     */
+    public void unlock(String file, Mode mode) {
+        var stripe = stripeOf(file);
+        stripe.lock.lock();
+        try {
+            var entry = stripe.entries.get(file);
+            if (entry == null) {
+                return;
+            }
+            if (mode == Mode.SHARED) {
+                entry.shared = Math.max(0, entry.shared - 1);
+            } else {
+                entry.exclusive = false;
+            }
+            grant(entry);
+            drop(stripe, file, entry);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Starts noting the files locked exclusively, the ones locked so already too, before a
+     * rebalance lists the Dstores
+     */
+    public void track() {
+        var files = ConcurrentHashMap.<String>newKeySet();
+        touched = files;
+        for (var stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                stripe.entries.forEach((file, entry) -> {
+                    if (entry.exclusive) {
+                        files.add(file);
+                    }
+                });
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the files locked exclusively since the Dstores were listed, a live view
+     */
+    public Set<String> touched() {
+        var files = touched;
+        return files == null ? Set.of() : files;
+    }
+
+    /**
+     * Stops noting the files locked exclusively, once the rebalance is done
+     */
+    public void untrack() {
+        touched = null;
+    }
+
+    public long getAcquired() {
+        return acquired.get();
+    }
+
+    public long getContended() {
+        return contended.get();
+    }
+
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+
+    @Override
+    public String toString() {
+        var waits = contended.get();
+        return "acquired=" + acquired + " contended=" + waits + " timedOut=" + timedOut
+            + " avgWaitMs=" + (waits == 0 ? 0 : waitNanos.get() / waits / 1_000_000)
+            + " maxWaitMs=" + maxWaitNanos.get() / 1_000_000;
+    }
+
+    //grants the lock to the requests at the head of the queue it allows, in order
+    private static void grant(Entry entry) {
+        while (!entry.queue.isEmpty() && entry.allows(entry.queue.peek().mode)) {
+            var waiter = entry.queue.poll();
+            entry.hold(waiter.mode);
+            waiter.done = true;
+            waiter.granted.signal();
+        }
+    }
+
+    private static void drop(Stripe stripe, String file, Entry entry) {
+        if (entry.idle()) {
+            stripe.entries.remove(file);
+        }
+    }
+
+    private void granted(String file, Mode mode) {
+        acquired.incrementAndGet();
+        var files = touched;
+        if (mode == Mode.EXCLUSIVE && files != null) {
+            files.add(file);
+        }
+    }
+
+    private void waited(long nanos) {
+        waitNanos.addAndGet(nanos);
+        maxWaitNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    private Stripe stripeOf(String file) {
+        var hash = file.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+}
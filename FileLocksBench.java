@@ -0,0 +1,107 @@
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures {@link FileLocks} against one global monitor, which is how the Controller serialized
+ * requests before. Each thread locks a random file, holds the lock for a while, as a request
+ * waiting on the network does, and unlocks it. Most locks are shared, the rest exclusive. It then
+ * checks an exclusive lock is granted behind readers that keep taking the lock, rather than
+ * starving.
+ *
+ * Run it from the folder of the sources with:
+ *   javac -d out -cp client.jar *.java
+ *   java -cp out FileLocksBench [--files=10000] [--threads=1,2,4,8,16] [--hold-ms=1]
+ *     [--shared-percent=70] [--seconds=2]
+ */
+public class FileLocksBench {
+
+    public static void main(String[] args) throws Exception {
+        var options = new Options(args, 0);
+        var files = options.getInt("files", 10_000);
+        var holdMs = options.getInt("hold-ms", 1);
+        var sharedPercent = options.getInt("shared-percent", 70);
+        var seconds = options.getInt("seconds", 2);
+        System.out.println(Runtime.getRuntime().availableProcessors() + " CPUs, " + files + " files, "
+            + holdMs + " ms held, " + sharedPercent + "% shared");
+
+        for (var count : options.get("threads", "1,2,4,8,16").split(",")) {
+            var threads = Integer.parseInt(count.trim());
+            for (var global : new boolean[] {true, false}) {
+                var locks = new FileLocks();
+                var monitor = new Object();
+                var operations = new LongAdder();
+                var stop = new AtomicBoolean();
+                var workers = new ArrayList<Thread>();
+                for (int t = 0; t < threads; t++) {
+                    workers.add(Thread.ofPlatform().start(() -> {
+                        var random = ThreadLocalRandom.current();
+                        while (!stop.get()) {
+                            var file = "file" + random.nextInt(files);
+                            var mode = random.nextInt(100) < sharedPercent
+                                ? FileLocks.Mode.SHARED : FileLocks.Mode.EXCLUSIVE;
+                            if (global) {
+                                synchronized (monitor) {
+                                    hold(holdMs);
+                                }
+                            } else {
+                                locks.lock(file, mode);
+                                try {
+                                    hold(holdMs);
+                                } finally {
+                                    locks.unlock(file, mode);
+                                }
+                            }
+                            operations.increment();
+                        }
+                    }));
+                }
+                Thread.sleep(seconds * 1000L);
+                stop.set(true);
+                for (var worker : workers) {
+                    worker.join();
+                }
+                System.out.printf("%-15s threads=%2d %8d ops/s %s%n", global ? "global monitor" : "FileLocks",
+                    threads, operations.sum() / seconds, global ? "" : locks);
+            }
+        }
+        writerBehindReaders(holdMs);
+    }
+
+    //eight readers keep sharing one file, an exclusive lock asked for meanwhile must still come
+    private static void writerBehindReaders(int holdMs) throws InterruptedException {
+        var locks = new FileLocks();
+        var stop = new AtomicBoolean();
+        var readers = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            readers.add(Thread.ofPlatform().start(() -> {
+                while (!stop.get()) {
+                    locks.lock("file", FileLocks.Mode.SHARED);
+                    try {
+                        hold(holdMs * 2);
+                    } finally {
+                        locks.unlock("file", FileLocks.Mode.SHARED);
+                    }
+                }
+            }));
+        }
+        Thread.sleep(100);
+        var start = System.nanoTime();
+        locks.lock("file", FileLocks.Mode.EXCLUSIVE);
+        System.out.printf("exclusive lock behind 8 readers granted in %.1f ms%n", (System.nanoTime() - start) / 1e6);
+        locks.unlock("file", FileLocks.Mode.EXCLUSIVE);
+        stop.set(true);
+        for (var reader : readers) {
+            reader.join();
+        }
+    }
+
+    private static void hold(int ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
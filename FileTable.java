@@ -0,0 +1,568 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the files of the index compactly, so the Controller holds hundreds of millions of them.
+ * A file is a slot in one of a fixed number of segments, picked by the hash of its name, and each
+ * segment is guarded by its own lock. The name is kept once as UTF-8 bytes, found through an open
+ * addressing table of slot numbers; the status and size are packed in a long; and the replicas,
+ * Dstore ids of 16 bits, are packed four to a long, a file with more of them keeping an array on
+ * the side. A file is known elsewhere by an id made of its segment and slot, which is reused once
+ * the file is removed.
+ */
+public class FileTable {
+
+    private static final int SEGMENT_BITS = 6;
+    private static final int SLOT_BITS = 31 - SEGMENT_BITS;
+    private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+    // the replicas of a file with more of them are kept in an array on the side
+    private static final int PACKED = 4;
+    private static final long OVERFLOW = -1L;
+    // Dstore ids go from 1 to MAX_DSTORE, 0 is an empty place in the packed replicas
+    static final int MAX_DSTORE = 0xFFFE;
+    private static final int STATUS_SHIFT = 61;
+    private static final long SIZE_MASK = (1L << STATUS_SHIFT) - 1;
+    private static final Status[] STATUSES = Status.values();
+
+    /**
+     * A file taken out of the table
+     * @param id the id the file had
+     * @param replicas the ids of the Dstores that held it
+     */
+    public record Removed(int id, int[] replicas) {}
+
+    /**
+     * What {@link #forEach} finds for each file
+     */
+    public interface Visitor {
+        void visit(String name, Status status, long size);
+    }
+
+    private final Segment[] segments;
+
+    public FileTable() {
+        this.segments = new Segment[1 << SEGMENT_BITS];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(i);
+        }
+    }
+
+    /**
+     * @param name the name of the file
+     * @param status its status
+     * @param size its size, or -1 if it is not known
+     * @return the id of the file, or -1 if a file with that name is already in the table
+     */
+    public int add(String name, Status status, long size) {
+        var bytes = name.getBytes(StandardCharsets.UTF_8);
+        var hash = hash(bytes);
+        var segment = segmentOf(hash);
+        synchronized (segment) {
+            var position = segment.position(bytes, hash);
+            if (position >= 0) {
+                return -1;
+            }
+            return idOf(segment, segment.add(bytes, ~position, pack(status, size)));
+        }
+    }
+
+    /**
+     * @param name the name of a file
+     * @return its status, or null if it is not in the table
+     */
+    public Status statusOf(String name) {
+        var bytes = name.getBytes(StandardCharsets.UTF_8);
+        var hash = hash(bytes);
+        var segment = segmentOf(hash);
+        synchronized (segment) {
+            var slot = segment.slot(bytes, hash);
+            return slot < 0 ? null : statusOf(segment.meta[slot]);
+        }
+    }
+
+    /**
+     * @param name the name of a file
+     * @return its size, or -1 if it is not known or the file is not in the table
+     */
+    public long sizeOf(String name) {
+        var bytes = name.getBytes(StandardCharsets.UTF_8);
+        var hash = hash(bytes);
+        var segment = segmentOf(hash);
+        synchronized (segment) {
+            var slot = segment.slot(bytes, hash);
+            return slot < 0 ? -1 : sizeOf(segment.meta[slot]);
+        }
+    }
+
+    /**
+     * @param name the name of a file
+     * @return the ids of the Dstores holding it, or null if it is not in the table
+     */
+    public int[] replicasOf(String name) {
+        var bytes = name.getBytes(StandardCharsets.UTF_8);
+        var hash = hash(bytes);
+        var segment = segmentOf(hash);
+        synchronized (segment) {
+            var slot = segment.slot(bytes, hash);
+            return slot < 0 ? null : segment.replicas(slot);
+        }
+    }
+
+    /**
+     * @param name the name of a file
+     * @param expected the status it must have
+     * @param status the status it gets
+     * @return whether the file was there with the expected status
+     */
+    public boolean replaceStatus(String name, Status expected, Status status) {
+        var bytes = name.getBytes(StandardCharsets.UTF_8);
+        var hash = hash(bytes);
+        var segment = segmentOf(hash);
+        synchronized (segment) {
+            var slot = segment.slot(bytes, hash);
+            if (slot < 0 || statusOf(segment.meta[slot]) != expected) {
+                return false;
+            }
+            segment.meta[slot] = pack(status, sizeOf(segment.meta[slot]));
+            return true;
+        }
+    }
+
+    /**
+     * @param name the name of a file
+     * @param dstore the id of a Dstore holding it
+     * @return the id of the file, or -1 if it is not in the table
+     */
+    public int addReplica(String name, int dstore) {
+        var bytes = name.getBytes(StandardCharsets.UTF_8);
+        var hash = hash(bytes);
+        var segment = segmentOf(hash);
+        synchronized (segment) {
+            var slot = segment.slot(bytes, hash);
+            if (slot < 0) {
+                return -1;
+            }
+            segment.addReplica(slot, dstore);
+            return idOf(segment, slot);
+        }
+    }
+
+    /**
+     * @param id the id of a file
+     * @param dstore the id of a Dstore
+     * @return the name of the file, or null if the Dstore did not hold it
+     */
+    public String removeReplica(int id, int dstore) {
+        var segment = segments[id >>> SLOT_BITS];
+        var slot = id & SLOT_MASK;
+        synchronized (segment) {
+            if (slot >= segment.used || segment.names[slot] == null || !segment.removeReplica(slot, dstore)) {
+                return null;
+            }
+            return new String(segment.names[slot], StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * @param name the name of a file
+     * @return whether the file was in the table with no replicas left, and is now removed
+     */
+    public boolean removeIfNoReplicas(String name) {
+        var bytes = name.getBytes(StandardCharsets.UTF_8);
+        var hash = hash(bytes);
+        var segment = segmentOf(hash);
+        synchronized (segment) {
+            var position = segment.position(bytes, hash);
+            if (position < 0 || segment.replicas(segment.table[position] - 1).length > 0) {
+                return false;
+            }
+            segment.remove(position);
+            return true;
+        }
+    }
+
+    /**
+     * @param name the name of a file
+     * @return the file, or null if it was not in the table
+     */
+    public Removed remove(String name) {
+        var bytes = name.getBytes(StandardCharsets.UTF_8);
+        var hash = hash(bytes);
+        var segment = segmentOf(hash);
+        synchronized (segment) {
+            var position = segment.position(bytes, hash);
+            if (position < 0) {
+                return null;
+            }
+            var slot = segment.table[position] - 1;
+            var removed = new Removed(idOf(segment, slot), segment.replicas(slot));
+            segment.remove(position);
+            return removed;
+        }
+    }
+
+    /**
+     * Visits every file, one segment at a time, so a file added or removed meanwhile may be
+     * missed. The visitor must not use the table.
+     * @param visitor what is done with each file
+     */
+    public void forEach(Visitor visitor) {
+        for (var segment : segments) {
+            synchronized (segment) {
+                for (int slot = 0; slot < segment.used; slot++) {
+                    if (segment.names[slot] != null) {
+                        var meta = segment.meta[slot];
+                        visitor.visit(new String(segment.names[slot], StandardCharsets.UTF_8),
+                            statusOf(meta), sizeOf(meta));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param status the status of the files, or null for every file
+     * @return the names of the files with that status
+     */
+    public List<String> names(Status status) {
+        var names = new ArrayList<String>();
+        forEach((name, s, size) -> {
+            if (status == null || s == status) {
+                names.add(name);
+            }
+        });
+        return names;
+    }
+
+    /**
+     * @return the number of files in the table
+     */
+    public int size() {
+        var size = 0;
+        for (var segment : segments) {
+            synchronized (segment) {
+                size += segment.count;
+            }
+        }
+        return size;
+    }
+
+    private Segment segmentOf(int hash) {
+        return segments[hash >>> (32 - SEGMENT_BITS)];
+    }
+
+    private int idOf(Segment segment, int slot) {
+        if (slot > SLOT_MASK) {
+            throw new IllegalStateException("too many files in a segment of the index");
+        }
+        return segment.number << SLOT_BITS | slot;
+    }
+
+    private static int hash(byte[] name) {
+        var h = Arrays.hashCode(name) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static long pack(Status status, long size) {
+        return (long) (status.ordinal() + 1) << STATUS_SHIFT | (size < 0 ? SIZE_MASK : size);
+    }
+
+    private static Status statusOf(long meta) {
+        return STATUSES[(int) (meta >>> STATUS_SHIFT) - 1];
+    }
+
+    private static long sizeOf(long meta) {
+        var size = meta & SIZE_MASK;
+        return size == SIZE_MASK ? -1 : size;
+    }
+
+    //the files whose name hashes to one segment, used with its lock held
+    private static class Segment {
+
+        private final int number;
+        private byte[][] names;
+        // the status and size of each file
+        private long[] meta;
+        // the ids of the Dstores holding each file, 16 bits each, or OVERFLOW
+        private long[] replicas;
+        // key: slot, value: the ids of the Dstores holding a file with more than PACKED of them
+        private final Map<Integer, char[]> overflow;
+        // the slot + 1 of each name at the place its hash leads to, or after it, 0 for none
+        private int[] table;
+        private int[] free;
+        private int freeCount;
+        // slots handed out so far, free or not
+        private int used;
+        private int count;
+
+        Segment(int number) {
+            this.number = number;
+            this.names = new byte[16][];
+            this.meta = new long[16];
+            this.replicas = new long[16];
+            this.overflow = new HashMap<>();
+            this.table = new int[32];
+            this.free = new int[16];
+        }
+
+        //the place of a name in the table, or ~ the empty place it would go to
+        int position(byte[] name, int hash) {
+            var mask = table.length - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                if (table[i] == 0) {
+                    return ~i;
+                }
+                if (Arrays.equals(names[table[i] - 1], name)) {
+                    return i;
+                }
+            }
+        }
+
+        int slot(byte[] name, int hash) {
+            var position = position(name, hash);
+            return position < 0 ? -1 : table[position] - 1;
+        }
+
+        int add(byte[] name, int position, long packed) {
+            int slot;
+            if (freeCount > 0) {
+                slot = free[--freeCount];
+            } else {
+                if (used == names.length) {
+                    var capacity = names.length + (names.length >> 1);
+                    names = Arrays.copyOf(names, capacity);
+                    meta = Arrays.copyOf(meta, capacity);
+                    replicas = Arrays.copyOf(replicas, capacity);
+                }
+                slot = used++;
+            }
+            names[slot] = name;
+            meta[slot] = packed;
+            replicas[slot] = 0;
+            table[position] = slot + 1;
+            count++;
+            if (count * 4L > table.length * 3L) {
+                rehash(table.length * 2);
+            }
+            return slot;
+        }
+
+        //takes the name out of the table, moving back the names after it that were pushed along
+        void remove(int position) {
+            var slot = table[position] - 1;
+            names[slot] = null;
+            meta[slot] = 0;
+            replicas[slot] = 0;
+            overflow.remove(slot);
+            if (freeCount == free.length) {
+                free = Arrays.copyOf(free, free.length * 2);
+            }
+            free[freeCount++] = slot;
+            count--;
+
+            var mask = table.length - 1;
+            var hole = position;
+            table[hole] = 0;
+            for (int i = (hole + 1) & mask; table[i] != 0; i = (i + 1) & mask) {
+                var home = hash(names[table[i] - 1]) & mask;
+                if (((i - home) & mask) >= ((i - hole) & mask)) {
+                    table[hole] = table[i];
+                    table[i] = 0;
+                    hole = i;
+                }
+            }
+        }
+
+        private void rehash(int capacity) {
+            table = new int[capacity];
+            var mask = capacity - 1;
+            for (int slot = 0; slot < used; slot++) {
+                if (names[slot] == null) {
+                    continue;
+                }
+                var i = hash(names[slot]) & mask;
+                while (table[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = slot + 1;
+            }
+        }
+
+        int[] replicas(int slot) {
+            var packed = replicas[slot];
+            if (packed == OVERFLOW) {
+                var ids = overflow.get(slot);
+                var result = new int[ids.length];
+                for (int i = 0; i < ids.length; i++) {
+                    result[i] = ids[i];
+                }
+                return result;
+            }
+            var result = new int[PACKED];
+            var n = 0;
+            for (int i = 0; i < PACKED; i++) {
+                var id = (int) (packed >>> (16 * i)) & 0xFFFF;
+                if (id != 0) {
+                    result[n++] = id;
+                }
+            }
+            return Arrays.copyOf(result, n);
+        }
+
+        void addReplica(int slot, int dstore) {
+            var current = replicas(slot);
+            for (var id : current) {
+                if (id == dstore) {
+                    return;
+                }
+            }
+            var packed = replicas[slot];
+            if (current.length < PACKED) {
+                for (int i = 0; i < PACKED; i++) {
+                    if (((packed >>> (16 * i)) & 0xFFFF) == 0) {
+                        replicas[slot] = packed | (long) dstore << (16 * i);
+                        return;
+                    }
+                }
+            }
+            var ids = new char[current.length + 1];
+            for (int i = 0; i < current.length; i++) {
+                ids[i] = (char) current[i];
+            }
+            ids[current.length] = (char) dstore;
+            overflow.put(slot, ids);
+            replicas[slot] = OVERFLOW;
+        }
+
+        boolean removeReplica(int slot, int dstore) {
+            var packed = replicas[slot];
+            if (packed != OVERFLOW) {
+                for (int i = 0; i < PACKED; i++) {
+                    if (((packed >>> (16 * i)) & 0xFFFF) == dstore) {
+                        replicas[slot] = packed & ~(0xFFFFL << (16 * i));
+                        return true;
+                    }
+                }
+                return false;
+            }
+            var current = replicas(slot);
+            var left = new int[current.length];
+            var n = 0;
+            for (var id : current) {
+                if (id != dstore) {
+                    left[n++] = id;
+                }
+            }
+            if (n == current.length) {
+                return false;
+            }
+            if (n > PACKED) {
+                var ids = new char[n];
+                for (int i = 0; i < n; i++) {
+                    ids[i] = (char) left[i];
+                }
+                overflow.put(slot, ids);
+                return true;
+            }
+            overflow.remove(slot);
+            replicas[slot] = 0;
+            for (int i = 0; i < n; i++) {
+                replicas[slot] |= (long) left[i] << (16 * i);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A set of file ids in an open addressing table, used with a lock held
+     */
+    static class IdSet {
+
+        private static final int EMPTY = -1;
+
+        private int[] table;
+        private int size;
+
+        IdSet() {
+            this.table = new int[8];
+            Arrays.fill(table, EMPTY);
+        }
+
+        boolean add(int id) {
+            var mask = table.length - 1;
+            var i = mix(id) & mask;
+            for (; table[i] != EMPTY; i = (i + 1) & mask) {
+                if (table[i] == id) {
+                    return false;
+                }
+            }
+            table[i] = id;
+            size++;
+            if (size * 4L > table.length * 3L) {
+                grow();
+            }
+            return true;
+        }
+
+        boolean remove(int id) {
+            var mask = table.length - 1;
+            var hole = mix(id) & mask;
+            for (; table[hole] != id; hole = (hole + 1) & mask) {
+                if (table[hole] == EMPTY) {
+                    return false;
+                }
+            }
+            table[hole] = EMPTY;
+            size--;
+            for (int i = (hole + 1) & mask; table[i] != EMPTY; i = (i + 1) & mask) {
+                var home = mix(table[i]) & mask;
+                if (((i - home) & mask) >= ((i - hole) & mask)) {
+                    table[hole] = table[i];
+                    table[i] = EMPTY;
+                    hole = i;
+                }
+            }
+            return true;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] toArray() {
+            var ids = new int[size];
+            var n = 0;
+            for (var id : table) {
+                if (id != EMPTY) {
+                    ids[n++] = id;
+                }
+            }
+            return ids;
+        }
+
+        private void grow() {
+            var old = table;
+            table = new int[old.length * 2];
+            Arrays.fill(table, EMPTY);
+            var mask = table.length - 1;
+            for (var id : old) {
+                if (id != EMPTY) {
+                    var i = mix(id) & mask;
+                    while (table[i] != EMPTY) {
+                        i = (i + 1) & mask;
+                    }
+                    table[i] = id;
+                }
+            }
+        }
+
+        private static int mix(int id) {
+            var h = id * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,490 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.function.UnaryOperator;
+import java.util.zip.CRC32C;
+
+/**
+ * Helpers for moving file contents between the disk and a socket without staging the whole
+ * file on the heap
+ */
+public class FileTransfer {
+
+    // size of the buffer used when the bytes have to pass through user space
+    public static final int BUFFER_SIZE = 64 * 1024;
+    
+    // checksum of a file whose contents were never checksummed
+    public static final long UNKNOWN_CHECKSUM = -1;
+
+    /**
+     * Sends a whole file to the socket
+     * @param file the file to send
+     * @param socket the socket to write to
+     * @return the number of bytes sent
+     * @throws IOException if the file cannot be read or the socket cannot be written
+     */
+    public static long sendFile(StoredFile file, Socket socket) throws IOException {
+        return send(file, 0, file.size(), socket);
+    }
+
+    /**
+     * Sends count bytes of a stored file starting at position to the socket, with sendfile unless
+     * the file is compressed and has to be inflated on the way
+     * @param file the file to send from
+     * @param position the position in the file of the first byte to send
+     * @param count the number of bytes to send
+     * @param socket the socket to write to
+     * @return the number of bytes sent
+     * @throws IOException if the file ends early or the socket cannot be written
+     */
+    public static long send(StoredFile file, long position, long count, Socket socket)
+        throws IOException {
+        if (!file.compressed()) {
+            return send(file.channel(), file.offset() + position, count, socket);
+        }
+        var out = socket.getOutputStream();
+        var buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(count, 1)));
+        var sent = 0L;
+        while (sent < count) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), count - sent));
+            var n = file.read(buffer, position + sent);
+            if (n < 0) {
+                throw new IOException("file ended after " + sent + " of " + count + " bytes");
+            }
+            out.write(buffer.array(), 0, n);
+            sent += n;
+        }
+        out.flush();
+        return sent;
+    }
+
+    /**
+     * Sends count bytes of the file starting at position to the socket. If the socket is backed
+     * by a channel the bytes go straight from the page cache to the socket (sendfile), otherwise
+     * they are copied through a small fixed-size buffer.
+     * @param file the file to send from
+     * @param position the position in the file of the first byte to send
+     * @param count the number of bytes to send
+     * @param socket the socket to write to
+     * @return the number of bytes sent
+     * @throws IOException if the file ends early or the socket cannot be written
+     */
+    public static long send(FileChannel file, long position, long count, Socket socket)
+        throws IOException {
+        var channel = socket.getChannel();
+        if (channel != null) {
+            return transfer(file, position, count, channel);
+        }
+        return copy(file, position, count, socket.getOutputStream());
+    }
+
+    /**
+     * Sends a whole file to the socket, checking its CRC32C as the bytes go out. The last chunk is
+     * held back until the checksum is known, so a corrupt file is never sent in full and the
+     * receiver sees a short transfer instead of silently wrong data.
+     * @param file the file to send
+     * @param expectedChecksum the CRC32C the file had when it was stored
+     * @param socket the socket to write to
+     * @return the number of bytes sent
+     * @throws ChecksumException if the contents do not match the checksum
+     * @throws IOException if the file cannot be read or the socket cannot be written
+     */
+    public static long sendVerified(StoredFile file, long expectedChecksum, Socket socket)
+        throws IOException {
+        var size = file.size();
+        var channel = socket.getChannel();
+        var out = channel == null ? socket.getOutputStream() : null;
+        var buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(size, 1)));
+        var crc = new CRC32C();
+        var position = 0L;
+        while (position < size) {
+            buffer.clear();
+            var n = file.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("file ended after " + position + " of " + size + " bytes");
+            }
+            position += n;
+            crc.update(buffer.array(), 0, n);
+            if (position >= size && crc.getValue() != expectedChecksum) {
+                throw new ChecksumException("the file does not match its checksum");
+            }
+            
+            buffer.flip();
+            if (channel != null) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } else {
+                out.write(buffer.array(), 0, n);
+            }
+        }
+        if (out != null) {
+            out.flush();
+        }
+        return size;
+    }
+    
+    /**
+     * Sends the remaining bytes of a buffer to the socket, straight from the buffer if the socket
+     * is backed by a channel
+     * @param buffer the bytes to send, from its position to its limit
+     * @param socket the socket to write to
+     * @return the number of bytes sent
+     * @throws IOException if the socket cannot be written
+     */
+    public static long send(ByteBuffer buffer, Socket socket) throws IOException {
+        var count = buffer.remaining();
+        var channel = socket.getChannel();
+        if (channel != null) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            return count;
+        }
+        var out = socket.getOutputStream();
+        var chunk = new byte[Math.min(BUFFER_SIZE, Math.max(count, 1))];
+        while (buffer.hasRemaining()) {
+            var n = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, n);
+            out.write(chunk, 0, n);
+        }
+        out.flush();
+        return count;
+    }
+
+    /**
+     * Zero-copy path, the kernel moves the bytes from the file to the target channel
+     */
+    private static long transfer(FileChannel file, long position, long count,
+        WritableByteChannel target) throws IOException {
+        var sent = 0L;
+        while (sent < count) {
+            var n = file.transferTo(position + sent, count - sent, target);
+            if (n <= 0 && position + sent >= file.size()) {
+                throw new IOException("file ended after " + sent + " of " + count + " bytes");
+            }
+            sent += n;
+        }
+        return sent;
+    }
+
+    /**
+     * Sends count bytes of the file starting at position to a stream, through one reused buffer.
+     * This is also the fallback path for sockets without a channel.
+     * @param file the file to send from
+     * @param position the position in the file of the first byte to send
+     * @param count the number of bytes to send
+     * @param out the stream to write to
+     * @return the number of bytes sent
+     * @throws IOException if the file ends early or the stream cannot be written
+     */
+    public static long copy(FileChannel file, long position, long count, OutputStream out)
+        throws IOException {
+        var buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(count, 1))];
+        var wrapper = ByteBuffer.wrap(buffer);
+        var sent = 0L;
+        while (sent < count) {
+            wrapper.clear().limit((int) Math.min(buffer.length, count - sent));
+            var n = file.read(wrapper, position + sent);
+            if (n < 0) {
+                throw new IOException("file ended after " + sent + " of " + count + " bytes");
+            }
+            out.write(buffer, 0, n);
+            sent += n;
+        }
+        out.flush();
+        return sent;
+    }
+
+    /**
+     * Receives exactly size bytes from the stream into a temporary file and renames it to the
+     * target only once all the bytes have arrived, so a partial upload is never visible under
+     * the final name. The temporary file is deleted if anything goes wrong. The CRC32C of the
+     * bytes is computed as they pass through, and checked before the rename if the sender gave one.
+     * @param in the stream to read from
+     * @param size the number of bytes expected
+     * @param target the final location of the file
+     * @param tempFolder the folder for the temporary file, on the same file system as target
+     * @param expectedChecksum the CRC32C given by the sender, or {@link #UNKNOWN_CHECKSUM}
+     * @return the CRC32C of the file
+     * @throws ChecksumException if the bytes received do not match expectedChecksum
+     * @throws IOException if the stream ends early or the file cannot be written
+     */
+    public static long receiveFile(InputStream in, long size, Path target, Path tempFolder,
+        long expectedChecksum) throws IOException {
+        return receiveFile(in, size, target, tempFolder, expectedChecksum, null);
+    }
+
+    /**
+     * Receives a file like {@link #receiveFile(InputStream, long, Path, Path, long)} and also
+     * writes every chunk to forward as soon as it is read, so the next replica is written while
+     * this one is. If forward fails the file is still received, only the forwarding stops.
+     * @param forward the stream to copy the bytes to, or null
+     * @see #receiveFile(InputStream, long, Path, Path, long)
+     */
+    public static long receiveFile(InputStream in, long size, Path target, Path tempFolder,
+        long expectedChecksum, OutputStream forward) throws IOException {
+        return receiveFile(in, size, target, tempFolder, expectedChecksum, forward, UnaryOperator.identity());
+    }
+
+    /**
+     * Receives a file like {@link #receiveFile(InputStream, long, Path, Path, long, OutputStream)}
+     * and writes it through an encoding, such as compression, on its way to disk. The checksum
+     * is still that of the bytes received.
+     * @param encoding wraps the stream to the temporary file, closing what it returns must close it
+     * @see #receiveFile(InputStream, long, Path, Path, long, OutputStream)
+     */
+    public static long receiveFile(InputStream in, long size, Path target, Path tempFolder,
+        long expectedChecksum, OutputStream forward, UnaryOperator<OutputStream> encoding) throws IOException {
+        var temp = Files.createTempFile(tempFolder, "ingest", ".part");
+        try {
+            long checksum;
+            try (var out = encoding.apply(Files.newOutputStream(temp))) {
+                checksum = receive(in, size, out, expectedChecksum, forward);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+            return checksum;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Receives exactly size bytes from the stream into out, computing their CRC32C as they pass
+     * through and checking it if the sender gave one. Every chunk is also written to forward as
+     * soon as it is read; if forward fails, the bytes are still received and only the forwarding stops.
+     * @param in the stream to read from
+     * @param size the number of bytes expected
+     * @param out the stream to write the bytes to
+     * @param expectedChecksum the CRC32C given by the sender, or {@link #UNKNOWN_CHECKSUM}
+     * @param forward the stream to copy the bytes to, or null
+     * @return the CRC32C of the bytes
+     * @throws ChecksumException if the bytes received do not match expectedChecksum
+     * @throws IOException if the stream ends early or out cannot be written
+     */
+    public static long receive(InputStream in, long size, OutputStream out, long expectedChecksum,
+        OutputStream forward) throws IOException {
+        var crc = new CRC32C();
+        var buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(size, 1))];
+        var received = 0L;
+        while (received < size) {
+            var n = in.read(buffer, 0, (int) Math.min(buffer.length, size - received));
+            if (n < 0) {
+                throw new EOFException("connection closed after " + received + " of " + size + " bytes");
+            }
+            out.write(buffer, 0, n);
+            crc.update(buffer, 0, n);
+            received += n;
+            if (forward != null) {
+                try {
+                    forward.write(buffer, 0, n);
+                } catch (IOException e) {
+                    System.err.println("error forwarding, storing the file locally only: " + e);
+                    forward = null;
+                }
+            }
+        }
+        if (in instanceof ChunkedInputStream chunked) {
+            chunked.readEnd(); //the sender must not have aborted after the last byte
+        }
+        if (expectedChecksum != UNKNOWN_CHECKSUM && crc.getValue() != expectedChecksum) {
+            throw new ChecksumException("received bytes do not match the sender's checksum");
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Thrown when the contents of a file do not match the checksum they were stored with
+     */
+    public static class ChecksumException extends IOException {
+        
+        private static final long serialVersionUID = 1L;
+        
+        /**
+         * @param message what did not match
+         */
+        public ChecksumException(String message) {
+            super(message);
+        }
+    }
+    
+    /**
+     * Frames the bytes written to it as a sequence of chunks, each one a 4 byte length followed by
+     * that many bytes. A zero length marks the end of the transfer and a negative length tells
+     * the receiver that the sender gave up, so a failed transfer can be told apart from a slow
+     * one without waiting for a timeout. Closing this stream does not close the underlying one.
+     */
+    public static class ChunkedOutputStream extends OutputStream {
+        
+        private final DataOutputStream out;
+        private final byte[] chunk;
+        private int length;
+        private boolean ended;
+        
+        /**
+         * @param out the stream the frames are written to
+         */
+        public ChunkedOutputStream(OutputStream out) {
+            this.out = new DataOutputStream(out);
+            this.chunk = new byte[BUFFER_SIZE];
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            if (length == chunk.length) {
+                writeChunk();
+            }
+            chunk[length++] = (byte) b;
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (length == chunk.length) {
+                    writeChunk();
+                }
+                var n = Math.min(len, chunk.length - length);
+                System.arraycopy(b, off, chunk, length, n);
+                length += n;
+                off += n;
+                len -= n;
+            }
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            writeChunk();
+            out.flush();
+        }
+        
+        /**
+         * Writes the remaining bytes and the end of transfer marker
+         * @throws IOException if the underlying stream cannot be written
+         */
+        public void finish() throws IOException {
+            if (ended) {
+                return;
+            }
+            writeChunk();
+            out.writeInt(0);
+            out.flush();
+            ended = true;
+        }
+        
+        /**
+         * Discards the buffered bytes and tells the receiver the transfer failed
+         * @throws IOException if the underlying stream cannot be written
+         */
+        public void abort() throws IOException {
+            if (ended) {
+                return;
+            }
+            length = 0;
+            out.writeInt(-1);
+            out.flush();
+            ended = true;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            finish();
+        }
+        
+        private void writeChunk() throws IOException {
+            if (length > 0) {
+                out.writeInt(length);
+                out.write(chunk, 0, length);
+                length = 0;
+            }
+        }
+    }
+    
+    /**
+     * Reads the frames written by a {@link ChunkedOutputStream}, returning end of stream once the
+     * end of transfer marker is read. Closing this stream does not close the underlying one.
+     */
+    public static class ChunkedInputStream extends InputStream {
+        
+        private final DataInputStream in;
+        private int remaining;
+        private boolean ended;
+        
+        /**
+         * @param in the stream the frames are read from
+         */
+        public ChunkedInputStream(InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+        
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            var b = in.read();
+            if (b < 0) {
+                throw new EOFException("connection closed in the middle of a chunk");
+            }
+            remaining--;
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!nextChunk()) {
+                return -1;
+            }
+            var n = in.read(b, off, Math.min(len, remaining));
+            if (n < 0) {
+                throw new EOFException("connection closed in the middle of a chunk");
+            }
+            remaining -= n;
+            return n;
+        }
+        
+        /**
+         * Reads the end of transfer marker, failing if there are bytes left or the sender aborted
+         * @throws IOException if the transfer did not end cleanly here
+         */
+        public void readEnd() throws IOException {
+            if (nextChunk()) {
+                throw new IOException("more data than expected in the transfer");
+            }
+        }
+        
+        @Override
+        public void close() {
+            //the underlying stream belongs to the connection, leave it open
+        }
+        
+        //moves to the next chunk if the current one is used up, false at the end of transfer
+        private boolean nextChunk() throws IOException {
+            while (remaining == 0 && !ended) {
+                var length = in.readInt();
+                if (length < 0) {
+                    ended = true;
+                    throw new IOException("transfer aborted by the sender");
+                }
+                if (length == 0) {
+                    ended = true;
+                }
+                remaining = length;
+            }
+            return remaining > 0;
+        }
+    }
+}
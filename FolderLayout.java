@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Where a Dstore keeps its files on disk. One folder holding millions of files makes lookups,
+ * creates and listings slow, so the files are spread over two levels of 256 subfolders picked by
+ * a hash of the name. A folder written by an older Dstore, with the files directly in it, is
+ * migrated while the Dstore runs: a file is moved the first time it is used, and a background
+ * sweep moves the rest.
+ */
+public class FolderLayout {
+
+    static final String DATA_FOLDER = ".data";
+    private static final int FANOUT = 256;
+
+    private final Path folder;
+    private final Path data;
+    // whether each of the FANOUT * FANOUT subfolders is known to exist
+    private final boolean[] created;
+    // whether no file is left directly in the folder
+    private volatile boolean migrated;
+
+    /**
+     * @param folder the folder of the Dstore
+     * @throws IOException if the folder cannot be read
+     */
+    public FolderLayout(Path folder) throws IOException {
+        this.folder = folder;
+        this.data = folder.resolve(DATA_FOLDER);
+        this.created = new boolean[FANOUT * FANOUT];
+        Files.createDirectories(data);
+        try (var files = flatFiles()) {
+            this.migrated = files.findAny().isEmpty();
+        }
+    }
+
+    /**
+     * @param fileName the name of a stored file
+     * @return where the file is, its subfolder created if needed
+     */
+    public Path path(String fileName) {
+        var bucket = bucketOf(fileName);
+        var parent = data.resolve(hex(bucket / FANOUT)).resolve(hex(bucket % FANOUT));
+        if (!created[bucket]) {
+            try {
+                Files.createDirectories(parent);
+                created[bucket] = true;
+            } catch (IOException e) {
+                System.err.println("error creating " + parent + ": " + e); //the file operation fails next
+            }
+        }
+        var path = parent.resolve(fileName);
+        if (!migrated) {
+            moveFlat(fileName, path);
+        }
+        return path;
+    }
+
+    /**
+     * Moves the files left directly in the folder into their subfolders on a background thread,
+     * does nothing if there are none
+     */
+    public void migrate() {
+        if (migrated) {
+            return;
+        }
+        var thread = new Thread(() -> {
+            var moved = 0L;
+            try (var files = flatFiles()) {
+                for (var it = files.iterator(); it.hasNext(); moved++) {
+                    path(it.next().getFileName().toString());
+                }
+                migrated = true;
+                System.out.println("moved " + moved + " files into hashed subfolders");
+            } catch (IOException | UncheckedIOException e) {
+                System.err.println("error migrating " + folder + " after " + moved + " files: " + e);
+            }
+        }, "layout-migration");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Walks every stored file without listing a whole folder into memory, the files not migrated
+     * yet first. The stream must be closed.
+     * @return the paths of the stored files
+     * @throws IOException if the folder cannot be read
+     */
+    public Stream<Path> files() throws IOException {
+        var hashed = Files.walk(data).filter(file -> Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS));
+        return Stream.concat(flatFiles(), hashed);
+    }
+
+    //moves a file of an older Dstore into its subfolder, another thread may have done it already
+    private void moveFlat(String fileName, Path target) {
+        var flat = folder.resolve(fileName);
+        if (!Files.isRegularFile(flat, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        try {
+            Files.move(flat, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            //moved since it was checked
+        } catch (IOException e) {
+            System.err.println("error moving " + flat + " to " + target + ": " + e);
+        }
+    }
+
+    //files directly in the folder, the Dstore's own folders are skipped
+    private Stream<Path> flatFiles() throws IOException {
+        return Files.list(folder).filter(file -> Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS));
+    }
+
+    private static int bucketOf(String fileName) {
+        var crc = new CRC32C();
+        crc.update(fileName.getBytes(StandardCharsets.UTF_8));
+        return (int) (crc.getValue() >>> 16) & (FANOUT * FANOUT - 1);
+    }
+
+    private static String hex(int level) {
+        return String.format("%02x", level);
+    }
+}
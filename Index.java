@@ -1,63 +1,449 @@
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * What the Controller knows of the files and the Dstores holding them. The files are kept in a
+ * {@link FileTable}, with the Dstores as small ids, and each Dstore keeps the ids of the files it
+ * holds, so it is read and changed by the service threads without a lock on the whole of it, and
+ * storing, removing or looking up a file, or losing a Dstore, costs the number of its replicas or
+ * files rather than the size of the index. A rebalance builds it again from the lists of the
+ * Dstores and swaps it in, while requests go on. The changes are made under a shared lock, and
+ * the swap under an exclusive one, so a change is never made to an index being swapped out.
+ */
 public class Index {
     
-    public Map <Integer, List<String>> port2files;
-    public Map <String, List<Integer>> file2ports;
-    public Map <String, Status> fileStatus;
-    public Map <String, Integer> fileSizes;
+    // the files, with their status, size and the ids of the Dstores holding them
+    private volatile FileTable files;
+    // key: port, value: the files the Dstore holds
+    private volatile Map <Integer, Holder> holders;
+    // key: port, value: the id of the Dstore in the file table, kept if it leaves
+    private final Map <Integer, Integer> dstoreIds;
+    // the port of each Dstore id
+    private volatile int[] ports;
+    // key: erasure-coded file, value: where its shards are
+    public volatile Map <String, ErasureCoding.Layout> erasure;
+    // key: chunked file, value: where its chunks are, the replicas of a chunk are replaced in
+    // place as they are found
+    public volatile Map <String, Chunking.Layout> chunks;
+    // shared by the changes, held exclusively to swap a rebuilt index in
+    private final ReadWriteLock swap;
     
     public Index() {
-        this.port2files = new HashMap<>();
-        this.file2ports = new HashMap<>();
-        this.fileStatus = new HashMap<>();
-        this.fileSizes = new HashMap<>();
+        this.files = new FileTable();
+        this.holders = new ConcurrentHashMap<>();
+        this.dstoreIds = new ConcurrentHashMap<>();
+        this.ports = new int[1];
+        this.erasure = new ConcurrentHashMap<>();
+        this.chunks = new ConcurrentHashMap<>();
+        this.swap = new ReentrantReadWriteLock();
     }
     
+    //the files a Dstore holds, as ids in the file table, used with its lock held
+    private static class Holder {
+        
+        final int dstore;
+        final FileTable.IdSet files;
+        boolean removed;
+        
+        Holder(int dstore) {
+            this.dstore = dstore;
+            this.files = new FileTable.IdSet();
+        }
+    }
+    
+    /**
+     * Adds a Dstore holding nothing, or empties the one that joined again on the same port
+     * @param port the port of the Dstore
+     */
+    public void addPort(int port) {
+        swap.readLock().lock();
+        try {
+            holders.put(port, new Holder(dstoreId(port)));
+        } finally {
+            swap.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Starts storing a file, unless a file with that name is already stored, being stored or
+     * being removed
+     * @param fileName the name of the file
+     * @param fileSize the size of the file
+     * @return whether the file was added
+     */
+    public boolean addFile(String fileName, long fileSize) {
+        swap.readLock().lock();
+        try {
+            return files.add(fileName, Status.STORING, fileSize) >= 0;
+        } finally {
+            swap.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Records where a file was stored and marks it stored, so any thread finding it stored finds
+     * its Dstores too
+     * @param fileName the name of the file
+     * @param storedNames the names each Dstore holds, the file itself, one of its shards or its
+     * chunks
+     */
+    public void storeComplete(String fileName, Map<Integer, List<String>> storedNames) {
+        swap.readLock().lock();
+        try {
+            var table = files;
+            storedNames.forEach((port, names) -> {
+                var holder = holders.get(port);
+                if (holder == null) {
+                    return;
+                }
+                synchronized (holder) {
+                    var id = holder.removed ? -1 : table.addReplica(fileName, holder.dstore);
+                    if (id >= 0) {
+                        holder.files.add(id);
+                    }
+                }
+            });
+            table.replaceStatus(fileName, Status.STORING, Status.STORED);
+        } finally {
+            swap.readLock().unlock();
+        }
+    }
+    
+    /**
+     * @param fileName the name of a stored file
+     * @return whether it was stored and is now being removed, only one remove gets true
+     */
+    public boolean startRemove(String fileName) {
+        swap.readLock().lock();
+        try {
+            return files.replaceStatus(fileName, Status.STORED, Status.REMOVING);
+        } finally {
+            swap.readLock().unlock();
+        }
+    }
+    
+    /**
+     * @param fileName the name of a file
+     * @return its status, or null if it is not in the index
+     */
+    public Status statusOf(String fileName) {
+        return files.statusOf(fileName);
+    }
+    
+    /**
+     * @param fileName the name of a file
+     * @return its size, or null if it is not known or the file is not in the index
+     */
+    public Long sizeOf(String fileName) {
+        var size = files.sizeOf(fileName);
+        return size < 0 ? null : size;
+    }
+    
+    /**
+     * @param fileName the name of a file
+     * @return the ports of the Dstores holding it, a copy, or null if it is not in the index
+     */
+    public List<Integer> portsOf(String fileName) {
+        var replicas = files.replicasOf(fileName);
+        if (replicas == null) {
+            return null;
+        }
+        var ports = this.ports;
+        var result = new ArrayList<Integer>(replicas.length);
+        for (var dstore : replicas) {
+            result.add(ports[dstore]);
+        }
+        return result;
+    }
+    
+    /**
+     * @param status the status of the files, or null for every file
+     * @return the names of the files in the index with that status
+     */
+    public List<String> files(Status status) {
+        return files.names(status);
+    }
+    
+    /**
+     * @param name a name listed by a Dstore
+     * @return the erasure-coded file and the shard number the name stands for, or null if it is
+     * not a shard of a file in the index
+     */
+    public Pair<String, Integer> shardOf(String name) {
+        var part = partOf(name);
+        var layout = part == null ? null : erasure.get(part.getFirst());
+        return layout != null && part.getSecond() < layout.ports().size() ? part : null;
+    }
+    
+    /**
+     * @param name a name listed by a Dstore
+     * @return the chunked file and the chunk number the name stands for, or null if it is not a
+     * chunk of a file in the index
+     */
+    public Pair<String, Integer> chunkOf(String name) {
+        var part = partOf(name);
+        var layout = part == null ? null : chunks.get(part.getFirst());
+        return layout != null && part.getSecond() < layout.replicas().size() ? part : null;
+    }
+    
+    /**
+     * @param name a name listed by a Dstore
+     * @return the file in the index the name is stored for, itself unless it is a shard or a chunk
+     */
+    public String ownerOf(String name) {
+        var part = shardOf(name);
+        if (part == null) {
+            part = chunkOf(name);
+        }
+        return part == null ? name : part.getFirst();
+    }
+    
+    //splits <file>#<i> into the file and i
+    private static Pair<String, Integer> partOf(String name) {
+        var separator = name.lastIndexOf(Protocol.PART_SEPARATOR);
+        if (separator < 0) {
+            return null;
+        }
+        try {
+            var part = Integer.parseInt(name.substring(separator + 1));
+            return part < 0 ? null : new Pair<>(name.substring(0, separator), part);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
     
     public void removeFileStoreFailed(String fileName) {
-        fileStatus.remove(fileName);
-        fileSizes.remove(fileName);
-        file2ports.remove(fileName);
+        removeFileRemoveComplete(fileName);
     }
     
+    //only the Dstores holding the file are visited
     public void removeFileRemoveComplete(String fileName) {
-        fileStatus.remove(fileName);
-        fileSizes.remove(fileName);
-        file2ports.remove(fileName);
-        port2files.values().forEach(files -> files.remove(fileName));
+        swap.readLock().lock();
+        try {
+            var removed = files.remove(fileName);
+            erasure.remove(fileName);
+            chunks.remove(fileName);
+            if (removed == null) {
+                return;
+            }
+            var ports = this.ports;
+            for (var dstore : removed.replicas()) {
+                var port = ports[dstore];
+                var holder = holders.get(port);
+                if (holder == null) {
+                    continue;
+                }
+                synchronized (holder) {
+                    holder.files.remove(removed.id());
+                }
+            }
+        } finally {
+            swap.readLock().unlock();
+        }
     }
     
     public void removePort(int port) {
-        List<String> files = port2files.get(port);
-        if (files != null) {
-            for (String file : files) {
-                file2ports.get(file).remove(port);
-                if (file2ports.get(file).isEmpty()) {
-                    file2ports.remove(file);
-                    fileStatus.remove(file);
-                    fileSizes.remove(file);
+        swap.readLock().lock();
+        try {
+            var holder = holders.remove(port);
+            if (holder == null) {
+                return;
+            }
+            int[] held;
+            synchronized (holder) {
+                holder.removed = true;
+                held = holder.files.toArray();
+            }
+            var table = files;
+            for (var id : held) {
+                var file = table.removeReplica(id, holder.dstore);
+                if (file == null) {
+                    continue;
+                }
+                //a shard leaves a hole in the layout of its file, a chunk loses a replica
+                var layout = erasure.get(file);
+                for (int i = 0; layout != null && i < layout.ports().size(); i++) {
+                    if (layout.ports().get(i) == port) {
+                        setShardPort(file, i, 0);
+                    }
+                }
+                var chunkLayout = chunks.get(file);
+                for (int i = 0; chunkLayout != null && i < chunkLayout.replicas().size(); i++) {
+                    if (chunkLayout.replicas().get(i).contains(port)) {
+                        setChunkReplicas(file, i, port, false);
+                    }
+                }
+                if (table.removeIfNoReplicas(file)) {
+                    erasure.remove(file);
+                    chunks.remove(file);
                 }
             }
-            port2files.remove(port);
+        } finally {
+            swap.readLock().unlock();
         }
     }
     
-    public void update(HashMap<Integer, List<String>> dstoreFiles) {
-        port2files = dstoreFiles;
-        file2ports.clear();
-        fileStatus.clear();
+    /**
+     * Replaces what is known of the Dstores with what they listed. The index is built aside and
+     * swapped in, so a thread reading it never sees it half rebuilt. A file still being stored,
+     * or one requests changed since the Dstores were listed, is kept as it is now, and so are
+     * Dstores that joined since.
+     * @param dstoreFiles the names each Dstore listed
+     * @param keep the files requests changed since the Dstores were listed, read once the
+     * changes are held off
+     */
+    public void update(Map<Integer, List<String>> dstoreFiles, Set<String> keep) {
+        var old = files;
+        var table = new FileTable();
+        var newHolders = new ConcurrentHashMap<Integer, Holder>();
+        var newErasure = new ConcurrentHashMap<String, ErasureCoding.Layout>();
+        var newChunks = new ConcurrentHashMap<String, Chunking.Layout>();
+        
+        //shards and chunks are found again from the lists
+        erasure.forEach((file, layout) -> {
+            var ports = new ArrayList<Integer>();
+            layout.ports().forEach(port -> ports.add(0));
+            newErasure.put(file, new ErasureCoding.Layout(layout.size(), layout.data(), layout.parity(), ports));
+        });
+        chunks.forEach((file, layout) -> {
+            var replicas = new ArrayList<List<Integer>>();
+            layout.replicas().forEach(ports -> replicas.add(List.of()));
+            newChunks.put(file, new Chunking.Layout(layout.size(), layout.chunkSize(), replicas));
+        });
         for (var entry : dstoreFiles.entrySet()) {
             var port = entry.getKey();
-            var files = entry.getValue();
-            for (var file : files) {
-                file2ports.putIfAbsent(file, new ArrayList<>());
-                file2ports.get(file).add(port);
-                fileStatus.putIfAbsent(file, Status.STORED);
+            var holder = new Holder(dstoreId(port));
+            newHolders.put(port, holder);
+            for (var name : entry.getValue()) {
+                var file = ownerOf(name);
+                var shard = shardOf(name);
+                if (shard != null) {
+                    setShardPort(newErasure, file, shard.getSecond(), port);
+                }
+                var chunk = chunkOf(name);
+                if (chunk != null) {
+                    setChunkReplicas(newChunks, file, chunk.getSecond(), port, true);
+                }
+                table.add(file, Status.STORED, old.sizeOf(file));
+                holder.files.add(table.addReplica(file, holder.dstore));
+            }
+        }
+        newErasure.keySet().removeIf(file -> table.statusOf(file) == null);
+        newChunks.keySet().removeIf(file -> table.statusOf(file) == null);
+        var carried = new HashSet<String>();
+        old.forEach((file, status, size) -> {
+            if (status == Status.STORING) {
+                carried.add(file);
+            }
+        });
+        
+        swap.writeLock().lock();
+        try {
+            //the Dstores that left or joined since they were listed
+            newHolders.keySet().retainAll(holders.keySet());
+            holders.forEach((port, holder) -> newHolders.putIfAbsent(port, new Holder(holder.dstore)));
+            carried.addAll(keep);
+            for (var file : carried) {
+                carry(file, table, newHolders, newErasure, newChunks);
+            }
+            
+            //the files go last, a file found stored is then found in the rest
+            holders = newHolders;
+            erasure = newErasure;
+            chunks = newChunks;
+            files = table;
+        } finally {
+            swap.writeLock().unlock();
+        }
+    }
+    
+    //replaces what the lists say of a file in a rebuilt index with what is known of it now
+    private void carry(String file, FileTable table, Map<Integer, Holder> newHolders,
+        Map<String, ErasureCoding.Layout> newErasure, Map<String, Chunking.Layout> newChunks) {
+        var ports = this.ports;
+        var listed = table.remove(file);
+        for (int i = 0; listed != null && i < listed.replicas().length; i++) {
+            var holder = newHolders.get(ports[listed.replicas()[i]]);
+            if (holder != null) {
+                holder.files.remove(listed.id());
             }
         }
+        newErasure.remove(file);
+        newChunks.remove(file);
+        
+        var current = files;
+        var status = current.statusOf(file);
+        if (status == null) {
+            return;
+        }
+        table.add(file, status, current.sizeOf(file));
+        for (var dstore : current.replicasOf(file)) {
+            var holder = newHolders.get(ports[dstore]);
+            var id = holder == null ? -1 : table.addReplica(file, dstore);
+            if (id >= 0) {
+                holder.files.add(id);
+            }
+        }
+        if (erasure.containsKey(file)) {
+            newErasure.put(file, erasure.get(file));
+        }
+        if (chunks.containsKey(file)) {
+            newChunks.put(file, chunks.get(file));
+        }
+    }
+    
+    //the id of a Dstore, a new one for a port not seen before
+    private synchronized int dstoreId(int port) {
+        var id = dstoreIds.get(port);
+        if (id != null) {
+            return id;
+        }
+        id = ports.length;
+        if (id > FileTable.MAX_DSTORE) {
+            throw new IllegalStateException("more than " + FileTable.MAX_DSTORE + " Dstores have joined");
+        }
+        var grown = Arrays.copyOf(ports, id + 1);
+        grown[id] = port;
+        ports = grown;
+        dstoreIds.put(port, id);
+        return id;
+    }
+    
+    private void setShardPort(String fileName, int shard, int port) {
+        setShardPort(erasure, fileName, shard, port);
+    }
+    
+    private static void setShardPort(Map<String, ErasureCoding.Layout> erasure, String fileName,
+        int shard, int port) {
+        erasure.computeIfPresent(fileName, (file, layout) -> {
+            var ports = new ArrayList<>(layout.ports());
+            ports.set(shard, port);
+            return new ErasureCoding.Layout(layout.size(), layout.data(), layout.parity(), ports);
+        });
+    }
+    
+    private void setChunkReplicas(String fileName, int chunk, int port, boolean add) {
+        setChunkReplicas(chunks, fileName, chunk, port, add);
+    }
+    
+    private static void setChunkReplicas(Map<String, Chunking.Layout> chunks, String fileName,
+        int chunk, int port, boolean add) {
+        chunks.computeIfPresent(fileName, (file, layout) -> {
+            var replicas = new ArrayList<>(layout.replicas());
+            var ports = new ArrayList<>(replicas.get(chunk));
+            ports.remove((Integer) port);
+            if (add) {
+                ports.add(port);
+            }
+            replicas.set(chunk, List.copyOf(ports));
+            return new Chunking.Layout(layout.size(), layout.chunkSize(), List.copyOf(replicas));
+        });
     }
 }
@@ -0,0 +1,109 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures the Controller index with many files. It stores the files with r replicas each on
+ * Dstores picked in a fixed pattern, then looks random files up from several threads, removes a
+ * share of them and finally removes a Dstore with everything it holds, printing the rate of each.
+ * The heap the index takes for each file is measured after the files are stored, from the heap
+ * in use after a full collection, so give it a heap that fits the files with room to spare.
+ *
+ * Run it from the folder of the sources with:
+ *   javac -d out -cp client.jar *.java
+ *   java -Xmx4g -cp out IndexBench [--files=1000000] [--dstores=1000] [--r=3] [--threads=4]
+ *     [--lookups=2000000] [--removes=100000]
+ */
+public class IndexBench {
+
+    public static void main(String[] args) throws Exception {
+        var options = new Options(args, 0);
+        var files = options.getInt("files", 1_000_000);
+        var dstores = options.getInt("dstores", 1000);
+        var r = options.getInt("r", 3);
+        var threads = options.getInt("threads", 4);
+        var lookups = options.getInt("lookups", 2_000_000);
+        var removes = Math.min(options.getInt("removes", 100_000), files);
+
+        var before = usedHeap();
+        var index = new Index();
+        for (int port = 1; port <= dstores; port++) {
+            index.addPort(port);
+        }
+
+        var start = System.nanoTime();
+        store(index, files, dstores, r);
+        report("store", files, start);
+        System.out.printf("%-24s %10.1f bytes/file%n", "heap", (usedHeap() - before) / (double) files);
+
+        start = System.nanoTime();
+        var pool = Executors.newFixedThreadPool(threads);
+        try {
+            var done = new ArrayList<Future<?>>();
+            for (int t = 0; t < threads; t++) {
+                var random = new Random(t);
+                done.add(pool.submit(() -> {
+                    for (int i = 0; i < lookups / threads; i++) {
+                        var name = nameOf(random.nextInt(files));
+                        if (index.statusOf(name) == Status.STORED) {
+                            index.portsOf(name);
+                        }
+                    }
+                }));
+            }
+            for (var future : done) {
+                future.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        report("lookup on " + threads + " threads", lookups, start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < removes; i++) {
+            var name = nameOf(i);
+            index.startRemove(name);
+            index.removeFileRemoveComplete(name);
+        }
+        report("remove", removes, start);
+
+        var held = (long) (files - removes) * r / dstores;
+        start = System.nanoTime();
+        index.removePort(dstores / 2);
+        System.out.printf("%-24s %10.1f ms for about %d files%n", "removePort", (System.nanoTime() - start) / 1e6, held);
+    }
+
+    //stores the files on r Dstores each, spread evenly
+    static void store(Index index, int files, int dstores, int r) {
+        for (int i = 0; i < files; i++) {
+            var name = nameOf(i);
+            index.addFile(name, 100);
+            var stored = new HashMap<Integer, List<String>>();
+            for (int k = 0; k < r; k++) {
+                stored.put(1 + (i + k * 331) % dstores, List.of(name));
+            }
+            index.storeComplete(name, stored);
+        }
+    }
+
+    //twelve characters, like a short client file name
+    static String nameOf(int i) {
+        return String.format("file%08d", i);
+    }
+
+    //the heap in use once the garbage is collected, as well as System.gc can tell
+    private static long usedHeap() {
+        var runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void report(String what, long operations, long start) {
+        System.out.printf("%-24s %10.0f ops/s%n", what, operations / ((System.nanoTime() - start) / 1e9));
+    }
+}
@@ -0,0 +1,95 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Measures how fast a Dstore can serve LOAD_DATA of a large file over loopback, reading the whole
+ * file into a heap buffer as the Dstore used to, against {@link FileTransfer#sendFile}, which
+ * hands the file to the socket with transferTo. Each round sends the file once each way to a
+ * client that reads and discards it, so run it with the page cache warm.
+ *
+ * Run it from the folder of the sources with:
+ *   javac -d out -cp client.jar *.java
+ *   java -Xmx1g -cp out LoadDataBench [--size=512m] [--rounds=2] [--file=path]
+ * The file is made of random bytes and deleted afterwards unless it is given.
+ */
+public class LoadDataBench {
+
+    public static void main(String[] args) throws Exception {
+        var options = new Options(args, 0);
+        var size = options.getBytes("size", 512 << 20);
+        var rounds = options.getInt("rounds", 2);
+        var given = options.get("file", null);
+        var file = given != null ? Path.of(given) : Files.createTempFile("load-data-bench", ".bin");
+        try {
+            if (given == null || !Files.exists(file)) {
+                write(file, size);
+            }
+            size = Files.size(file);
+            System.out.println("sending a file of " + size + " bytes, " + rounds + " rounds");
+
+            try (var server = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0))) {
+                var port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+                for (int round = 0; round < rounds; round++) {
+                    for (var heap : new boolean[] {true, false}) {
+                        var seconds = send(server, port, file, heap);
+                        System.out.printf("%-11s %7.0f MB/s%n", heap ? "heap" : "transferTo", size / 1e6 / seconds);
+                    }
+                }
+            }
+        } finally {
+            if (given == null) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    //sends the file once to a client reading it on its own thread, and returns the seconds taken
+    private static double send(ServerSocketChannel server, int port, Path file, boolean heap)
+        throws Exception {
+        var reader = new Thread(() -> {
+            try (var socket = new Socket("localhost", port)) {
+                drain(socket.getInputStream());
+            } catch (IOException e) {
+                System.err.println("error in reading the file: " + e);
+            }
+        });
+        reader.start();
+        try (var socket = server.accept().socket()) {
+            var start = System.nanoTime();
+            if (heap) {
+                socket.getOutputStream().write(Files.readAllBytes(file));
+            } else {
+                try (var stored = StoredFile.of(FileChannel.open(file))) {
+                    FileTransfer.sendFile(stored, socket);
+                }
+            }
+            socket.shutdownOutput();
+            reader.join();
+            return (System.nanoTime() - start) / 1e9;
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        var buffer = new byte[FileTransfer.BUFFER_SIZE];
+        while (in.read(buffer) >= 0) {
+            //discarding the bytes
+        }
+    }
+
+    private static void write(Path file, long size) throws IOException {
+        var block = new byte[1 << 20];
+        new Random(1).nextBytes(block);
+        try (var out = Files.newOutputStream(file)) {
+            for (var written = 0L; written < size; written += block.length) {
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+}
@@ -0,0 +1,423 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * On-disk record of the files a Dstore holds, with their size, checksum and modification time,
+ * so a restarted Dstore has full metadata without listing or stat'ing its folder. Every change
+ * is appended to a journal, and a checkpoint periodically writes all the entries to a snapshot
+ * and starts a new journal. Loading reads the snapshot and replays the journals written after it.
+ */
+public class Manifest {
+
+    /**
+     * Metadata of one stored file
+     * @param name the name of the file
+     * @param size the size in bytes
+     * @param checksum the CRC32C of the contents, or {@link FileTransfer#UNKNOWN_CHECKSUM}
+     * @param modified the time the file was stored, in milliseconds since the epoch
+     * @param content the SHA-256 of the contents in hex if they are kept as a shared blob, see
+     * {@link ContentStore}, or null if the file is kept under its own name
+     * @param compressed whether the bytes are kept compressed, see {@link Compression}
+     */
+    public record Entry(String name, long size, long checksum, long modified, String content,
+        boolean compressed) {}
+
+    private static final int MAGIC = 0x4d414e31; // MAN1, entries without content
+    private static final int MAGIC_CONTENT = 0x4d414e32; // MAN2, entries without compression
+    private static final int MAGIC_COMPRESSED = 0x4d414e33; // MAN3
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte PUT_CONTENT = 3;
+    private static final byte PUT_COMPRESSED = 4;
+    private static final String SNAPSHOT = "snapshot";
+    private static final String JOURNAL_PREFIX = "journal-";
+
+    private final Path folder;
+    private final Map<String, Entry> entries;
+    // key: a file split into shards or chunks, value: the number of its parts stored
+    private final Map<String, Integer> parts;
+
+    // guards the journal, entries change under it so a checkpoint sees a consistent state
+    private final Object journalLock;
+    private DataOutputStream journal;
+    private long journalSequence;
+    private long journalRecords;
+
+    private Manifest(Path folder) {
+        this.folder = folder;
+        this.entries = new ConcurrentHashMap<>();
+        this.parts = new ConcurrentHashMap<>();
+        this.journalLock = new Object();
+    }
+
+    /**
+     * Loads the manifest from its folder. If there is none yet, the stored files are scanned once
+     * to build it.
+     * @param folder the folder holding the snapshot and journals
+     * @param files where the stored files are
+     * @return the loaded manifest, with a fresh checkpoint written
+     * @throws IOException if the manifest or the file folder cannot be read
+     */
+    public static Manifest open(Path folder, FolderLayout files) throws IOException {
+        Files.createDirectories(folder);
+        var manifest = new Manifest(folder);
+        var snapshot = folder.resolve(SNAPSHOT);
+        var journals = manifest.journals();
+
+        var changes = 0L; //changes not in the snapshot yet
+        if (Files.exists(snapshot)) {
+            manifest.journalSequence = manifest.readSnapshot(snapshot);
+        } else if (journals.isEmpty()) {
+            manifest.scan(files);
+            changes++;
+        }
+        for (var journal : journals) {
+            var sequence = sequenceOf(journal);
+            if (sequence >= manifest.journalSequence) {
+                changes += manifest.replay(journal);
+            }
+            manifest.journalSequence = Math.max(manifest.journalSequence, sequence);
+        }
+
+        //folding the replayed journals into a new snapshot, this also starts a clean journal
+        manifest.journal = manifest.openJournal(manifest.journalSequence);
+        manifest.journalRecords = changes;
+        manifest.checkpoint();
+        return manifest;
+    }
+
+    /**
+     * @param fileName the name of a file
+     * @return the metadata of the file, or null if it is not stored
+     */
+    public Entry get(String fileName) {
+        return entries.get(fileName);
+    }
+
+    /**
+     * @param fileName the name of a file
+     * @return whether the file is stored
+     */
+    public boolean contains(String fileName) {
+        return entries.containsKey(fileName);
+    }
+
+    /**
+     * @param fileName the name of a file split into shards or chunks
+     * @return whether a shard or chunk of the file is stored, see {@link Protocol#PART_SEPARATOR}
+     */
+    public boolean holdsPart(String fileName) {
+        return parts.containsKey(fileName);
+    }
+
+    /**
+     * @return the names of the stored files, a live view
+     */
+    public Collection<String> names() {
+        return entries.keySet();
+    }
+
+    /**
+     * @return the metadata of every stored file, a live view
+     */
+    public Collection<Entry> entries() {
+        return entries.values();
+    }
+
+    /**
+     * Records a file that has been stored
+     * @param fileName the name of the file
+     * @param size the size in bytes
+     * @param checksum the CRC32C of the contents
+     * @throws IOException if the journal cannot be written
+     */
+    public void put(String fileName, long size, long checksum) throws IOException {
+        put(fileName, size, checksum, null);
+    }
+
+    /**
+     * Records a file that has been stored as a reference to a shared blob
+     * @param fileName the name of the file
+     * @param size the size in bytes
+     * @param checksum the CRC32C of the contents
+     * @param content the SHA-256 of the contents in hex, or null if the file is kept under its name
+     * @throws IOException if the journal cannot be written
+     */
+    public void put(String fileName, long size, long checksum, String content) throws IOException {
+        put(fileName, size, checksum, content, false);
+    }
+
+    /**
+     * Records a file that has been stored
+     * @param fileName the name of the file
+     * @param size the size in bytes before compression
+     * @param checksum the CRC32C of the contents before compression
+     * @param content the SHA-256 of the contents in hex, or null if the file is kept under its name
+     * @param compressed whether the bytes are kept compressed
+     * @throws IOException if the journal cannot be written
+     */
+    public void put(String fileName, long size, long checksum, String content, boolean compressed)
+        throws IOException {
+        var entry = new Entry(fileName, size, checksum, System.currentTimeMillis(), content, compressed);
+        synchronized (journalLock) {
+            writePut(entry);
+            add(entry);
+        }
+    }
+
+    /**
+     * Fills in the checksum of an entry stored without one, as long as the file has not been
+     * stored again or removed since the entry was read
+     * @param entry the entry read before the file was checksummed
+     * @param checksum the CRC32C of the contents
+     * @return whether the checksum was recorded
+     * @throws IOException if the journal cannot be written
+     */
+    public boolean adoptChecksum(Entry entry, long checksum) throws IOException {
+        var updated = new Entry(entry.name(), entry.size(), checksum, entry.modified(), entry.content(),
+            entry.compressed());
+        synchronized (journalLock) {
+            if (entries.get(entry.name()) != entry) {
+                return false;
+            }
+            writePut(updated);
+            add(updated);
+            return true;
+        }
+    }
+
+    /**
+     * Records a file that has been removed
+     * @param fileName the name of the file
+     * @return the metadata the file had, or null if it was not stored
+     * @throws IOException if the journal cannot be written
+     */
+    public Entry remove(String fileName) throws IOException {
+        synchronized (journalLock) {
+            var entry = drop(fileName);
+            if (entry != null) {
+                journal.writeByte(REMOVE);
+                journal.writeUTF(fileName);
+                journal.flush();
+                journalRecords++;
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Writes every entry to a new snapshot and deletes the journals it replaces. Stores and
+     * removes are only held up while the journal is switched, not while the snapshot is written.
+     * @throws IOException if the snapshot cannot be written
+     */
+    public void checkpoint() throws IOException {
+        List<Entry> copy;
+        long sequence;
+        synchronized (journalLock) {
+            if (journalRecords == 0) {
+                return; //nothing changed since the last checkpoint
+            }
+            journal.close();
+            sequence = ++journalSequence;
+            journal = openJournal(sequence);
+            journalRecords = 0;
+            copy = new ArrayList<>(entries.values());
+        }
+
+        var temp = folder.resolve(SNAPSHOT + ".tmp");
+        try (var file = new FileOutputStream(temp.toFile());
+             var out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            out.writeInt(MAGIC_COMPRESSED);
+            out.writeLong(sequence);
+            out.writeInt(copy.size());
+            for (var entry : copy) {
+                writeEntry(out, entry);
+                out.writeUTF(entry.content() == null ? "" : entry.content());
+                out.writeBoolean(entry.compressed());
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp, folder.resolve(SNAPSHOT), StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+
+        for (var journal : journals()) {
+            if (sequenceOf(journal) < sequence) {
+                Files.deleteIfExists(journal);
+            }
+        }
+    }
+
+    /**
+     * Checkpoints on a background thread at a fixed interval
+     * @param seconds the interval between checkpoints
+     */
+    public void scheduleCheckpoints(int seconds) {
+        var scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "manifest-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                System.err.println("error checkpointing the manifest: " + e);
+            }
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    //reads the snapshot into the entries and returns the first journal it does not cover
+    private long readSnapshot(Path snapshot) throws IOException {
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot), 1 << 16))) {
+            var magic = in.readInt();
+            if (magic != MAGIC && magic != MAGIC_CONTENT && magic != MAGIC_COMPRESSED) {
+                throw new IOException("not a manifest snapshot: " + snapshot);
+            }
+            var sequence = in.readLong();
+            var count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                var entry = readEntry(in, magic != MAGIC, magic == MAGIC_COMPRESSED);
+                add(entry);
+            }
+            return sequence;
+        }
+    }
+
+    //applies a journal, stopping at a record cut short by a crash, and returns the records read
+    private long replay(Path journal) throws IOException {
+        var records = 0L;
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journal), 1 << 16))) {
+            for (;; records++) {
+                var op = in.read();
+                if (op < 0) {
+                    return records;
+                } else if (op == PUT || op == PUT_CONTENT || op == PUT_COMPRESSED) {
+                    var entry = readEntry(in, op != PUT, false);
+                    if (op == PUT_COMPRESSED) {
+                        entry = new Entry(entry.name(), entry.size(), entry.checksum(), entry.modified(),
+                            entry.content(), true);
+                    }
+                    add(entry);
+                } else if (op == REMOVE) {
+                    drop(in.readUTF());
+                } else {
+                    throw new IOException("corrupt manifest journal: " + journal);
+                }
+            }
+        } catch (EOFException e) {
+            System.err.println("manifest journal " + journal.getFileName() + " ends with a partial record, ignoring it");
+            return records + 1; //the partial record must not be appended to, so always checkpoint
+        }
+    }
+
+    //puts an entry, counting it as a part of its file if it is a shard or chunk
+    private void add(Entry entry) {
+        var owner = ownerOf(entry.name());
+        if (entries.put(entry.name(), entry) == null && owner != null) {
+            parts.merge(owner, 1, Integer::sum);
+        }
+    }
+
+    private Entry drop(String fileName) {
+        var entry = entries.remove(fileName);
+        var owner = ownerOf(fileName);
+        if (entry != null && owner != null) {
+            parts.computeIfPresent(owner, (file, count) -> count == 1 ? null : count - 1);
+        }
+        return entry;
+    }
+
+    //the file a shard or chunk is part of, null for a whole file, a part being <file>#<i>
+    private static String ownerOf(String name) {
+        var i = name.lastIndexOf(Protocol.PART_SEPARATOR);
+        if (i < 0 || i + 1 == name.length()) {
+            return null;
+        }
+        for (int c = i + 1; c < name.length(); c++) {
+            if (!Character.isDigit(name.charAt(c))) {
+                return null;
+            }
+        }
+        return name.substring(0, i);
+    }
+
+    //builds the entries from the files on disk, only done the first time
+    private void scan(FolderLayout layout) throws IOException {
+        System.out.println("no manifest found, scanning the stored files");
+        try (var files = layout.files()) {
+            for (var it = files.iterator(); it.hasNext(); ) {
+                var file = it.next();
+                var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                var name = file.getFileName().toString();
+                if (ContentStore.isBlob(name)) {
+                    continue; //the names referring to it were lost with the manifest
+                }
+                add(new Entry(name, attributes.size(), FileTransfer.UNKNOWN_CHECKSUM,
+                    attributes.lastModifiedTime().toMillis(), null, false));
+            }
+        }
+    }
+
+    private List<Path> journals() throws IOException {
+        try (var files = Files.list(folder)) {
+            return files.filter(f -> f.getFileName().toString().startsWith(JOURNAL_PREFIX))
+                .sorted((a, b) -> Long.compare(sequenceOf(a), sequenceOf(b)))
+                .toList();
+        }
+    }
+
+    private DataOutputStream openJournal(long sequence) throws IOException {
+        var file = folder.resolve(JOURNAL_PREFIX + sequence).toFile();
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    private static long sequenceOf(Path journal) {
+        return Long.parseLong(journal.getFileName().toString().substring(JOURNAL_PREFIX.length()));
+    }
+
+    //appends a stored entry to the journal, in the oldest record that holds all of it
+    private void writePut(Entry entry) throws IOException {
+        journal.writeByte(entry.compressed() ? PUT_COMPRESSED : entry.content() == null ? PUT : PUT_CONTENT);
+        writeEntry(journal, entry);
+        if (entry.compressed() || entry.content() != null) {
+            journal.writeUTF(entry.content() == null ? "" : entry.content());
+        }
+        journal.flush();
+        journalRecords++;
+    }
+
+    private static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+        out.writeUTF(entry.name());
+        out.writeLong(entry.size());
+        out.writeLong(entry.checksum());
+        out.writeLong(entry.modified());
+    }
+
+    private static Entry readEntry(DataInputStream in, boolean withContent, boolean withCompressed)
+        throws IOException {
+        var name = in.readUTF();
+        var size = in.readLong();
+        var checksum = in.readLong();
+        var modified = in.readLong();
+        var content = withContent ? in.readUTF() : "";
+        var compressed = withCompressed && in.readBoolean();
+        return new Entry(name, size, checksum, modified, content.isEmpty() ? null : content, compressed);
+    }
+}
@@ -0,0 +1,216 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * Cache of whole files kept off-heap in direct buffers, bounded by a byte budget. Eviction is a
+ * segmented LRU: new files enter a probation segment and only move to the protected segment
+ * when they are read again, so a one-off scan over many cold files only churns probation and
+ * does not push out the hot set.
+ */
+public class ObjectCache {
+
+    // share of the budget kept for files that have been read more than once
+    private static final double PROTECTED_SHARE = 0.8;
+    // invalidations remembered by name, past that the older ones are forgotten all at once
+    private static final int MAX_INVALIDATIONS = 4096;
+
+    private final long capacity;
+    private final long protectedCapacity;
+    private final long maxObjectSize;
+
+    // both in access order, the eldest entry is the least recently used
+    private final LinkedHashMap<String, ByteBuffer> probation;
+    private final LinkedHashMap<String, ByteBuffer> protectedSegment;
+    private long probationBytes;
+    private long protectedBytes;
+
+    // bumped on every invalidation, the generation each file was last invalidated at is kept so
+    // a fill that raced with an invalidation of its own file is dropped, and a fill older than
+    // the invalidations forgotten is dropped as well
+    private long generation;
+    private final HashMap<String, Long> invalidated;
+    private long forgotten;
+
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+
+    /**
+     * @param capacity the budget in bytes, 0 disables the cache
+     * @param maxObjectSize the largest file that is cached
+     */
+    public ObjectCache(long capacity, long maxObjectSize) {
+        this.capacity = capacity;
+        this.protectedCapacity = (long) (capacity * PROTECTED_SHARE);
+        this.maxObjectSize = Math.min(maxObjectSize, Integer.MAX_VALUE);
+        this.probation = new LinkedHashMap<>(16, 0.75f, true);
+        this.protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+        this.invalidated = new HashMap<>();
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.evictions = new AtomicLong();
+    }
+
+    /**
+     * @return whether the cache has a budget at all
+     */
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /**
+     * @param size the size of a file
+     * @return whether a file of that size would be cached
+     */
+    public boolean admits(long size) {
+        return capacity > 0 && size <= maxObjectSize && size <= capacity;
+    }
+
+    /**
+     * Looks up a file, promoting it to the protected segment if it was on probation
+     * @param fileName the name of the file
+     * @return a read-only view of the contents positioned at 0, or null on a miss
+     */
+    public synchronized ByteBuffer get(String fileName) {
+        var buffer = protectedSegment.get(fileName);
+        if (buffer == null) {
+            buffer = probation.remove(fileName);
+            if (buffer != null) {
+                probationBytes -= buffer.capacity();
+                protectedSegment.put(fileName, buffer);
+                protectedBytes += buffer.capacity();
+                demoteOverflow();
+            }
+        }
+        if (buffer == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the current generation, to pass to {@link #load} or {@link #put}
+     */
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Reads a file into a direct buffer and caches it, checking its CRC32C first
+     * @param fileName the name of the file
+     * @param file the open file
+     * @param expectedChecksum the CRC32C the file was stored with, or
+     * {@link FileTransfer#UNKNOWN_CHECKSUM} to skip the check
+     * @param generation the generation read before the file was opened
+     * @return a read-only view of the contents positioned at 0
+     * @throws FileTransfer.ChecksumException if the contents do not match the checksum
+     * @throws IOException if the file cannot be read
+     */
+    public ByteBuffer load(String fileName, StoredFile file, long expectedChecksum, long generation)
+        throws IOException {
+        var buffer = ByteBuffer.allocateDirect((int) file.size());
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, buffer.position()) < 0) {
+                throw new IOException("file ended early: " + fileName);
+            }
+        }
+        buffer.flip();
+        if (expectedChecksum != FileTransfer.UNKNOWN_CHECKSUM) {
+            var crc = new CRC32C();
+            crc.update(buffer.duplicate());
+            if (crc.getValue() != expectedChecksum) {
+                throw new FileTransfer.ChecksumException(fileName + " does not match its checksum");
+            }
+        }
+        put(fileName, buffer, generation);
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Adds a file on probation, unless it was invalidated since generation was read
+     * @param fileName the name of the file
+     * @param buffer the contents of the file, positioned at 0
+     * @param generation the generation read before the contents were read
+     */
+    public synchronized void put(String fileName, ByteBuffer buffer, long generation) {
+        if (generation < forgotten || generation < invalidated.getOrDefault(fileName, 0L)
+            || !admits(buffer.capacity())) {
+            return;
+        }
+        remove(fileName);
+        probation.put(fileName, buffer);
+        probationBytes += buffer.capacity();
+        while (probationBytes + protectedBytes > capacity) {
+            var segment = probation.isEmpty() ? protectedSegment : probation;
+            var eldest = segment.entrySet().iterator().next();
+            segment.remove(eldest.getKey());
+            if (segment == probation) {
+                probationBytes -= eldest.getValue().capacity();
+            } else {
+                protectedBytes -= eldest.getValue().capacity();
+            }
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drops a file whose contents changed or went away
+     * @param fileName the name of the file
+     */
+    public synchronized void invalidate(String fileName) {
+        generation++;
+        if (invalidated.size() >= MAX_INVALIDATIONS) {
+            invalidated.clear();
+            forgotten = generation;
+        }
+        invalidated.put(fileName, generation);
+        remove(fileName);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "hits=" + hits + " misses=" + misses + " evictions=" + evictions
+            + " entries=" + (probation.size() + protectedSegment.size())
+            + " bytes=" + (probationBytes + protectedBytes) + "/" + capacity;
+    }
+
+    private void remove(String fileName) {
+        var buffer = probation.remove(fileName);
+        if (buffer != null) {
+            probationBytes -= buffer.capacity();
+        }
+        buffer = protectedSegment.remove(fileName);
+        if (buffer != null) {
+            protectedBytes -= buffer.capacity();
+        }
+    }
+
+    //moves the least recently used protected files back to probation
+    private void demoteOverflow() {
+        while (protectedBytes > protectedCapacity && protectedSegment.size() > 1) {
+            var eldest = protectedSegment.entrySet().iterator().next();
+            protectedSegment.remove(eldest.getKey());
+            protectedBytes -= eldest.getValue().capacity();
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationBytes += eldest.getValue().capacity();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Optional startup settings given after the positional arguments, each one as --name=value
+ */
+public class Options {
+
+    private final Map<String, String> values;
+
+    /**
+     * Parses the options from the command line arguments
+     * @param args the command line arguments
+     * @param from the index of the first optional argument
+     */
+    public Options(String[] args, int from) {
+        this.values = new HashMap<>();
+        for (int i = from; i < args.length; i++) {
+            var arg = args[i];
+            var separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("expected --name=value but got: " + arg);
+            }
+            values.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+    }
+
+    /**
+     * @return options with every setting left to its default
+     */
+    public static Options defaults() {
+        return new Options(new String[0], 0);
+    }
+
+    /**
+     * @param name the name of the option
+     * @param defaultValue the value to use if the option is not given
+     * @return the value of the option
+     */
+    public String get(String name, String defaultValue) {
+        return values.getOrDefault(name, defaultValue);
+    }
+
+    /**
+     * @param name the name of the option
+     * @param defaultValue the value to use if the option is not given
+     * @return the value of the option as an int
+     */
+    public int getInt(String name, int defaultValue) {
+        var value = values.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    /**
+     * @param name the name of the option
+     * @param defaultValue the value to use if the option is not given
+     * @return the value of the option as a boolean
+     */
+    public boolean getBoolean(String name, boolean defaultValue) {
+        var value = values.get(name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    /**
+     * Reads a byte count, which may end in k, m or g for KiB, MiB or GiB
+     * @param name the name of the option
+     * @param defaultValue the value to use if the option is not given
+     * @return the value of the option in bytes
+     */
+    public long getBytes(String name, long defaultValue) {
+        var value = values.get(name);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        var unit = Character.toLowerCase(value.charAt(value.length() - 1));
+        var shift = switch (unit) {
+            case 'k' -> 10;
+            case 'm' -> 20;
+            case 'g' -> 30;
+            default -> 0;
+        };
+        var digits = shift == 0 ? value : value.substring(0, value.length() - 1);
+        return Long.parseLong(digits) << shift;
+    }
+}
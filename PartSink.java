@@ -0,0 +1,121 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Where a Dstore writes one part of a file it is splitting, a shard or a chunk, while the file
+ * is still arriving. The part goes to the Dstores of its replication chain. If this Dstore is the
+ * first of them it is written to a temporary file here, or kept in memory for a segment if it is
+ * small, committed at the end, and passed on to the rest of the chain as it is written.
+ */
+class PartSink {
+
+    private final Dstore dstore;
+    private final String name;
+    private final long size;
+    // null for a small part, kept in memory until it is appended to a segment
+    private final Path temp;
+    private final OutputStream out;
+    private final CRC32C crc;
+    // the rest of the chain, null if there is none or this Dstore is not in it
+    private final TransferEngine.PeerConnection peer;
+
+    private PartSink(Dstore dstore, String name, long size, boolean local, Path temp,
+        TransferEngine.PeerConnection peer) throws IOException {
+        this.dstore = dstore;
+        this.name = name;
+        this.size = size;
+        this.temp = temp;
+        this.out = !local ? null : temp == null ? new ByteArrayOutputStream((int) size) : Files.newOutputStream(temp);
+        this.crc = !local ? null : new CRC32C();
+        this.peer = peer;
+    }
+
+    /**
+     * Opens a part with the Dstores that store it
+     * @param dstore the Dstore splitting the file
+     * @param name the name the part is stored under
+     * @param size the size of the part
+     * @param chain the ports of the Dstores storing the part, in the order it is forwarded
+     * @return the open part
+     * @throws IOException if the temporary file cannot be created or the first Dstore of the
+     * chain does not accept the part
+     */
+    static PartSink open(Dstore dstore, String name, long size, List<Integer> chain) throws IOException {
+        if (chain.get(0) != dstore.port) {
+            var peer = dstore.transferEngine.openChain(name, size, FileTransfer.UNKNOWN_CHECKSUM, chain);
+            if (peer == null) {
+                throw new IOException("Dstore " + chain.get(0) + " did not accept " + name);
+            }
+            return new PartSink(dstore, name, size, false, null, peer);
+        }
+
+        //a replica that cannot be forwarded is kept here only, as for a chained STORE
+        TransferEngine.PeerConnection peer = null;
+        if (chain.size() > 1) {
+            var rest = chain.subList(1, chain.size());
+            peer = dstore.transferEngine.openChain(name, size, FileTransfer.UNKNOWN_CHECKSUM, rest);
+            if (peer == null) {
+                System.err.println("Dstore " + rest.get(0) + " did not accept " + name + ", storing it locally only");
+            }
+        }
+        var temp = dstore.segments.accepts(size) ? null : Files.createTempFile(dstore.tempFolder(), "part", ".part");
+        return new PartSink(dstore, name, size, true, temp, peer);
+    }
+
+    void write(byte[] bytes, int offset, int length) throws IOException {
+        if (out != null) {
+            out.write(bytes, offset, length);
+            crc.update(bytes, offset, length);
+        }
+        if (peer != null) {
+            peer.chunks.write(bytes, offset, length);
+        }
+    }
+
+    /**
+     * Ends the part, storing it here if this Dstore is in its chain
+     * @param acknowledge whether to send STORE_ACK for a part stored here
+     * @throws IOException if the part cannot be stored or the end cannot be sent
+     */
+    void commit(boolean acknowledge) throws IOException {
+        if (out != null) {
+            out.close();
+            if (temp == null) {
+                dstore.putSmall(name, ((ByteArrayOutputStream) out).toByteArray());
+            } else {
+                Files.move(temp, dstore.path(name), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+                dstore.segments.remove(name);
+            }
+            dstore.stored(name, size, crc.getValue(), false);
+            if (acknowledge) {
+                dstore.storeAck(name);
+            }
+        }
+        if (peer != null) {
+            dstore.transferEngine.finish(peer);
+        }
+    }
+
+    void abort() {
+        if (peer != null) {
+            peer.abort();
+        }
+        if (out != null) {
+            try {
+                out.close();
+                if (temp != null) {
+                    Files.deleteIfExists(temp);
+                }
+            } catch (IOException e) {
+                System.err.println("error deleting " + temp + ": " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+/**
+ * Chooses the Dstores a file is stored on, the ones holding the fewest bytes, counting the stores
+ * still in progress. The Dstores are kept ordered by their bytes, so choosing w of them costs
+ * O(w log D) rather than sorting all of them, and the bytes of a store are reserved on the
+ * Dstores as they are chosen, so stores arriving together spread over the Dstores instead of all
+ * going to the ones that were emptiest before any of them started. The reserved bytes are held
+ * once the store completes and given back if it fails.
+ *
+ * With rendezvous hashing on, the Dstores for a name are the ones ranking highest for it, the
+ * rank of a Dstore being a hash of the name and its port. Where a name goes is then known from the
+ * name and the Dstores alone, and a Dstore joining or leaving only changes the place of the names
+ * it ranks highest for, about 1/D of them. The bytes are still counted, but do not pick the
+ * Dstores.
+ */
+public class Placement {
+
+    //a Dstore in the order, by its bytes and then its port
+    private record Load(long bytes, int port) implements Comparable<Load> {
+
+        @Override
+        public int compareTo(Load other) {
+            var order = Long.compare(bytes, other.bytes);
+            return order != 0 ? order : Integer.compare(port, other.port);
+        }
+    }
+
+    /**
+     * The bytes reserved for a store on each Dstore chosen for it, committed or released once
+     */
+    public static class Reservation {
+
+        // key: port, value: bytes reserved, in the order the Dstores were chosen
+        private final Map<Integer, Long> bytes;
+        private boolean settled;
+
+        private Reservation() {
+            this.bytes = new LinkedHashMap<>();
+        }
+
+        /**
+         * @return the ports of the Dstores chosen, the least loaded or highest ranking first
+         */
+        public List<Integer> ports() {
+            return List.copyOf(bytes.keySet());
+        }
+    }
+
+    private final boolean rendezvous;
+    private final TreeSet<Load> order;
+    // key: port, value: bytes the Dstore holds
+    private final Map<Integer, Long> used;
+    // key: port, value: bytes reserved on the Dstore for stores in progress
+    private final Map<Integer, Long> reserved;
+
+    /**
+     * @param rendezvous whether names are placed by rendezvous hashing rather than by load
+     */
+    public Placement(boolean rendezvous) {
+        this.rendezvous = rendezvous;
+        this.order = new TreeSet<>();
+        this.used = new HashMap<>();
+        this.reserved = new HashMap<>();
+    }
+
+    /**
+     * Adds a Dstore holding nothing, or empties the one that joined again on the same port
+     * @param port the port of the Dstore
+     */
+    public synchronized void add(int port) {
+        remove(port);
+        used.put(port, 0L);
+        reserved.put(port, 0L);
+        order.add(new Load(0, port));
+    }
+
+    /**
+     * @param port the port of a Dstore that left
+     */
+    public synchronized void remove(int port) {
+        if (used.containsKey(port)) {
+            order.remove(loadOf(port));
+            used.remove(port);
+            reserved.remove(port);
+        }
+    }
+
+    /**
+     * @return whether names are placed by rendezvous hashing
+     */
+    public boolean rendezvous() {
+        return rendezvous;
+    }
+
+    /**
+     * Chooses the Dstores for a name, the least loaded ones or the ones ranking highest for it,
+     * and reserves bytes on each
+     * @param name the name stored, a file, or one of its chunks
+     * @param width the number of Dstores to choose
+     * @param bytes the bytes each of them will hold
+     * @return the reservation, with fewer Dstores than width if there are not enough
+     */
+    public synchronized Reservation reserve(String name, int width, long bytes) {
+        var chosen = new ArrayList<Integer>(width);
+        if (rendezvous) {
+            chosen.addAll(rank(name, used.keySet(), width));
+        } else {
+            for (var load : order) {
+                if (chosen.size() == width) {
+                    break;
+                }
+                chosen.add(load.port());
+            }
+        }
+        var reservation = new Reservation();
+        for (var port : chosen) {
+            change(port, 0, bytes);
+            reservation.bytes.put(port, bytes);
+        }
+        return reservation;
+    }
+
+    /**
+     * Counts the reserved bytes as held, after the store completed
+     * @param reservation the reservation of the store
+     */
+    public synchronized void commit(Reservation reservation) {
+        if (reservation.settled) {
+            return;
+        }
+        reservation.settled = true;
+        reservation.bytes.forEach((port, bytes) -> change(port, bytes, -bytes));
+    }
+
+    /**
+     * Gives the reserved bytes back, after the store failed
+     * @param reservation the reservation of the store
+     */
+    public synchronized void release(Reservation reservation) {
+        if (reservation.settled) {
+            return;
+        }
+        reservation.settled = true;
+        reservation.bytes.forEach((port, bytes) -> change(port, 0, -bytes));
+    }
+
+    /**
+     * @param bytes the bytes removed from each Dstore, by port
+     */
+    public synchronized void free(Map<Integer, Long> bytes) {
+        bytes.forEach((port, freed) -> {
+            if (used.containsKey(port)) {
+                change(port, -Math.min(freed, used.get(port)), 0);
+            }
+        });
+    }
+
+    /**
+     * Replaces the bytes held by the Dstores with what they listed, the reservations stay
+     * @param bytes the bytes each Dstore holds, by port
+     */
+    public synchronized void reset(Map<Integer, Long> bytes) {
+        bytes.forEach((port, held) -> {
+            if (used.containsKey(port)) {
+                change(port, held - used.get(port), 0);
+            }
+        });
+    }
+
+    /**
+     * @param name a name
+     * @param ports the ports of the Dstores to choose from
+     * @param count the number of Dstores to choose
+     * @return the ports of the Dstores ranking highest for the name, the highest first
+     */
+    public static List<Integer> rank(String name, Collection<Integer> ports, int count) {
+        var hash = hashOf(name);
+        //the lowest of the highest ranks on top
+        var best = new PriorityQueue<long[]>(count + 1, (a, b) -> Long.compareUnsigned(a[0], b[0]));
+        for (var port : ports) {
+            best.add(new long[] {mix(hash ^ mix(port)), port});
+            if (best.size() > count) {
+                best.poll();
+            }
+        }
+        var ranked = new ArrayList<Integer>(best.size());
+        while (!best.isEmpty()) {
+            ranked.add(0, (int) best.poll()[1]);
+        }
+        return ranked;
+    }
+
+    /**
+     * @param name a name
+     * @param port the port of a Dstore
+     * @return the rank of the Dstore for the name, unsigned, the higher ranking higher
+     */
+    public static long rankOf(String name, int port) {
+        return mix(hashOf(name) ^ mix(port));
+    }
+
+    //FNV-1a
+    private static long hashOf(String name) {
+        var hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            hash = (hash ^ name.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    //the finalizer of SplitMix64, spreads every bit of the input over the output
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    //moves a Dstore to its place for its new bytes, a port no longer known is left alone
+    private void change(int port, long usedDelta, long reservedDelta) {
+        if (!used.containsKey(port)) {
+            return;
+        }
+        order.remove(loadOf(port));
+        used.merge(port, usedDelta, Long::sum);
+        reserved.merge(port, reservedDelta, Long::sum);
+        order.add(loadOf(port));
+    }
+
+    private Load loadOf(int port) {
+        return new Load(used.get(port) + reserved.get(port), port);
+    }
+}
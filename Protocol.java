@@ -13,8 +13,13 @@ public class Protocol {
 	public final static String STORE_TO_TOKEN = "STORE_TO";
 	public final static String STORE_COMPLETE_TOKEN = "STORE_COMPLETE";
 	public final static String LOAD_FROM_TOKEN = "LOAD_FROM";
+	public final static String LOAD_CHUNKS_TOKEN = "LOAD_CHUNKS"; // instead of LOAD_FROM for LOAD <file> CHUNKS, followed by the words after CHUNKS
 	public final static String REMOVE_COMPLETE_TOKEN = "REMOVE_COMPLETE";
 	public final static String REBALANCE_TOKEN = "REBALANCE";
+	public final static String STORE_MODE_TOKEN = "STORE_MODE"; // after JOIN, followed by FANOUT, CHAIN or ERASURE, then optionally CHUNKS and the size above which files are chunked
+	public final static String STORE_PLAN_TOKEN = "STORE_PLAN"; // followed by a file name and the optional words for its STORE
+	public final static String LOAD_PLAN_TOKEN = "LOAD_PLAN"; // followed by a file name and the optional words for its LOAD_DATA
+	public final static String REPAIR_SHARD_TOKEN = "REPAIR_SHARD"; // followed by a file name, a shard number and SHARDS
 	public final static String ERROR_FILE_DOES_NOT_EXIST_TOKEN = "ERROR_FILE_DOES_NOT_EXIST"; // also from Dstores
 	public final static String ERROR_FILE_ALREADY_EXISTS_TOKEN = "ERROR_FILE_ALREADY_EXISTS";
 	public final static String ERROR_NOT_ENOUGH_DSTORES_TOKEN = "ERROR_NOT_ENOUGH_DSTORES";
@@ -27,4 +32,25 @@ public class Protocol {
 	public final static String JOIN_TOKEN = "JOIN";
 	public final static String REBALANCE_STORE_TOKEN = "REBALANCE_STORE";
 	public final static String REBALANCE_COMPLETE_TOKEN = "REBALANCE_COMPLETE";
+	public final static String REBALANCE_FAILED_TOKEN = "REBALANCE_FAILED"; // instead of REBALANCE_COMPLETE when a file could not be sent, the files not sent are kept
+	public final static String HAS_CONTENT_TOKEN = "HAS_CONTENT"; // instead of ACK to a REBALANCE_STORE with SHA256 whose contents the Dstore already holds, no data follows
+	
+	// optional words after the size in STORE and REBALANCE_STORE
+	public final static String CHUNKED_TOKEN = "CHUNKED"; // the data follows the ACK in length-prefixed chunks
+	public final static String CHECKSUM_TOKEN = "CRC32C"; // followed by the CRC32C of the data in hex, checked before the file is kept
+	public final static String CONTENT_TOKEN = "SHA256"; // REBALANCE_STORE only, followed by the SHA-256 of the data in hex when the sender keeps the file as a shared blob
+	public final static String COMPRESSED_TOKEN = "COMPRESSED"; // REBALANCE_STORE only, followed by the size of the file as the sender stores it compressed; a Dstore answering "ACK COMPRESSED" gets those bytes, one answering ACK gets the file as it is
+	public final static String CHAIN_TOKEN = "CHAIN"; // last, followed by the ports the Dstore forwards the file to, also after STORE to the Controller
+	public final static String FANOUT_TOKEN = "FANOUT";
+	public final static String ERASURE_TOKEN = "ERASURE"; // after STORE to the Controller, optionally followed by k and m
+	public final static String CHUNKS_TOKEN = "CHUNKS"; // last, followed by the size, the chunk size, the number of chunks and for each chunk the number of replicas and their ports
+	public final static String SHARDS_TOKEN = "SHARDS"; // last, followed by the size, k, m and the port of each shard, 0 if it is missing
+	
+	// shard or chunk i of a file split across Dstores is stored as <file>#<i>, so a client file name cannot hold it
+	public final static String PART_SEPARATOR = "#";
+	
+	// ranges, all optional so whole-file loads are unchanged:
+	// LOAD <file> [<offset> <length>] and LOAD_DATA <file> [<offset> <length>] ask for length bytes from offset
+	// RELOAD <file> [<received>] resumes after the bytes of the range already received
+	// LOAD_FROM <port> <size> [<offset> <length>] gives the range to ask the Dstore for
 }
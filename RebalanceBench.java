@@ -0,0 +1,122 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Measures the {@link RebalancePlanner} on a large cluster. Files of random sizes start out
+ * skewed onto half of the Dstores, some with too few or too many replicas, and the planner is
+ * timed on that listing, on the same listing again, on a Dstore joining, on one leaving and on
+ * files stored and removed between two rebalances. Each plan is carried out by listing its
+ * holdings for the next one, and the copies it sends and the spread of bytes it leaves are
+ * printed. The last step checks every file is held exactly r times.
+ *
+ * Run it from the folder of the sources with:
+ *   javac -d out -cp client.jar *.java
+ *   java -Xmx4g -cp out RebalanceBench [--files=1000000] [--dstores=500] [--r=3]
+ *     [--placement=load|rendezvous]
+ */
+public class RebalanceBench {
+
+    public static void main(String[] args) {
+        var options = new Options(args, 0);
+        var files = options.getInt("files", 1_000_000);
+        var dstores = options.getInt("dstores", 500);
+        var r = options.getInt("r", 3);
+        var placement = options.get("placement", "load");
+        if (!placement.equals("load") && !placement.equals("rendezvous")) {
+            throw new IllegalArgumentException("unknown placement option: " + placement);
+        }
+
+        //files of 1KB to 1MB on the first half of the Dstores, one in 50 held once, one in 77 five times
+        var random = new Random(1);
+        var sizes = new HashMap<String, Long>();
+        var names = new String[files];
+        for (int i = 0; i < files; i++) {
+            names[i] = "file-" + i;
+            sizes.put(names[i], 1000L + random.nextInt(1_000_000));
+        }
+        var planner = new RebalancePlanner(r, placement.equals("rendezvous"), name -> sizes.getOrDefault(name, 0L));
+        var listed = new HashMap<Integer, List<String>>();
+        for (int d = 0; d < dstores; d++) {
+            listed.put(10000 + d, new ArrayList<>());
+        }
+        for (int i = 0; i < files; i++) {
+            var copies = i % 50 == 0 ? 1 : i % 77 == 0 ? 5 : r;
+            var holders = new HashSet<Integer>();
+            while (holders.size() < copies) {
+                holders.add(random.nextInt(Math.max(dstores / 2, copies)));
+            }
+            for (var d : holders) {
+                listed.get(10000 + d).add(names[i]);
+            }
+        }
+
+        var plan = time("skewed initial plan", () -> planner.plan(listed, List.of()), sizes);
+        var unchanged = copy(plan.holdings());
+        time("unchanged listing", () -> planner.plan(copy(unchanged), List.of()), sizes);
+
+        var joined = copy(unchanged);
+        joined.put(20000, new ArrayList<>());
+        plan = time("one Dstore joins", () -> planner.plan(joined, List.of()), sizes);
+
+        var left = copy(plan.holdings());
+        left.remove(10007);
+        plan = time("one Dstore leaves", () -> planner.plan(left, List.of()), sizes);
+
+        //stored since the last rebalance, each on r Dstores in turn, and dropped
+        var stored = copy(plan.holdings());
+        var ports = new ArrayList<>(stored.keySet());
+        for (int i = 0; i < 1000; i++) {
+            var name = "new-" + i;
+            sizes.put(name, 5000L);
+            for (int k = 0; k < r; k++) {
+                stored.get(ports.get((i * r + k) % ports.size())).add(name);
+            }
+        }
+        var drop = new ArrayList<String>();
+        for (int i = 0; i < Math.min(1000, files / 7); i++) {
+            drop.add(names[i * 7]);
+        }
+        plan = time("1000 new, 1000 gone", () -> planner.plan(stored, drop), sizes);
+
+        var counts = new HashMap<String, Integer>();
+        plan.holdings().values().forEach(held -> held.forEach(name -> counts.merge(name, 1, Integer::sum)));
+        System.out.println(counts.size() + " files, every one held " + r + " times: "
+            + counts.values().stream().allMatch(count -> count == r));
+    }
+
+    //times a plan and prints what it moves and how evenly the bytes are spread afterwards
+    private static RebalancePlanner.Plan time(String what, Supplier<RebalancePlanner.Plan> planning,
+        Map<String, Long> sizes) {
+        System.gc();
+        var start = System.nanoTime();
+        var plan = planning.get();
+        var seconds = (System.nanoTime() - start) / 1e9;
+
+        var copies = 0L;
+        var bytes = 0L;
+        for (var sends : plan.toSend().values()) {
+            for (var send : sends) {
+                copies += send.getSecond().size();
+                bytes += send.getSecond().size() * sizes.getOrDefault(send.getFirst(), 0L);
+            }
+        }
+        var removed = plan.toRemove().values().stream().mapToLong(List::size).sum();
+        var held = plan.holdings().values().stream()
+            .mapToLong(names -> names.stream().mapToLong(name -> sizes.getOrDefault(name, 0L)).sum())
+            .summaryStatistics();
+        System.out.printf("%-22s %6.1f s  copies %d (%.1f GB), removed %d, per Dstore %.2f-%.2f GB%n",
+            what, seconds, copies, bytes / 1e9, removed, held.getMin() / 1e9, held.getMax() / 1e9);
+        return plan;
+    }
+
+    private static Map<Integer, List<String>> copy(Map<Integer, List<String>> holdings) {
+        var copy = new HashMap<Integer, List<String>>();
+        holdings.forEach((port, names) -> copy.put(port, new ArrayList<>(names)));
+        return copy;
+    }
+}
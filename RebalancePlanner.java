@@ -0,0 +1,323 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.ToLongFunction;
+
+/**
+ * Plans a rebalance: the files each Dstore sends to others and the ones it removes, so every file
+ * is held by r Dstores and the Dstores hold about as many bytes each. What every Dstore holds
+ * once the last plan is carried out is kept, and only the files listed differently since, the
+ * changed files, are placed again. With a Dstore joining or leaving, only the bytes needed to
+ * even the Dstores out are moved.
+ *
+ * Every file weighs its size, and at least 1 so empty files are spread too. The Dstores are kept
+ * ordered by the bytes they hold, a replica is added on the lightest Dstore not holding the file
+ * and taken off the heaviest holding it, each in O(log D). The Dstores are evened out by moving
+ * the largest file that does not overshoot from the heaviest Dstore to the lightest, until no
+ * file fits, which with files of one size leaves them at most one file apart.
+ *
+ * With rendezvous placement a file is held by the r Dstores ranking highest for it instead, and
+ * every file is placed again when the Dstores change, since any of them may rank differently.
+ */
+public class RebalancePlanner {
+
+    /**
+     * What a rebalance asks of each Dstore, and what each holds once done
+     * @param toSend the files each Dstore sends and the Dstores it sends each to, by port
+     * @param toRemove the files each Dstore removes, by port, every Dstore has an entry
+     * @param holdings the files each Dstore holds afterwards, by port
+     */
+    public record Plan(Map<Integer, ArrayList<Pair<String, ArrayList<Integer>>>> toSend,
+        Map<Integer, ArrayList<String>> toRemove, Map<Integer, List<String>> holdings) {}
+
+    //a Dstore in the order, by its bytes and then its port
+    private record Load(long bytes, int port) implements Comparable<Load> {
+
+        @Override
+        public int compareTo(Load other) {
+            var order = Long.compare(bytes, other.bytes);
+            return order != 0 ? order : Integer.compare(port, other.port);
+        }
+    }
+
+    //a file and its weight, the heaviest first
+    private record Weighed(long weight, String name) implements Comparable<Weighed> {
+
+        @Override
+        public int compareTo(Weighed other) {
+            var order = Long.compare(other.weight, weight);
+            return order != 0 ? order : name.compareTo(other.name);
+        }
+    }
+
+    //the files a Dstore holds once the plan is carried out
+    private static class Holding {
+
+        final Set<String> files = new HashSet<>();
+        long bytes;
+        // its files, heaviest first, sorted once it is the heaviest Dstore in a plan, the files
+        // taken off it since are left in and skipped
+        Weighed[] sorted;
+        // the files before it are all taken off
+        int taken;
+    }
+
+    //how a plan changes the holders of a file, from what was listed
+    private static class Move {
+
+        // a Dstore that listed the file, it sends it
+        int sender;
+        final Set<Integer> added = new HashSet<>();
+        final Set<Integer> removed = new HashSet<>();
+
+        Move(int sender) {
+            this.sender = sender;
+        }
+    }
+
+    private final int r;
+    private final boolean rendezvous;
+    private final ToLongFunction<String> sizeOf;
+    // key: port, value: what the Dstore holds once the last plan is carried out
+    private final Map<Integer, Holding> holdings;
+    // key: file, value: the weight it was counted with
+    private final Map<String, Long> weights;
+
+    /**
+     * @param r the number of Dstores each file is held by
+     * @param rendezvous whether files are held by the Dstores ranking highest for them
+     * @param sizeOf the size of a listed name, 0 if it is not known
+     */
+    public RebalancePlanner(int r, boolean rendezvous, ToLongFunction<String> sizeOf) {
+        this.r = r;
+        this.rendezvous = rendezvous;
+        this.sizeOf = sizeOf;
+        this.holdings = new HashMap<>();
+        this.weights = new HashMap<>();
+    }
+
+    /**
+     * Plans a rebalance from what the Dstores listed, the Dstores that did not list are left out
+     * @param listed the names each Dstore listed, shards left out
+     * @param drop the names to take off every Dstore
+     * @return the plan
+     */
+    public synchronized Plan plan(Map<Integer, List<String>> listed, Collection<String> drop) {
+        var joined = !holdings.keySet().equals(listed.keySet());
+        var fresh = new HashSet<>(listed.keySet());
+        fresh.removeAll(holdings.keySet());
+        var changed = new HashSet<String>();
+        holdings.keySet().removeIf(port -> {
+            if (listed.containsKey(port)) {
+                return false;
+            }
+            changed.addAll(holdings.get(port).files);
+            return true;
+        });
+        listed.forEach((port, names) -> compare(port, names, changed));
+        changed.addAll(drop);
+
+        //the Dstores listing each changed file, or every file if a Dstore joined that may rank
+        //higher than one holding it
+        var everything = rendezvous && !fresh.isEmpty();
+        var holders = new HashMap<String, List<Integer>>();
+        if (everything || !changed.isEmpty()) {
+            listed.forEach((port, names) -> {
+                for (var name : names) {
+                    if (everything || changed.contains(name)) {
+                        holders.computeIfAbsent(name, n -> new ArrayList<>(r)).add(port);
+                    }
+                }
+            });
+        }
+        if (everything) {
+            holders.forEach((file, listedBy) -> {
+                if (outranked(file, listedBy, fresh)) {
+                    changed.add(file);
+                }
+            });
+            holders.keySet().retainAll(changed);
+        }
+
+        var order = new TreeSet<Load>();
+        holdings.forEach((port, holding) -> order.add(new Load(holding.bytes, port)));
+        var moves = new HashMap<String, Move>();
+        var dropped = new HashSet<>(drop);
+        var ports = List.copyOf(holdings.keySet());
+        for (var entry : holders.entrySet()) {
+            var file = entry.getKey();
+            var listedBy = entry.getValue();
+            var move = new Move(listedBy.get(0));
+            moves.put(file, move);
+            if (dropped.contains(file)) {
+                listedBy.forEach(port -> take(file, port, move, order));
+            } else if (rendezvous) {
+                var wanted = Placement.rank(file, ports, r);
+                listedBy.stream().filter(port -> !wanted.contains(port))
+                    .forEach(port -> take(file, port, move, order));
+                wanted.stream().filter(port -> !listedBy.contains(port))
+                    .forEach(port -> give(file, port, move, order));
+            } else {
+                replicate(file, listedBy, move, order);
+            }
+            //a Dstore keeping the file sends it
+            move.sender = listedBy.stream().filter(port -> !move.removed.contains(port))
+                .findFirst().orElse(move.sender);
+        }
+        if (!rendezvous && (joined || !changed.isEmpty())) {
+            even(order, moves);
+        }
+        //files on no Dstore any more are forgotten
+        for (var file : changed) {
+            var move = moves.get(file);
+            if (move == null || move.added.isEmpty() && move.removed.size() == holders.get(file).size()) {
+                weights.remove(file);
+            }
+        }
+        return planOf(moves);
+    }
+
+    //whether one of the Dstores ranks higher for the file than the lowest of its holders
+    private boolean outranked(String file, List<Integer> listedBy, Set<Integer> ports) {
+        if (listedBy.size() < r) {
+            return true;
+        }
+        var lowest = listedBy.stream().mapToLong(port -> Placement.rankOf(file, port))
+            .reduce((a, b) -> Long.compareUnsigned(a, b) < 0 ? a : b).getAsLong();
+        return ports.stream().anyMatch(port -> Long.compareUnsigned(Placement.rankOf(file, port), lowest) > 0);
+    }
+
+    //brings the holding of a Dstore up to what it listed, adding the names that differ to changed
+    private void compare(int port, List<String> names, Set<String> changed) {
+        var holding = holdings.computeIfAbsent(port, p -> new Holding());
+        holding.sorted = null;
+        for (var name : names) {
+            if (holding.files.add(name)) {
+                changed.add(name);
+                holding.bytes += weightOf(name);
+            }
+        }
+        //the names no longer listed, only looked for when there are some
+        if (holding.files.size() > names.size()) {
+            var now = new HashSet<>(names);
+            holding.files.removeIf(name -> {
+                if (now.contains(name)) {
+                    return false;
+                }
+                changed.add(name);
+                holding.bytes -= weightOf(name);
+                return true;
+            });
+        }
+    }
+
+    //adds replicas on the lightest Dstores not holding the file, or takes them off the heaviest
+    private void replicate(String file, List<Integer> listedBy, Move move, TreeSet<Load> order) {
+        var count = listedBy.size();
+        while (count > r) {
+            var heaviest = listedBy.stream()
+                .filter(port -> holdings.get(port).files.contains(file))
+                .max(Comparator.comparingLong(port -> holdings.get(port).bytes)).orElseThrow();
+            take(file, heaviest, move, order);
+            count--;
+        }
+        while (count < r) {
+            var lightest = order.stream()
+                .filter(load -> !holdings.get(load.port()).files.contains(file))
+                .findFirst().orElse(null);
+            if (lightest == null) {
+                return; //fewer than r Dstores
+            }
+            give(file, lightest.port(), move, order);
+            count++;
+        }
+    }
+
+    //moves files from the heaviest Dstore to the lightest while one fits without overshooting
+    private void even(TreeSet<Load> order, Map<String, Move> moves) {
+        while (order.size() > 1) {
+            var lightest = order.first();
+            var heaviest = order.last();
+            var gap = heaviest.bytes() - lightest.bytes();
+            var file = largestFitting(holdings.get(heaviest.port()), holdings.get(lightest.port()), gap / 2);
+            if (file == null) {
+                return;
+            }
+            var move = moves.computeIfAbsent(file, f -> new Move(heaviest.port()));
+            take(file, heaviest.port(), move, order);
+            give(file, lightest.port(), move, order);
+        }
+    }
+
+    //the heaviest file of from, not on to, weighing at most limit
+    private String largestFitting(Holding from, Holding to, long limit) {
+        if (from.sorted == null) {
+            from.sorted = from.files.stream().map(file -> new Weighed(weightOf(file), file))
+                .sorted().toArray(Weighed[]::new);
+            from.taken = 0;
+        }
+        var files = from.sorted;
+        while (from.taken < files.length && !from.files.contains(files[from.taken].name())) {
+            from.taken++;
+        }
+        var index = Arrays.binarySearch(files, from.taken, files.length, new Weighed(limit, ""));
+        for (int i = index < 0 ? -index - 1 : index; i < files.length; i++) {
+            var file = files[i].name();
+            if (from.files.contains(file) && !to.files.contains(file)) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    private void give(String file, int port, Move move, TreeSet<Load> order) {
+        var holding = holdings.get(port);
+        order.remove(new Load(holding.bytes, port));
+        holding.files.add(file);
+        holding.bytes += weightOf(file);
+        order.add(new Load(holding.bytes, port));
+        if (!move.removed.remove(port)) {
+            move.added.add(port);
+        }
+    }
+
+    private void take(String file, int port, Move move, TreeSet<Load> order) {
+        var holding = holdings.get(port);
+        order.remove(new Load(holding.bytes, port));
+        holding.files.remove(file);
+        holding.bytes -= weightOf(file);
+        order.add(new Load(holding.bytes, port));
+        if (!move.added.remove(port)) {
+            move.removed.add(port);
+        }
+    }
+
+    private long weightOf(String name) {
+        return weights.computeIfAbsent(name, n -> Math.max(1, sizeOf.applyAsLong(n)));
+    }
+
+    private Plan planOf(Map<String, Move> moves) {
+        var toSend = new HashMap<Integer, ArrayList<Pair<String, ArrayList<Integer>>>>();
+        var toRemove = new HashMap<Integer, ArrayList<String>>();
+        var result = new HashMap<Integer, List<String>>();
+        holdings.forEach((port, holding) -> {
+            toRemove.put(port, new ArrayList<>());
+            result.put(port, new ArrayList<>(holding.files));
+        });
+        moves.forEach((file, move) -> {
+            if (!move.added.isEmpty()) {
+                toSend.computeIfAbsent(move.sender, port -> new ArrayList<>())
+                    .add(new Pair<>(file, new ArrayList<>(move.added)));
+            }
+            move.removed.forEach(port -> toRemove.get(port).add(file));
+        });
+        return new Plan(toSend, toRemove, result);
+    }
+}
@@ -0,0 +1,305 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Systematic Reed-Solomon code over GF(2^8). A stripe is split into k data shards and m parity
+ * shards are computed from them, and any k of the k + m shards are enough to rebuild the rest.
+ * The parity rows form a Cauchy matrix, so every k x k submatrix of the generator is invertible.
+ * Scaling its rows and columns keeps that property, so they are scaled to make the bit matrices
+ * below as sparse as possible, the first parity row becomes all ones.
+ * <p>
+ * Blocks are coded in the bit matrix form: a block is cut into 8 packets and each coefficient
+ * becomes an 8 x 8 matrix of bits, so multiplying a block is only XORs of whole packets.
+ * Blocks are held as longs because the JIT compiles those XOR loops to SIMD instructions, which
+ * it does not do for byte arrays, and there is no table lookup per byte. A block is a whole
+ * number of {@link #ALIGNMENT} bytes, see {@link #toLongs} and {@link #toBytes}.
+ */
+public class ReedSolomon {
+
+    // GF(2^8) has 256 elements, so at most 256 distinct shards
+    public static final int MAX_SHARDS = 256;
+
+    // blocks are cut into 8 packets of whole longs
+    public static final int ALIGNMENT = 8 * Long.BYTES;
+
+    private static final int POLYNOMIAL = 0x11d;
+    private static final byte[] EXP = new byte[510];
+    private static final int[] LOG = new int[256];
+    // MULTIPLY[a][b] = a * b in GF(2^8)
+    private static final byte[][] MULTIPLY = new byte[256][256];
+    // BIT_MATRIX[a][r] has bit c set if bit r of a * 2^c is set, packet r of a product is the
+    // XOR of the packets c of the input
+    private static final int[][] BIT_MATRIX = new int[256][8];
+
+    static {
+        var x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = EXP[i + 255] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) {
+                x ^= POLYNOMIAL;
+            }
+        }
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MULTIPLY[a][b] = EXP[LOG[a] + LOG[b]];
+            }
+            for (int c = 0; c < 8; c++) {
+                var product = MULTIPLY[a][1 << c];
+                for (int r = 0; r < 8; r++) {
+                    BIT_MATRIX[a][r] |= (product >>> r & 1) << c;
+                }
+            }
+        }
+    }
+
+    private final int dataShards;
+    private final int parityShards;
+    // generator rows of the parity shards, parity[i] = sum of parity[i][j] * data[j]
+    private final byte[][] parity;
+
+    /**
+     * @param dataShards k, the number of shards holding the data
+     * @param parityShards m, the number of shards that can be lost
+     */
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > MAX_SHARDS) {
+            throw new IllegalArgumentException("invalid code " + dataShards + "+" + parityShards);
+        }
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        this.parity = new byte[parityShards][dataShards];
+        for (int i = 0; i < parityShards; i++) {
+            for (int j = 0; j < dataShards; j++) {
+                parity[i][j] = inverse((dataShards + i) ^ j);
+            }
+        }
+        
+        //each XOR pass is a 1 in a bit matrix, so scaling the columns to make the first row all
+        //ones, the cheapest coefficient, and then every other row by its cheapest factor
+        if (parityShards > 0) {
+            for (int j = 0; j < dataShards; j++) {
+                var scale = MULTIPLY[inverse(parity[0][j] & 0xff) & 0xff];
+                for (int i = 0; i < parityShards; i++) {
+                    parity[i][j] = scale[parity[i][j] & 0xff];
+                }
+            }
+        }
+        for (int i = 1; i < parityShards; i++) {
+            var bestFactor = 1;
+            var bestOnes = Integer.MAX_VALUE;
+            for (int factor = 1; factor < 256; factor++) {
+                var ones = 0;
+                for (int j = 0; j < dataShards; j++) {
+                    ones += ones(MULTIPLY[factor][parity[i][j] & 0xff] & 0xff);
+                }
+                if (ones < bestOnes) {
+                    bestOnes = ones;
+                    bestFactor = factor;
+                }
+            }
+            for (int j = 0; j < dataShards; j++) {
+                parity[i][j] = MULTIPLY[bestFactor][parity[i][j] & 0xff];
+            }
+        }
+    }
+
+    public int getDataShards() {
+        return dataShards;
+    }
+
+    public int getParityShards() {
+        return parityShards;
+    }
+
+    /**
+     * Computes the parity shards of a stripe
+     * @param shards k data blocks followed by m parity blocks to fill
+     * @param length the number of longs used in each block, a multiple of 8
+     */
+    public void encode(long[][] shards, int length) {
+        for (int i = 0; i < parityShards; i++) {
+            combine(parity[i], shards, 0, shards[dataShards + i], length);
+        }
+    }
+
+    /**
+     * Rebuilds the missing shards of a stripe from any k present ones. A missing block left null
+     * is not rebuilt, but rebuilding a parity block needs every data block.
+     * @param shards every block of the stripe, the missing ones are overwritten
+     * @param present which blocks hold valid data, at least k of them
+     * @param length the number of longs used in each block, a multiple of 8
+     */
+    public void reconstruct(long[][] shards, boolean[] present, int length) {
+        //the rows of the generator for k present shards, and the shards they came from
+        var rows = new byte[dataShards][];
+        var sources = new long[dataShards][];
+        var count = 0;
+        for (int i = 0; i < shards.length && count < dataShards; i++) {
+            if (present[i]) {
+                rows[count] = generatorRow(i);
+                sources[count] = shards[i];
+                count++;
+            }
+        }
+        if (count < dataShards) {
+            throw new IllegalArgumentException("only " + count + " of " + dataShards + " shards present");
+        }
+
+        //inverting the rows gives the data shards in terms of the present ones
+        var decode = invert(rows);
+        for (int j = 0; j < dataShards; j++) {
+            if (!present[j] && shards[j] != null) {
+                combine(decode[j], sources, 0, shards[j], length);
+            }
+        }
+        for (int i = 0; i < parityShards; i++) {
+            if (!present[dataShards + i] && shards[dataShards + i] != null) {
+                combine(parity[i], shards, 0, shards[dataShards + i], length);
+            }
+        }
+    }
+
+    //out = sum of coefficients[j] * inputs[from + j], as XORs of packets
+    private static void combine(byte[] coefficients, long[][] inputs, int from, long[] out, int length) {
+        if (length % 8 != 0) {
+            throw new IllegalArgumentException("block length " + length + " is not a multiple of 8");
+        }
+        var packet = length / 8;
+        var arrays = new long[8 * coefficients.length][];
+        var offsets = new int[arrays.length];
+        for (int r = 0; r < 8; r++) {
+            //the input packets that make up packet r of the output
+            var count = 0;
+            for (int j = 0; j < coefficients.length; j++) {
+                var mask = BIT_MATRIX[coefficients[j] & 0xff][r];
+                for (int c = 0; c < 8; c++) {
+                    if ((mask >>> c & 1) != 0) {
+                        arrays[count] = inputs[from + j];
+                        offsets[count] = c * packet;
+                        count++;
+                    }
+                }
+            }
+            
+            //XORing up to 4 of them per pass, so the output is loaded and stored less often
+            var target = r * packet;
+            if (count == 0) {
+                Arrays.fill(out, target, target + packet, 0);
+                continue;
+            }
+            System.arraycopy(arrays[0], offsets[0], out, target, packet);
+            var next = 1;
+            for (; next + 4 <= count; next += 4) {
+                xor4(arrays, offsets, next, out, target, packet);
+            }
+            for (; next < count; next++) {
+                xor(arrays[next], offsets[next], out, target, packet);
+            }
+        }
+    }
+
+    private static void xor(long[] input, int source, long[] out, int target, int length) {
+        for (int p = 0; p < length; p++) {
+            out[target + p] ^= input[source + p];
+        }
+    }
+
+    private static void xor4(long[][] arrays, int[] offsets, int from, long[] out, int target, int length) {
+        long[] a = arrays[from], b = arrays[from + 1], c = arrays[from + 2], d = arrays[from + 3];
+        int oa = offsets[from], ob = offsets[from + 1], oc = offsets[from + 2], od = offsets[from + 3];
+        for (int p = 0; p < length; p++) {
+            out[target + p] ^= a[oa + p] ^ b[ob + p] ^ c[oc + p] ^ d[od + p];
+        }
+    }
+
+    private static int ones(int element) {
+        var ones = 0;
+        for (var row : BIT_MATRIX[element]) {
+            ones += Integer.bitCount(row);
+        }
+        return ones;
+    }
+
+    /**
+     * Copies bytes into a block
+     * @param bytes the bytes to copy from
+     * @param offset the position of the first byte
+     * @param length the number of bytes, a multiple of 8
+     * @param block the block to copy to
+     */
+    public static void toLongs(byte[] bytes, int offset, int length, long[] block) {
+        ByteBuffer.wrap(bytes, offset, length).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer()
+            .get(block, 0, length / Long.BYTES);
+    }
+
+    /**
+     * Copies a block into bytes
+     * @param block the block to copy from
+     * @param bytes the bytes to copy to
+     * @param offset the position of the first byte
+     * @param length the number of bytes, a multiple of 8
+     */
+    public static void toBytes(long[] block, byte[] bytes, int offset, int length) {
+        ByteBuffer.wrap(bytes, offset, length).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer()
+            .put(block, 0, length / Long.BYTES);
+    }
+
+    //row of the generator matrix for a shard, the identity for data shards
+    private byte[] generatorRow(int shard) {
+        if (shard >= dataShards) {
+            return parity[shard - dataShards];
+        }
+        var row = new byte[dataShards];
+        row[shard] = 1;
+        return row;
+    }
+
+    //Gauss-Jordan elimination over GF(2^8)
+    private static byte[][] invert(byte[][] matrix) {
+        var n = matrix.length;
+        var work = new byte[n][];
+        var result = new byte[n][n];
+        for (int i = 0; i < n; i++) {
+            work[i] = matrix[i].clone();
+            result[i][i] = 1;
+        }
+        for (int column = 0; column < n; column++) {
+            var pivot = column;
+            while (work[pivot][column] == 0) {
+                pivot++; //a Cauchy generator always has a pivot
+            }
+            swap(work, column, pivot);
+            swap(result, column, pivot);
+
+            var scale = MULTIPLY[inverse(work[column][column] & 0xff) & 0xff];
+            for (int j = 0; j < n; j++) {
+                work[column][j] = scale[work[column][j] & 0xff];
+                result[column][j] = scale[result[column][j] & 0xff];
+            }
+            for (int i = 0; i < n; i++) {
+                var factor = work[i][column] & 0xff;
+                if (i != column && factor != 0) {
+                    var row = MULTIPLY[factor];
+                    for (int j = 0; j < n; j++) {
+                        work[i][j] ^= row[work[column][j] & 0xff];
+                        result[i][j] ^= row[result[column][j] & 0xff];
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void swap(byte[][] rows, int a, int b) {
+        var row = rows[a];
+        rows[a] = rows[b];
+        rows[b] = row;
+    }
+
+    private static byte inverse(int a) {
+        return EXP[255 - LOG[a]];
+    }
+}
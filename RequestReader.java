@@ -0,0 +1,98 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads request lines and the data that follows them from one connection. Unlike a
+ * BufferedReader it never holds on to bytes after a line that the data reads would miss, and it
+ * only needs a small buffer per connection, which matters with many thousands of connections.
+ */
+public class RequestReader extends InputStream {
+
+    // starting size of the buffer, it grows for long lines such as REBALANCE
+    private static final int INITIAL_SIZE = 256;
+
+    private final InputStream in;
+    private byte[] buffer;
+    private int start;
+    private int end;
+
+    /**
+     * @param in the stream of the connection
+     */
+    public RequestReader(InputStream in) {
+        this.in = in;
+        this.buffer = new byte[INITIAL_SIZE];
+    }
+
+    /**
+     * Reads a line ending in \n or \r\n
+     * @return the line without its terminator, or null at the end of the stream
+     * @throws IOException if the stream cannot be read
+     */
+    public String readLine() throws IOException {
+        var scanned = 0; //bytes after start already checked for the terminator
+        for (;;) {
+            for (; start + scanned < end; scanned++) {
+                var i = start + scanned;
+                if (buffer[i] == '\n') {
+                    var lineEnd = i > start && buffer[i - 1] == '\r' ? i - 1 : i;
+                    var line = new String(buffer, start, lineEnd - start, StandardCharsets.UTF_8);
+                    start = i + 1;
+                    return line;
+                }
+            }
+            if (!fill()) {
+                if (start == end) {
+                    return null;
+                }
+                var line = new String(buffer, start, end - start, StandardCharsets.UTF_8);
+                start = end;
+                return line;
+            }
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (start == end) {
+            return in.read();
+        }
+        return buffer[start++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (start == end) {
+            return in.read(b, off, len); //nothing buffered, read straight from the connection
+        }
+        var n = Math.min(len, end - start);
+        System.arraycopy(buffer, start, b, off, n);
+        start += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return end - start + in.available();
+    }
+
+    //reads more bytes after the buffered ones, false at the end of the stream
+    private boolean fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        if (end == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        var n = in.read(buffer, end, buffer.length - end);
+        if (n < 0) {
+            return false;
+        }
+        end += n;
+        return true;
+    }
+}
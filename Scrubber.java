@@ -0,0 +1,145 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Background check of the files a Dstore holds against the CRC32C they were stored with. Only
+ * cold files are read, the ones not stored or verified by a read for a while, and the reads are
+ * throttled to a byte rate so the scrubber never competes with clients for the disk. A file that
+ * was stored without a checksum gets the one computed here.
+ */
+public class Scrubber implements Runnable {
+
+    // pause between two passes over the manifest
+    private static final long PASS_INTERVAL = 60_000;
+
+    private final Manifest manifest;
+    private final StoredFile.Opener opener;
+    private final Consumer<String> onCorrupt;
+    private final long bytesPerSecond;
+    private final long maxAge;
+
+    // key: file name, value: time of the last successful verification in milliseconds
+    private final Map<String, Long> verified;
+
+    // start of the current pass and bytes read in it, for the throttle
+    private long passStarted;
+    private long passBytes;
+
+    /**
+     * @param manifest the metadata of the stored files
+     * @param opener opens a stored file by its name
+     * @param onCorrupt called with the name of a file that does not match its checksum
+     * @param bytesPerSecond the most bytes read per second
+     * @param maxAge how long in milliseconds a file stays trusted after it was stored or verified
+     */
+    public Scrubber(Manifest manifest, StoredFile.Opener opener, Consumer<String> onCorrupt,
+        long bytesPerSecond, long maxAge) {
+        this.manifest = manifest;
+        this.opener = opener;
+        this.onCorrupt = onCorrupt;
+        this.bytesPerSecond = bytesPerSecond;
+        this.maxAge = maxAge;
+        this.verified = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Starts scrubbing on a daemon thread
+     */
+    public void start() {
+        var thread = new Thread(this, "scrubber");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Records that a file was just read in full and matched its checksum, so the scrubber can
+     * skip it for a while
+     * @param fileName the name of the file
+     */
+    public void markVerified(String fileName) {
+        verified.put(fileName, System.currentTimeMillis());
+    }
+
+    @Override
+    public void run() {
+        for (;;) {
+            try {
+                scrubPass();
+                Thread.sleep(PASS_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                System.err.println("error in the scrubber: " + e);
+            }
+        }
+    }
+
+    /**
+     * Verifies every cold file once
+     * @throws InterruptedException if the thread is interrupted while throttled
+     */
+    public void scrubPass() throws InterruptedException {
+        verified.keySet().retainAll(manifest.names());
+        var now = System.currentTimeMillis();
+        passStarted = System.nanoTime();
+        passBytes = 0;
+        for (var entry : new ArrayList<>(manifest.entries())) {
+            var lastChecked = Math.max(entry.modified(), verified.getOrDefault(entry.name(), 0L));
+            if (now - lastChecked < maxAge) {
+                continue;
+            }
+            try {
+                var checksum = checksum(entry.name());
+                if (entry.checksum() == FileTransfer.UNKNOWN_CHECKSUM) {
+                    manifest.adoptChecksum(entry, checksum);
+                    markVerified(entry.name());
+                } else if (checksum == entry.checksum()) {
+                    markVerified(entry.name());
+                } else if (manifest.get(entry.name()) == entry) {
+                    System.err.println("scrubber found a corrupt replica of " + entry.name());
+                    onCorrupt.accept(entry.name());
+                }
+            } catch (NoSuchFileException e) {
+                //removed while the pass was running
+            } catch (FileTransfer.ChecksumException e) {
+                if (manifest.get(entry.name()) == entry) {
+                    System.err.println("scrubber found a corrupt block in " + entry.name() + ": " + e.getMessage());
+                    onCorrupt.accept(entry.name());
+                }
+            } catch (IOException e) {
+                System.err.println("error scrubbing " + entry.name() + ": " + e);
+            }
+        }
+    }
+
+    //reads the whole file, keeping the pass under bytesPerSecond
+    private long checksum(String fileName) throws IOException, InterruptedException {
+        try (var file = opener.open(fileName)) {
+            var buffer = ByteBuffer.allocate(FileTransfer.BUFFER_SIZE);
+            var crc = new CRC32C();
+            var read = 0L;
+            for (;;) {
+                buffer.clear();
+                var n = file.read(buffer, read);
+                if (n < 0) {
+                    return crc.getValue();
+                }
+                crc.update(buffer.array(), 0, n);
+                read += n;
+                passBytes += n;
+
+                var due = passStarted + (long) (passBytes * 1e9 / bytesPerSecond);
+                var ahead = due - System.nanoTime();
+                if (ahead > 0) {
+                    Thread.sleep(ahead / 1_000_000, (int) (ahead % 1_000_000));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,391 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps small files as records appended to a few large segment files, so storing one does not
+ * create an inode and reading one is a single positional read of a segment that stays open. The
+ * place of every file is held in memory and rebuilt at startup by reading the segments in order,
+ * the last record for a name winning. A removal appends a tombstone, and a background compactor
+ * copies the live records out of segments that are mostly dead and deletes them. A segment
+ * compacted away stays open until the last read of it is closed.
+ */
+public class SegmentStore {
+
+    static final String SEGMENT_FOLDER = ".segments";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final int MAGIC = 0x53454731; // SEG1
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    // a sealed segment is compacted once this share of its bytes is dead
+    private static final double COMPACT_RATIO = 0.5;
+
+    /**
+     * Where the bytes of a small file are
+     * @param segment the number of the segment
+     * @param record the position of the record in the segment
+     * @param offset the position of the first byte of the file in the segment
+     * @param size the size of the file
+     */
+    public record Location(long segment, long record, long offset, long size) {
+
+        long length() {
+            return offset + size - record;
+        }
+    }
+
+    //an open segment, held by the store until it is compacted away and by every read of it
+    private static class Segment {
+
+        final FileChannel channel;
+        // the reads of the segment, and one more for the store until it is compacted away
+        final AtomicInteger holders;
+
+        Segment(FileChannel channel) {
+            this.channel = channel;
+            this.holders = new AtomicInteger(1);
+        }
+
+        //holds the segment for a read, unless it is closed already
+        boolean hold() {
+            for (;;) {
+                var n = holders.get();
+                if (n == 0) {
+                    return false;
+                }
+                if (holders.compareAndSet(n, n + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        //closes the segment once nothing holds it any more
+        void release() throws IOException {
+            if (holders.decrementAndGet() == 0) {
+                channel.close();
+            }
+        }
+    }
+
+    private final Path folder;
+    private final long maxFileSize;
+    private final long segmentSize;
+    private final Map<String, Location> index;
+    // key: segment number, value: the open segment, in order
+    private final ConcurrentSkipListMap<Long, Segment> segments;
+    // key: segment number, value: bytes of records that are no longer live
+    private final Map<Long, Long> garbage;
+
+    // guards appending, the active segment and changes to the index
+    private final Object appendLock;
+    private long active;
+    private long activeSize;
+
+    private SegmentStore(Path folder, long maxFileSize, long segmentSize) {
+        this.folder = folder;
+        this.maxFileSize = maxFileSize;
+        this.segmentSize = segmentSize;
+        this.index = new ConcurrentHashMap<>();
+        this.segments = new ConcurrentSkipListMap<>();
+        this.garbage = new ConcurrentHashMap<>();
+        this.appendLock = new Object();
+    }
+
+    /**
+     * Opens the segments in a folder and rebuilds the index from them. A record cut short by a
+     * crash is truncated away.
+     * @param folder the folder holding the segments
+     * @param maxFileSize files up to this size are kept in segments, 0 keeps none
+     * @param segmentSize the size after which a new segment is started
+     * @return the open store
+     * @throws IOException if the segments cannot be read
+     */
+    public static SegmentStore open(Path folder, long maxFileSize, long segmentSize) throws IOException {
+        Files.createDirectories(folder);
+        var store = new SegmentStore(folder, maxFileSize, segmentSize);
+        try (var files = Files.list(folder)) {
+            for (var file : files.filter(f -> f.getFileName().toString().startsWith(SEGMENT_PREFIX)).toList()) {
+                var number = Long.parseLong(file.getFileName().toString().substring(SEGMENT_PREFIX.length()));
+                store.segments.put(number, new Segment(FileChannel.open(file, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)));
+            }
+        }
+        for (var entry : store.segments.entrySet()) {
+            store.recover(entry.getKey(), entry.getValue().channel);
+        }
+        store.active = store.segments.isEmpty() ? 0 : store.segments.lastKey();
+        if (store.segments.isEmpty()) {
+            store.segments.put(0L, new Segment(store.create(0)));
+        }
+        store.activeSize = store.segments.get(store.active).channel.size();
+        return store;
+    }
+
+    /**
+     * @param size the size of a file
+     * @return whether a file of that size is kept in a segment
+     */
+    public boolean accepts(long size) {
+        return maxFileSize > 0 && size <= maxFileSize;
+    }
+
+    /**
+     * @param fileName the name of a file
+     * @return whether the file is kept in a segment
+     */
+    public boolean contains(String fileName) {
+        return index.containsKey(fileName);
+    }
+
+    /**
+     * @param fileName the name of a file
+     * @return the file, or null if it is not kept in a segment, its segment is held open until
+     * the file is closed
+     */
+    public StoredFile open(String fileName) {
+        for (;;) {
+            var location = index.get(fileName);
+            if (location == null) {
+                return null;
+            }
+            var segment = segments.get(location.segment());
+            if (segment != null && segment.hold()) {
+                var released = new AtomicBoolean();
+                return new StoredFile(segment.channel, location.offset(), location.size(), () -> {
+                    if (released.compareAndSet(false, true)) {
+                        segment.release();
+                    }
+                });
+            }
+            //compacted away since it was looked up, the index already points to the copy
+        }
+    }
+
+    /**
+     * @param fileName the name of the file
+     * @param bytes the contents of the file
+     * @return whether the file was kept in a segment before
+     * @throws IOException if the segment cannot be written
+     */
+    public boolean put(String fileName, byte[] bytes) throws IOException {
+        synchronized (appendLock) {
+            var location = append(PUT, fileName, bytes);
+            return replace(fileName, location);
+        }
+    }
+
+    /**
+     * @param fileName the name of the file
+     * @return whether the file was kept in a segment
+     * @throws IOException if the tombstone cannot be written
+     */
+    public boolean remove(String fileName) throws IOException {
+        synchronized (appendLock) {
+            if (!index.containsKey(fileName)) {
+                return false;
+            }
+            var tombstone = append(REMOVE, fileName, null);
+            garbage.merge(tombstone.segment(), tombstone.length(), Long::sum);
+            return replace(fileName, null);
+        }
+    }
+
+    /**
+     * @return the names of the files kept in segments, a live view
+     */
+    public Collection<String> names() {
+        return index.keySet();
+    }
+
+    /**
+     * Compacts on a background thread at a fixed interval
+     * @param seconds the interval between passes
+     */
+    public void scheduleCompaction(int seconds) {
+        var scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "segment-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                compact();
+            } catch (IOException e) {
+                System.err.println("error compacting the segments: " + e);
+            }
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Rewrites every sealed segment that is mostly dead, oldest first. Its live records are
+     * appended to the active segment and it is deleted. A tombstone is copied too unless the
+     * segment is the oldest, as an older segment may still hold the record it cancels. The
+     * segment is closed once the reads still using it are done.
+     * @throws IOException if a segment cannot be read or written
+     */
+    public void compact() throws IOException {
+        for (var number : List.copyOf(segments.keySet())) {
+            var segment = segments.get(number);
+            var channel = segment.channel;
+            if (number == active || channel.size() == 0
+                || garbage.getOrDefault(number, 0L) < channel.size() * COMPACT_RATIO) {
+                continue;
+            }
+            var oldest = number.equals(segments.firstKey());
+            var kept = new long[2];
+            scan(number, channel, (op, name, location) -> {
+                if (op == PUT && location.equals(index.get(name))) {
+                    var bytes = new byte[(int) location.size()];
+                    var file = new StoredFile(channel, location.offset(), location.size(), null);
+                    for (var read = 0; read < bytes.length; ) {
+                        var n = file.read(ByteBuffer.wrap(bytes, read, bytes.length - read), read);
+                        if (n < 0) {
+                            throw new EOFException("segment " + number + " ended inside " + name);
+                        }
+                        read += n;
+                    }
+                    synchronized (appendLock) {
+                        if (location.equals(index.get(name))) { //not stored again or removed meanwhile
+                            index.put(name, append(PUT, name, bytes));
+                            kept[0]++;
+                        }
+                    }
+                } else if (op == REMOVE && !oldest) {
+                    synchronized (appendLock) {
+                        if (!index.containsKey(name)) { //a later store must stay after the tombstone
+                            var tombstone = append(REMOVE, name, null);
+                            garbage.merge(tombstone.segment(), tombstone.length(), Long::sum);
+                            kept[1]++;
+                        }
+                    }
+                }
+            });
+            segments.remove(number);
+            garbage.remove(number);
+            Files.deleteIfExists(segmentPath(number));
+            segment.release();
+            System.out.println("compacted segment " + number + ", kept " + kept[0] + " files and "
+                + kept[1] + " tombstones");
+        }
+    }
+
+    //what a scan found, location is null for a tombstone
+    private interface RecordVisitor {
+        void visit(byte op, String name, Location location) throws IOException;
+    }
+
+    //rebuilds the index from one segment, truncating a partial record at its end
+    private void recover(long number, FileChannel channel) throws IOException {
+        var end = scan(number, channel, (op, name, location) -> {
+            if (op == PUT) {
+                replace(name, location);
+            } else {
+                garbage.merge(number, tombstoneLength(name), Long::sum);
+                replace(name, null);
+            }
+        });
+        if (end < channel.size()) {
+            System.err.println("segment " + number + " ends with a partial record, truncating it");
+            channel.truncate(end);
+        }
+    }
+
+    //visits the records of a segment in order and returns the end of the last complete one
+    private long scan(long number, FileChannel channel, RecordVisitor visitor) throws IOException {
+        var size = channel.size();
+        var in = new DataInputStream(new BufferedInputStream(
+            Channels.newInputStream(channel.position(0)), FileTransfer.BUFFER_SIZE));
+        var position = 0L;
+        try {
+            while (position < size) {
+                if (in.readInt() != MAGIC) {
+                    return position;
+                }
+                var op = in.readByte();
+                var name = new byte[in.readUnsignedShort()];
+                in.readFully(name);
+                var fileName = new String(name, StandardCharsets.UTF_8);
+                if (op == REMOVE) {
+                    visitor.visit(op, fileName, null);
+                    position += tombstoneLength(fileName);
+                    continue;
+                }
+                var fileSize = in.readLong();
+                var offset = position + 4 + 1 + 2 + name.length + 8;
+                if (op != PUT || offset + fileSize > size) {
+                    return position;
+                }
+                in.skipNBytes(fileSize);
+                visitor.visit(op, fileName, new Location(number, position, offset, fileSize));
+                position = offset + fileSize;
+            }
+        } catch (EOFException e) {
+            //the last record was cut short
+        }
+        return position;
+    }
+
+    //appends a record to the active segment, starting a new one if it is full
+    private Location append(byte op, String fileName, byte[] bytes) throws IOException {
+        var name = fileName.getBytes(StandardCharsets.UTF_8);
+        var length = 4 + 1 + 2 + name.length + (op == PUT ? 8 + bytes.length : 0);
+        if (activeSize > 0 && activeSize + length > segmentSize) {
+            active++;
+            segments.put(active, new Segment(create(active)));
+            activeSize = 0;
+        }
+        var record = ByteBuffer.allocate(length);
+        record.putInt(MAGIC).put(op).putShort((short) name.length).put(name);
+        if (op == PUT) {
+            record.putLong(bytes.length).put(bytes);
+        }
+        record.flip();
+        var channel = segments.get(active).channel;
+        var position = activeSize;
+        while (record.hasRemaining()) {
+            channel.write(record, position + record.position());
+        }
+        activeSize += length;
+        var size = op == PUT ? bytes.length : 0;
+        return new Location(active, position, position + length - size, size);
+    }
+
+    //points a name to its new record, or to none, and counts the old record as garbage
+    private boolean replace(String fileName, Location location) {
+        var previous = location == null ? index.remove(fileName) : index.put(fileName, location);
+        if (previous != null) {
+            garbage.merge(previous.segment(), previous.length(), Long::sum);
+        }
+        return previous != null;
+    }
+
+    private FileChannel create(long number) throws IOException {
+        return FileChannel.open(segmentPath(number), StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    }
+
+    private Path segmentPath(long number) {
+        return folder.resolve(SEGMENT_PREFIX + number);
+    }
+
+    private static long tombstoneLength(String fileName) {
+        return 4 + 1 + 2 + fileName.getBytes(StandardCharsets.UTF_8).length;
+    }
+}
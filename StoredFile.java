@@ -0,0 +1,131 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The bytes of a stored file, either a file of its own or a record inside a segment shared with
+ * other small files. Reads are positional and relative to the start of the file, and end at its
+ * size, so callers never see the bytes of the neighbouring records. A compressed file is read
+ * through its blocks, the channel then holds the compressed bytes and cannot be sent as it is.
+ * @param channel the channel holding the bytes
+ * @param offset the position of the first byte of the file in the channel
+ * @param size the size of the file
+ * @param release closed with the file, the channel of a file of its own, the hold on the segment
+ * of a small file, or null for a view of a file closed on its own
+ * @param blocks the blocks of a compressed file, or null if the bytes are stored as they are
+ */
+public record StoredFile(FileChannel channel, long offset, long size, Closeable release,
+    Compression.Blocks blocks) implements Closeable {
+
+    /**
+     * A file stored as it is
+     */
+    public StoredFile(FileChannel channel, long offset, long size, Closeable release) {
+        this(channel, offset, size, release, null);
+    }
+
+    /**
+     * Opens a stored file by its name
+     */
+    public interface Opener {
+
+        /**
+         * @param fileName the name of a stored file
+         * @return the open file
+         * @throws IOException if the file is not stored or cannot be opened
+         */
+        StoredFile open(String fileName) throws IOException;
+    }
+
+    /**
+     * @param channel a file of its own
+     * @return the whole file
+     * @throws IOException if the size cannot be read
+     */
+    public static StoredFile of(FileChannel channel) throws IOException {
+        return new StoredFile(channel, 0, channel.size(), channel);
+    }
+
+    /**
+     * @return whether the file is compressed, so its channel does not hold its bytes as they are
+     */
+    public boolean compressed() {
+        return blocks != null;
+    }
+
+    /**
+     * @return the number of bytes the file takes in its channel
+     */
+    public long storedSize() {
+        return blocks != null ? blocks.storedSize() : size;
+    }
+
+    /**
+     * Reads from the file like {@link FileChannel#read(ByteBuffer, long)}
+     * @param buffer the buffer to fill from its position
+     * @param position the position in the file of the first byte to read
+     * @return the number of bytes read, or -1 at the end of the file
+     * @throws IOException if the channel cannot be read
+     */
+    public int read(ByteBuffer buffer, long position) throws IOException {
+        if (position >= size) {
+            return -1;
+        }
+        if (blocks != null) {
+            return blocks.read(buffer, position);
+        }
+        var limit = buffer.limit();
+        buffer.limit((int) Math.min(limit, buffer.position() + size - position));
+        try {
+            return channel.read(buffer, offset + position);
+        } finally {
+            buffer.limit(limit);
+        }
+    }
+
+    /**
+     * @param from the position in the file of the first byte to read
+     * @return a stream of the file from the position to its end, closing it closes the file
+     */
+    public InputStream newInputStream(long from) {
+        return new InputStream() {
+
+            private long position = from;
+
+            @Override
+            public int read() throws IOException {
+                var b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                var n = StoredFile.this.read(ByteBuffer.wrap(b, off, len), position);
+                if (n > 0) {
+                    position += n;
+                }
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                StoredFile.this.close();
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (blocks != null) {
+            blocks.close();
+        }
+        if (release != null) {
+            release.close();
+        }
+    }
+}
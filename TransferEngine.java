@@ -0,0 +1,366 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Sends files to other Dstores for a REBALANCE. Files are sent concurrently by a bounded number
+ * of workers, connections to peers are kept open and reused, and a file going to several peers
+ * is read from disk once and written to all of them as it is read. The CRC32C is checked on the
+ * way, so a corrupt replica is never copied to another Dstore. A file kept as a shared blob is
+ * offered with its SHA-256 first, and a peer that already holds those contents takes the file
+ * without its bytes being sent.
+ */
+public class TransferEngine {
+
+    private final int timeout;
+    private final int workerCount;
+    private final ExecutorService workers;
+
+    // key: Dstore port, value: open connections to that Dstore not in use
+    private final Map<Integer, Queue<PeerConnection>> idle;
+
+    /**
+     * @param workerCount the maximum number of files sent at the same time
+     * @param timeout the timeout in milliseconds when waiting for a peer to answer
+     */
+    public TransferEngine(int workerCount, int timeout) {
+        this.timeout = timeout;
+        this.workerCount = workerCount;
+        this.workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+            var thread = new Thread(runnable, "rebalance-transfer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.idle = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Sends every file to its ports and returns once all the transfers have finished or failed
+     * @param transfers pairs of file name and the ports of the Dstores to send it to
+     * @param manifest the metadata of the stored files
+     * @param opener opens a stored file by its name
+     * @param onCorrupt called with the name of a file that does not match its checksum
+     * @return the names of the files not sent to every one of their ports
+     */
+    public Set<String> sendAll(List<Pair<String, List<Integer>>> transfers, Manifest manifest,
+        StoredFile.Opener opener, Consumer<String> onCorrupt) {
+        var tasks = new ArrayList<Callable<Integer>>();
+        for (var transfer : transfers) {
+            var fileName = transfer.getFirst();
+            tasks.add(() -> send(manifest.get(fileName), opener, transfer.getSecond(), onCorrupt));
+        }
+
+        //every transfer is waited for, one that threw or was not waited for counts as failed
+        var failed = new HashSet<String>();
+        List<Future<Integer>> results;
+        try {
+            results = workers.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            System.err.println("interrupted while waiting for the transfers: " + e);
+            Thread.currentThread().interrupt();
+            transfers.forEach(transfer -> failed.add(transfer.getFirst()));
+            return failed;
+        }
+        for (int i = 0; i < results.size(); i++) {
+            var fileName = transfers.get(i).getFirst();
+            try {
+                if (results.get(i).get() > 0) {
+                    failed.add(fileName);
+                }
+            } catch (InterruptedException e) {
+                System.err.println("interrupted while waiting for the transfer of " + fileName + ": " + e);
+                Thread.currentThread().interrupt();
+                failed.add(fileName);
+            } catch (ExecutionException e) {
+                System.err.println("error in the transfer of " + fileName + ": " + e.getCause());
+                failed.add(fileName);
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Sends one file to all of its ports, reading it once, and only to the ports that do not hold
+     * its contents already. A compressed file goes compressed to the ports that take it so.
+     * @return the number of ports the file could not be sent to
+     */
+    private int send(Manifest.Entry entry, StoredFile.Opener opener, List<Integer> ports,
+        Consumer<String> onCorrupt) {
+        if (entry == null) {
+            System.err.println("file does not exist, not sending it");
+            return ports.size();
+        }
+        var fileName = entry.name();
+        var checksum = entry.checksum();
+
+        //opening a REBALANCE_STORE with every port that answers with ACK, a compressed file is
+        //offered as it is stored
+        var targets = new ArrayList<PeerConnection>();
+        var compressedTargets = new ArrayList<PeerConnection>();
+        var present = 0;
+        try (var file = opener.open(fileName)) {
+            var fileSize = file.size();
+            var request = storeRequest(Protocol.REBALANCE_STORE_TOKEN, fileName, fileSize, checksum);
+            if (entry.content() != null) {
+                request += " " + Protocol.CONTENT_TOKEN + " " + entry.content();
+            }
+            if (file.compressed()) {
+                request += " " + Protocol.COMPRESSED_TOKEN + " " + file.storedSize();
+            }
+            for (var port : ports) {
+                var connection = begin(port, request);
+                if (connection == null) {
+                    continue;
+                }
+                if (connection.reply.equals(Protocol.HAS_CONTENT_TOKEN)) {
+                    release(connection); //nothing to send, the peer took the file already
+                    present++;
+                } else if (connection.reply.equals(Protocol.ACK_TOKEN + " " + Protocol.COMPRESSED_TOKEN)) {
+                    compressedTargets.add(connection);
+                } else {
+                    targets.add(connection);
+                }
+            }
+
+            //reading each chunk once and writing it to every target still alive
+            System.out.println("sending the file " + fileName + " to the Dstores: " + ports);
+            var buffer = ByteBuffer.allocate(FileTransfer.BUFFER_SIZE);
+            var crc = new CRC32C();
+            var position = 0L;
+            while (position < fileSize && !targets.isEmpty()) {
+                buffer.clear();
+                var n = file.read(buffer, position);
+                if (n < 0) {
+                    throw new IOException("file ended after " + position + " of " + fileSize + " bytes");
+                }
+                position += n;
+
+                //the last chunk is only sent once the whole file has matched its checksum
+                crc.update(buffer.array(), 0, n);
+                if (position >= fileSize && checksum != FileTransfer.UNKNOWN_CHECKSUM
+                    && crc.getValue() != checksum) {
+                    throw new FileTransfer.ChecksumException("the file does not match its checksum");
+                }
+                writeAll(targets, buffer.array(), n, fileName);
+            }
+
+            //the compressed bytes are sent without inflating them, each block is checked against
+            //its own checksum before it is complete at the peer
+            var stored = new StoredFile(file.channel(), file.offset(), file.storedSize(), null);
+            var verifier = Compression.verifying(OutputStream.nullOutputStream());
+            position = 0L;
+            while (position < stored.size() && !compressedTargets.isEmpty()) {
+                buffer.clear();
+                var n = stored.read(buffer, position);
+                if (n < 0) {
+                    throw new IOException("file ended after " + position + " of " + stored.size() + " bytes");
+                }
+                position += n;
+                verifier.write(buffer.array(), 0, n);
+                writeAll(compressedTargets, buffer.array(), n, fileName);
+            }
+            if (!compressedTargets.isEmpty()) {
+                verifier.close();
+            }
+        } catch (FileTransfer.ChecksumException e) {
+            System.err.println("corrupt replica of " + fileName + ", not sending it: " + e.getMessage());
+            targets.forEach(PeerConnection::abort);
+            compressedTargets.forEach(PeerConnection::abort);
+            onCorrupt.accept(fileName);
+            return ports.size() - present;
+        } catch (IOException e) {
+            System.err.println("error reading the file " + fileName + ": " + e);
+            targets.forEach(PeerConnection::abort);
+            compressedTargets.forEach(PeerConnection::abort);
+            return ports.size() - present;
+        }
+        targets.addAll(compressedTargets);
+
+        //ending the transfer with every target and keeping the connections for later
+        var sent = 0;
+        for (var target : targets) {
+            try {
+                target.chunks.finish();
+                release(target);
+                sent++;
+            } catch (IOException e) {
+                System.err.println("error sending " + fileName + " to Dstore: " + target.port + " " + e);
+                target.close();
+            }
+        }
+        return ports.size() - sent - present;
+    }
+
+    //writes a chunk to every target, dropping the ones that fail
+    private static void writeAll(List<PeerConnection> targets, byte[] chunk, int n, String fileName) {
+        for (var target : List.copyOf(targets)) {
+            try {
+                target.chunks.write(chunk, 0, n);
+            } catch (IOException e) {
+                System.err.println("error sending " + fileName + " to Dstore: " + target.port + " " + e);
+                target.close();
+                targets.remove(target);
+            }
+        }
+    }
+
+    /**
+     * Opens a STORE with the next Dstore of a replication chain, passing on the rest of the chain
+     * so each Dstore forwards the file to the one after it
+     * @param fileName the name of the file being stored
+     * @param fileSize the size of the file
+     * @param checksum the CRC32C given by the client, or {@link FileTransfer#UNKNOWN_CHECKSUM}
+     * @param chain the ports of the Dstores still to store the file, the first one is sent to
+     * @return the connection to write the chunks to, or null if the Dstore did not accept the file
+     */
+    public PeerConnection openChain(String fileName, long fileSize, long checksum, List<Integer> chain) {
+        var request = storeRequest(Protocol.STORE_TOKEN, fileName, fileSize, checksum)
+            + " " + Protocol.CHAIN_TOKEN;
+        for (var port : chain.subList(1, chain.size())) {
+            request += " " + port;
+        }
+        return begin(chain.get(0), request);
+    }
+
+    /**
+     * Ends a transfer opened by {@link #openChain} and keeps the connection for later
+     * @param connection the connection that was opened
+     * @throws IOException if the end of the transfer cannot be sent
+     */
+    public void finish(PeerConnection connection) throws IOException {
+        try {
+            connection.chunks.finish();
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+        release(connection);
+    }
+
+    private static String storeRequest(String token, String fileName, long fileSize, long checksum) {
+        var request = token + " " + fileName + " " + fileSize + " " + Protocol.CHUNKED_TOKEN;
+        if (checksum != FileTransfer.UNKNOWN_CHECKSUM) {
+            request += " " + Protocol.CHECKSUM_TOKEN + " " + Long.toHexString(checksum);
+        }
+        return request;
+    }
+
+    /**
+     * Sends a store request to the port and waits for ACK, possibly followed by how the data is
+     * wanted, or HAS_CONTENT if the request offered the contents, trying a fresh connection if a pooled one turns out to be closed
+     * @return the connection ready for the data, or null if the Dstore did not accept the file
+     */
+    private PeerConnection begin(int port, String request) {
+        for (var attempt = 0; attempt < 2; attempt++) {
+            PeerConnection connection = null;
+            try {
+                connection = attempt == 0 ? borrow(port) : new PeerConnection(port, timeout);
+                System.out.println("sending " + request + " to Dstore: " + port);
+                var line = connection.request(request);
+                System.out.println("received: " + line + " from Dstore: " + port);
+                if (line == null) {
+                    connection.close(); //stale pooled connection, try again with a new one
+                    continue;
+                }
+                if (!line.split(" ")[0].equals(Protocol.ACK_TOKEN) && !line.equals(Protocol.HAS_CONTENT_TOKEN)) {
+                    System.err.println("Did not receive ACK from Dstore: " + port);
+                    release(connection);
+                    return null;
+                }
+                return connection;
+            } catch (IOException e) {
+                System.err.println("error connecting to Dstore: " + port + " " + e);
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+        }
+        return null;
+    }
+
+    private PeerConnection borrow(int port) throws IOException {
+        var pooled = idle.computeIfAbsent(port, p -> new ConcurrentLinkedQueue<>()).poll();
+        return pooled != null ? pooled : new PeerConnection(port, timeout);
+    }
+
+    private void release(PeerConnection connection) {
+        var pool = idle.computeIfAbsent(connection.port, p -> new ConcurrentLinkedQueue<>());
+        if (pool.size() < workerCount) {
+            connection.chunks = null;
+            pool.add(connection);
+        } else {
+            connection.close();
+        }
+    }
+
+    /**
+     * A persistent connection to another Dstore, with a single reader for its whole life so
+     * no buffered bytes are lost between requests
+     */
+    static class PeerConnection {
+
+        final int port;
+        final Socket socket;
+        final BufferedReader reader;
+        final PrintWriter writer;
+        FileTransfer.ChunkedOutputStream chunks;
+        // the answer to the last request
+        String reply;
+
+        PeerConnection(int port, int timeout) throws IOException {
+            this.port = port;
+            this.socket = new Socket(InetAddress.getLocalHost(), port);
+            socket.setSoTimeout(timeout);
+            this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            this.writer = new PrintWriter(socket.getOutputStream(), true);
+        }
+
+        //sends a line and waits for the reply, null if the peer closed the connection
+        String request(String line) throws IOException {
+            writer.println(line);
+            if (writer.checkError()) {
+                return null;
+            }
+            chunks = new FileTransfer.ChunkedOutputStream(socket.getOutputStream());
+            reply = reader.readLine();
+            return reply;
+        }
+
+        void abort() {
+            try {
+                chunks.abort();
+            } catch (IOException e) {
+                System.err.println("error aborting the transfer to Dstore: " + port + " " + e);
+            }
+            close();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println("error closing the connection to Dstore: " + port + " " + e);
+            }
+        }
+    }
+}